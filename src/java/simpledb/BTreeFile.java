@@ -27,6 +27,7 @@ public class BTreeFile implements DbFile {
     final static Logger logger = Logger.getLogger(MethodHandles.lookup().lookupClass());
 
     private final File f;
+    private final PageFile file;
     private final TupleDesc td;
     private final int tableid;
     private int keyField;
@@ -41,6 +42,7 @@ public class BTreeFile implements DbFile {
      */
     public BTreeFile(File f, int key, TupleDesc td) {
         this.f = f;
+        this.file = new PageFile(f);
         this.tableid = f.getAbsoluteFile().hashCode();
         this.keyField = key;
         this.td = td;
@@ -84,13 +86,11 @@ public class BTreeFile implements DbFile {
      */
     public Page readPage(PageId pid) {
         BTreePageId id = (BTreePageId) pid;
-        BufferedInputStream bis = null;
 
         try {
-            bis = new BufferedInputStream(new FileInputStream(f));
             if (id.pgcateg() == BTreePageId.ROOT_PTR) {
                 byte[] pageBuf = new byte[BTreeRootPtrPage.getPageSize()];
-                int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
+                int retval = file.read(0, pageBuf, BTreeRootPtrPage.getPageSize());
                 if (retval == -1) {
                     throw new IllegalArgumentException("Read past end of table");
                 }
@@ -103,12 +103,7 @@ public class BTreeFile implements DbFile {
                 return p;
             } else {
                 byte[] pageBuf = new byte[BufferPool.getPageSize()];
-                if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.getPageNumber() - 1) * BufferPool.getPageSize()) !=
-                        BTreeRootPtrPage.getPageSize() + (id.getPageNumber() - 1) * BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException(
-                            "Unable to seek to correct place in BTreeFile");
-                }
-                int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
+                int retval = file.read(pageOffset(id.getPageNumber()), pageBuf, BufferPool.getPageSize());
                 if (retval == -1) {
                     throw new IllegalArgumentException("Read past end of table");
                 }
@@ -130,14 +125,6 @@ public class BTreeFile implements DbFile {
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
-        } finally {
-            // Close the file on success or error
-            try {
-                if (bis != null)
-                    bis.close();
-            } catch (IOException ioe) {
-                // Ignore failures closing the file
-            }
         }
     }
 
@@ -148,8 +135,35 @@ public class BTreeFile implements DbFile {
      * @param page - the page to write to disk
      */
     public void writePage(Page page) throws IOException {
-        BTreePageId id = (BTreePageId) page.getId();
+        debugPageWrite(page);
+        byte[] data = page.getPageData();
+        file.write(pageOffset(page.getId()), data, data.length);
+    }
+
+    /**
+     * Writes runs of adjacent pages with a single gathering write each.
+     *
+     * @param pages - the pages to write to disk, the root pointer page first
+     */
+    @Override
+    public void writePages(List<Page> pages) throws IOException {
+        long[] offsets = new long[pages.size()];
+        byte[][] blocks = new byte[pages.size()][];
+        for (int i = 0; i < blocks.length; i++) {
+            Page page = pages.get(i);
+            debugPageWrite(page);
+            offsets[i] = pageOffset(page.getId());
+            blocks[i] = page.getPageData();
+        }
+        file.write(offsets, blocks);
+    }
+
+    @Override
+    public void force() throws IOException {
+        file.force();
+    }
 
+    private void debugPageWrite(Page page) {
         if (Config.debugPageWrite()) {
             logger.info(String.format("[write page]write page %s, id: %s", page, page.getId()));
             if (page.getClass() == BTreeRootPtrPage.class) {
@@ -167,17 +181,21 @@ public class BTreeFile implements DbFile {
                 }
             }
         }
+    }
 
-        byte[] data = page.getPageData();
-        RandomAccessFile rf = new RandomAccessFile(f, "rw");
-        if (id.pgcateg() == BTreePageId.ROOT_PTR) {
-            rf.write(data);
-            rf.close();
-        } else {
-            rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().getPageNumber() - 1) * BufferPool.getPageSize());
-            rf.write(data);
-            rf.close();
-        }
+    /**
+     * Returns the offset of the given page in the file.
+     */
+    private static long pageOffset(PageId id) {
+        return ((BTreePageId) id).pgcateg() == BTreePageId.ROOT_PTR ? 0 : pageOffset(id.getPageNumber());
+    }
+
+    /**
+     * Returns the offset of the given page in the file. Page 0 is the root
+     * pointer page, the other pages follow it.
+     */
+    private static long pageOffset(int pageNumber) {
+        return BTreeRootPtrPage.getPageSize() + (long) (pageNumber - 1) * BufferPool.getPageSize();
     }
 
     /**
@@ -185,7 +203,21 @@ public class BTreeFile implements DbFile {
      */
     public int numPages() {
         // we only ever write full pages
-        return (int) ((f.length() - BTreeRootPtrPage.getPageSize()) / BufferPool.getPageSize());
+        try {
+            return (int) ((file.refreshSize() - BTreeRootPtrPage.getPageSize()) / BufferPool.getPageSize());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Serve page reads of this file from memory mappings instead of reading
+     * them through the file channel.
+     *
+     * @see PageFile#setMemoryMapped(boolean)
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        file.setMemoryMapped(memoryMapped);
     }
 
     /**
@@ -196,68 +228,66 @@ public class BTreeFile implements DbFile {
     }
 
     /**
-     * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-     * the left-most page possibly containing the key field f. It locks all internal
-     * nodes along the path to the leaf node with READ_ONLY permission, and locks the
-     * leaf node with permission perm.
+     * Find and lock the left-most leaf page possibly containing the key field f,
+     * locked with permission perm. The inner pages on the way down are not
+     * locked, only latched: the descent holds a shared latch on a page until
+     * it has latched the child it goes on to (latch crabbing), so that it
+     * never sees a page in the middle of a split or merge, and gives up the
+     * latch of the parent once it has locked the leaf. A writer that
+     * restructures the tree only makes readers wait for as long as it
+     * changes the pages in question, not until it commits.
+     * <p>
+     * Nobody may wait for a lock with a latch held. If the leaf is locked
+     * by another transaction, the latch is released, the lock waited for,
+     * and the descent starts over, since the tree may have changed by then.
      * <p>
      * If f is null, it finds the left-most leaf page -- used for the iterator
      *
-     * @param tid        - the transaction id
-     * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
-     * @param pid        - the current page being searched
-     * @param perm       - the permissions with which to lock the leaf page
-     * @param f          - the field to search for
-     * @return the left-most leaf page possibly containing the key field f
+     * @param tid  - the transaction id
+     * @param perm - the permissions with which to lock the leaf page
+     * @param f    - the field to search for
+     * @return the left-most leaf page possibly containing the key field f, or
+     * null if the tree has no root yet
      */
-    private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
-                                       Field f)
+    BTreeLeafPage findLeafPage(TransactionId tid, Permissions perm, Field f)
             throws DbException, TransactionAbortedException {
         // some code goes here
-        if (pid.pgcateg() == BTreePageId.LEAF) {
-            return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
-        }
-
-        BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, perm);
-        BTreeInternalPageIterator entryIt = new BTreeInternalPageIterator(page);
-        BTreePageId childId = null;
-
-        if (f == null) {
-            childId = page.getChildId(0);
-            return findLeafPage(tid, dirtypages, childId, Permissions.READ_ONLY, f);
-        }
-
-        BTreeEntry entry = null;
-        while (entryIt.hasNext()) {
-            entry = entryIt.next();
-            if (entry.getKey().compare(Op.GREATER_THAN_OR_EQ, f)) {
-                childId = entry.getLeftChild();
-                break;
+        BufferPool pool = Database.getBufferPool();
+        while (true) {
+            BTreePageId latched = BTreeRootPtrPage.getId(tableid);
+            BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) pool.latchPage(latched, Permissions.READ_ONLY);
+            BTreePageId pid;
+            Page leaf;
+            try {
+                pid = rootPtr.getRootId();
+                if (pid == null) {
+                    return null;
+                }
+                while (pid.pgcateg() != BTreePageId.LEAF) {
+                    BTreeInternalPage page = (BTreeInternalPage) pool.latchPage(pid, Permissions.READ_ONLY);
+                    pool.unlatchPage(latched);
+                    latched = pid;
+                    pid = childFor(page, f);
+                }
+                leaf = pool.tryGetPage(tid, pid, perm);
+            } finally {
+                pool.unlatchPage(latched);
             }
+            if (leaf != null) {
+                return (BTreeLeafPage) leaf;
+            }
+            pool.lockPage(tid, pid, perm);
         }
-
-        if (childId == null) {
-            childId = entry.getRightChild();
-        }
-
-        return findLeafPage(tid, dirtypages, childId, Permissions.READ_ONLY, f);
     }
 
     /**
-     * Convenience method to find a leaf page when there is no dirtypages HashMap.
-     * Used by the BTreeFile iterator.
-     *
-     * @param tid  - the transaction id
-     * @param pid  - the current page being searched
-     * @param perm - the permissions with which to lock the leaf page
-     * @param f    - the field to search for
-     * @return the left-most leaf page possibly containing the key field f
-     * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)
+     * @return the child of an internal page whose subtree is the left-most
+     * one possibly containing the key field f, the left-most child if f is
+     * null. That is the child left of the first key greater than or equal to
+     * f, found with binary search.
      */
-    BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid, Permissions perm,
-                               Field f)
-            throws DbException, TransactionAbortedException {
-        return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
+    private BTreePageId childFor(BTreeInternalPage page, Field f) {
+        return page.getChildAt(f == null ? 0 : page.lowerBound(f));
     }
 
     /**
@@ -367,7 +397,8 @@ public class BTreeFile implements DbFile {
             return page;
         }
 
-        if (Config.getBoolProperty("debugTree")) {
+        // the dump reads the whole tree, which an operation holding latches may not
+        if (Config.getBoolProperty("debugTree") && !(dirtypages instanceof Operation)) {
             System.out.println(field + "start");
             showTreeStructure(tid, dirtypages);
         }
@@ -383,10 +414,11 @@ public class BTreeFile implements DbFile {
             parentPage = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
 
             // update root_ptr page
-            BTreeRootPtrPage rootPtrPage = getRootPtrPage(tid, dirtypages);
+            BTreeRootPtrPage rootPtrPage = (BTreeRootPtrPage) getPage(tid, dirtypages,
+                    BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
             rootPtrPage.setRootId(parentPage.getId());
         } else {
-            parentPage = (BTreeInternalPage) getPage(tid, dirtypages, parentId, Permissions.READ_ONLY);
+            parentPage = (BTreeInternalPage) getPage(tid, dirtypages, parentId, Permissions.READ_WRITE);
         }
 
         int totalEntries = page.getNumEntries();
@@ -400,11 +432,11 @@ public class BTreeFile implements DbFile {
             page.deleteKeyAndLeftChild(entry);
             insertEntry(tid, dirtypages, newPage, entry);
 
-            BTreeLeafPage left = (BTreeLeafPage) getPage(tid, dirtypages, entry.getLeftChild(), Permissions.READ_ONLY);
+            BTreePage left = (BTreePage) getPage(tid, dirtypages, entry.getLeftChild(), Permissions.READ_WRITE);
             left.setParentId(newPage.getId());
         }
 
-        BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, entry.getRightChild(), Permissions.READ_ONLY);
+        BTreePage right = (BTreePage) getPage(tid, dirtypages, entry.getRightChild(), Permissions.READ_WRITE);
         right.setParentId(newPage.getId());
 
         Field key = entry.getKey();
@@ -419,7 +451,8 @@ public class BTreeFile implements DbFile {
         BTreeEntry parentEntry = new BTreeEntry(entry.getKey(), newPage.getId(), page.getId());
         insertEntry(tid, dirtypages, parentPage, parentEntry);
 
-        if (Config.getBoolProperty("debugTree")) {
+        // the dump reads the whole tree, which an operation holding latches may not
+        if (Config.getBoolProperty("debugTree") && !(dirtypages instanceof Operation)) {
             System.out.println(field + "end");
             showTreeStructure(tid, dirtypages);
         }
@@ -553,7 +586,13 @@ public class BTreeFile implements DbFile {
         if (dirtypages.containsKey(pid)) {
             return dirtypages.get(pid);
         } else {
-            Page p = Database.getBufferPool().getPage(tid, pid, perm);
+            Page p;
+            if (dirtypages instanceof Operation && pid.pgcateg() != BTreePageId.LEAF
+                    && pid.pgcateg() != BTreePageId.HEADER) {
+                p = ((Operation) dirtypages).latch(tid, pid, perm);
+            } else {
+                p = Database.getBufferPool().getPage(tid, pid, perm);
+            }
             if (perm == Permissions.READ_WRITE) {
                 dirtypages.put(pid, p);
             }
@@ -573,30 +612,43 @@ public class BTreeFile implements DbFile {
      */
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
-        HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+        Operation op = new Operation();
+        Field key = t.getField(keyField);
 
-        // get a read lock on the root pointer page and use it to locate the root page
-        BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-        BTreePageId rootId = rootPtr.getRootId();
+        // create the root pointer page and the root page if necessary
+        BTreeRootPtrPage rootPtr = getRootPtrPage(tid, op);
 
-        if (rootId == null) { // the root has just been created, so set the root pointer to point to it
-            rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-            rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-            rootPtr.setRootId(rootId);
+        // find and lock the left-most leaf page corresponding to the key field
+        BTreeLeafPage leafPage;
+        while ((leafPage = findLeafPage(tid, Permissions.READ_WRITE, key)) == null) {
+            // the root has just been created, so set the root pointer to point to it
+            try {
+                rootPtr = (BTreeRootPtrPage) getPage(tid, op, rootPtr.getId(), Permissions.READ_WRITE);
+                if (rootPtr.getRootId() == null) {
+                    rootPtr.setRootId(new BTreePageId(tableid, numPages(), BTreePageId.LEAF));
+                }
+            } finally {
+                op.release(tid);
+            }
         }
+        op.put(leafPage.getId(), leafPage);
 
-        // find and lock the left-most leaf page corresponding to the key field,
-        // and split the leaf page if there are no more slots available
-        BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+        // split the leaf page if there are no more slots available
         if (leafPage.getNumEmptySlots() == 0) {
-            leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));
+            latchSplit(tid, op, leafPage);
+            try {
+                leafPage = splitLeafPage(tid, op, leafPage, key);
+            } finally {
+                op.release(tid);
+            }
+            freePages(tid, op);
         }
 
         // insert the tuple into the leaf page
         leafPage.insertTuple(t);
 
         ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
-        dirtyPagesArr.addAll(dirtypages.values());
+        dirtyPagesArr.addAll(op.values());
         return dirtyPagesArr;
     }
 
@@ -1036,7 +1088,8 @@ public class BTreeFile implements DbFile {
 
         if (parent.getNumEntries() == 0) {
             setEmptyPage(tid, dirtypages, parent.getId().getPageNumber());
-            BTreeRootPtrPage rootPtrPage = getRootPtrPage(tid, dirtypages);
+            BTreeRootPtrPage rootPtrPage = (BTreeRootPtrPage) getPage(tid, dirtypages,
+                    BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
             rootPtrPage.setRootId(leftPage.getId());
         }
     }
@@ -1099,28 +1152,278 @@ public class BTreeFile implements DbFile {
      */
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
-        HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+        Operation op = new Operation();
 
         BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
                 BTreePageId.LEAF);
-        BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+        BTreeLeafPage page = (BTreeLeafPage) getPage(tid, op, pageId, Permissions.READ_WRITE);
         page.deleteTuple(t);
 
         // if the page is below minimum occupancy, get some tuples from its siblings
         // or merge with one of the siblings
         int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples() / 2; // ceiling
         if (page.getNumEmptySlots() > maxEmptySlots) {
-            handleMinOccupancyPage(tid, dirtypages, page);
+            latchMerge(tid, op, page);
+            try {
+                handleMinOccupancyPage(tid, op, page);
+            } finally {
+                op.release(tid);
+            }
+            freePages(tid, op);
         }
 
         ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
-        dirtyPagesArr.addAll(dirtypages.values());
+        dirtyPagesArr.addAll(op.values());
         return dirtyPagesArr;
     }
 
+    /**
+     * Load tuples sorted on the key field into this BTreeFile bottom up,
+     * instead of inserting them one at a time. The tuples are appended to the
+     * right-most leaf until it holds its share of the fill factor, then to a
+     * new leaf to the right of it, which is added to the right-most page of
+     * the level above; that page is filled the same way, and so on up to the
+     * root. No page is split and no page is searched for the place of a
+     * tuple. The tree may be empty or hold tuples already, as long as none of
+     * them has a key greater than the first tuple loaded, so that sorted
+     * batches loaded one after the other are appended to the right edge of
+     * the tree. Input that does not fit in memory can be sorted with an
+     * {@link OrderBy} on the key field, which merges sorted runs from disk.
+     * <p>
+     * The new pages are appended to the end of the file in extents, so that
+     * the leaves follow each other on disk in key order; pages of the last
+     * extent that are not used are marked empty. At the end, the pages on the
+     * right edge below minimum occupancy take tuples or entries from their
+     * left sibling or are merged with it, as after a delete.
+     * <p>
+     * The load locks the root pointer page and the right edge of the tree
+     * with read-write permission until the transaction completes, so inserts
+     * that reach the right edge wait for it. The inner pages it changes are
+     * latched while they are changed, as by a split.
+     *
+     * @param tid        - the transaction id
+     * @param sorted     - the tuples to load, sorted on the key field. It is
+     *                   opened and closed by the load.
+     * @param fillFactor - the fraction of each page to fill, from 0.5 to 1;
+     *                   the rest is left for later inserts
+     * @return the number of tuples loaded
+     * @throws DbException if the tuples are not sorted on the key field, or
+     *                     the first key is less than a key in the tree
+     */
+    public int bulkLoad(TransactionId tid, OpIterator sorted, double fillFactor)
+            throws DbException, IOException, TransactionAbortedException {
+        if (fillFactor < 0.5 || fillFactor > 1) {
+            throw new IllegalArgumentException("fill factor must be between 0.5 and 1");
+        }
+        BulkLoad load = new BulkLoad(tid, fillFactor);
+        int loaded = 0;
+        sorted.open();
+        try {
+            while (sorted.hasNext()) {
+                load.add(sorted.next());
+                loaded++;
+            }
+            load.finish();
+        } finally {
+            sorted.close();
+        }
+        return loaded;
+    }
+
+    /**
+     * Prepare the split of a full leaf page, and of as many of its ancestors as
+     * are full: lock all pages the split changes, allocate the new pages it
+     * needs, then latch the inner pages among them from the top down. The
+     * locks are waited for before any latch is taken, nobody may wait for a
+     * lock with a latch held. The parent pointers followed up the tree cannot
+     * change under us, since a page's parent pointer is only changed by
+     * whoever holds the page's lock.
+     *
+     * @param tid  - the transaction id
+     * @param op   - the operation, which holds the latches until it is released
+     * @param page - the full leaf page, locked with read-write permission
+     * @see #splitLeafPage(TransactionId, HashMap, BTreeLeafPage, Field)
+     */
+    private void latchSplit(TransactionId tid, Operation op, BTreeLeafPage page)
+            throws DbException, IOException, TransactionAbortedException {
+        BufferPool pool = Database.getBufferPool();
+        TreeMap<Integer, Set<BTreePageId>> inner = new TreeMap<>(Comparator.reverseOrder());
+        if (page.getLeftSiblingId() != null) {
+            pool.lockPage(tid, page.getLeftSiblingId(), Permissions.READ_WRITE);
+        }
+        int newInternalPages = 0;
+        BTreePageId parentId = page.getParentId();
+        for (int height = 1; ; height++) {
+            pool.lockPage(tid, parentId, Permissions.READ_WRITE);
+            if (parentId.pgcateg() == BTreePageId.ROOT_PTR) {
+                // the root splits, and a new root goes on top
+                inner.computeIfAbsent(Integer.MAX_VALUE, h -> new HashSet<>()).add(parentId);
+                newInternalPages++;
+                break;
+            }
+            inner.computeIfAbsent(height, h -> new HashSet<>()).add(parentId);
+            BTreeInternalPage parent = (BTreeInternalPage) pool.getPage(tid, parentId, Permissions.READ_WRITE);
+            if (parent.getNumEmptySlots() > 0) {
+                break;
+            }
+            // the parent splits too, and the children of the entries that
+            // move to its new sibling get a new parent
+            newInternalPages++;
+            int moveEntries = parent.getNumEntries() / 2;
+            Iterator<BTreeEntry> it = parent.iterator();
+            BTreeEntry entry = null;
+            for (int i = 0; i < moveEntries; i++) {
+                entry = it.next();
+                lockChild(tid, inner, height - 1, entry.getLeftChild());
+            }
+            lockChild(tid, inner, height - 1, entry.getRightChild());
+            parentId = parent.getParentId();
+        }
+
+        List<PageId> emptyPages = new ArrayList<>();
+        emptyPages.add(getEmptyPage(tid, op, BTreePageId.LEAF).getId());
+        for (int i = 0; i < newInternalPages; i++) {
+            emptyPages.add(getEmptyPage(tid, op, BTreePageId.INTERNAL).getId());
+        }
+        emptyPages.forEach(op::addEmptyPage);
+        op.latchAll(tid, inner);
+    }
+
+    /**
+     * Prepare the redistribution or merge of a leaf page below minimum
+     * occupancy, and of as many of its ancestors as fall below minimum
+     * occupancy in turn, deciding between stealing and merging the same way
+     * handleMinOccupancyPage does: lock all pages that change, then latch the
+     * inner pages among them from the top down.
+     *
+     * @param tid  - the transaction id
+     * @param op   - the operation, which holds the latches until it is released
+     * @param page - the page below minimum occupancy, usually a leaf, locked
+     *             with read-write permission
+     * @see #latchSplit(TransactionId, Operation, BTreeLeafPage)
+     * @see #handleMinOccupancyPage(TransactionId, HashMap, BTreePage)
+     */
+    private void latchMerge(TransactionId tid, Operation op, BTreePage page)
+            throws DbException, TransactionAbortedException {
+        BufferPool pool = Database.getBufferPool();
+        TreeMap<Integer, Set<BTreePageId>> inner = new TreeMap<>(Comparator.reverseOrder());
+        if (page.getId().pgcateg() == BTreePageId.INTERNAL) {
+            inner.computeIfAbsent(0, h -> new HashSet<>()).add(page.getId());
+        }
+        BTreePage current = page;
+        for (int height = 1; ; height++) {
+            BTreePageId parentId = current.getParentId();
+            if (parentId.pgcateg() == BTreePageId.ROOT_PTR) {
+                break;
+            }
+            pool.lockPage(tid, parentId, Permissions.READ_WRITE);
+            inner.computeIfAbsent(height, h -> new HashSet<>()).add(parentId);
+            BTreeInternalPage parent = (BTreeInternalPage) pool.getPage(tid, parentId, Permissions.READ_WRITE);
+
+            BTreeEntry leftEntry = null;
+            BTreeEntry rightEntry = null;
+            Iterator<BTreeEntry> ite = parent.iterator();
+            while (ite.hasNext()) {
+                BTreeEntry e = ite.next();
+                if (e.getLeftChild().equals(current.getId())) {
+                    rightEntry = e;
+                    break;
+                } else if (e.getRightChild().equals(current.getId())) {
+                    leftEntry = e;
+                }
+            }
+            BTreePageId siblingId = leftEntry != null ? leftEntry.getLeftChild() : rightEntry.getRightChild();
+            lockChild(tid, inner, height - 1, siblingId);
+            BTreePage sibling = (BTreePage) pool.getPage(tid, siblingId, Permissions.READ_WRITE);
+
+            boolean merge;
+            if (current.getId().pgcateg() == BTreePageId.LEAF) {
+                BTreeLeafPage leaf = (BTreeLeafPage) current;
+                merge = sibling.getNumEmptySlots() >= leaf.getMaxTuples() - leaf.getMaxTuples() / 2;
+                BTreeLeafPage right = (BTreeLeafPage) (leftEntry != null ? current : sibling);
+                if (merge && right.getRightSiblingId() != null) {
+                    pool.lockPage(tid, right.getRightSiblingId(), Permissions.READ_WRITE);
+                }
+            } else {
+                BTreeInternalPage internal = (BTreeInternalPage) current;
+                BTreeInternalPage internalSibling = (BTreeInternalPage) sibling;
+                merge = sibling.getNumEmptySlots() >= internal.getMaxEntries() - internal.getMaxEntries() / 2;
+                if (merge) {
+                    // all children of the right page move to the left one
+                    BTreeInternalPage right = leftEntry != null ? internal : internalSibling;
+                    Iterator<BTreeEntry> it = right.iterator();
+                    BTreeEntry entry = null;
+                    while (it.hasNext()) {
+                        entry = it.next();
+                        lockChild(tid, inner, height - 2, entry.getLeftChild());
+                    }
+                    lockChild(tid, inner, height - 2, entry.getRightChild());
+                } else {
+                    // the page has lost the entry of the merge below by the time it steals
+                    int currentEntries = internal.getNumEntries() - (current == page ? 0 : 1);
+                    int moveEntries = (currentEntries + internalSibling.getNumEntries()) / 2 - currentEntries;
+                    Iterator<BTreeEntry> it = leftEntry != null
+                            ? internalSibling.reverseIterator() : internalSibling.iterator();
+                    for (int i = 0; i < moveEntries; i++) {
+                        BTreeEntry entry = it.next();
+                        lockChild(tid, inner, height - 2,
+                                leftEntry != null ? entry.getRightChild() : entry.getLeftChild());
+                    }
+                }
+            }
+            if (!merge) {
+                break;
+            }
+
+            // the merge deletes an entry from the parent
+            if (parent.getNumEntries() == 1) {
+                // the root is emptied and the merged page takes its place
+                BTreePageId rootPtrId = parent.getParentId();
+                pool.lockPage(tid, rootPtrId, Permissions.READ_WRITE);
+                inner.computeIfAbsent(Integer.MAX_VALUE, h -> new HashSet<>()).add(rootPtrId);
+                break;
+            }
+            int maxEmptySlots = parent.getMaxEntries() - parent.getMaxEntries() / 2; // ceiling
+            if (parent.getNumEmptySlots() + 1 <= maxEmptySlots) {
+                break;
+            }
+            current = parent;
+        }
+        op.latchAll(tid, inner);
+    }
+
+    /**
+     * Lock a child page that a split or merge changes with read-write
+     * permission, and record it to be latched if it is an inner page.
+     */
+    private void lockChild(TransactionId tid, TreeMap<Integer, Set<BTreePageId>> inner, int height,
+                           BTreePageId pid) throws TransactionAbortedException {
+        Database.getBufferPool().lockPage(tid, pid, Permissions.READ_WRITE);
+        if (pid.pgcateg() == BTreePageId.INTERNAL) {
+            inner.computeIfAbsent(height, h -> new HashSet<>()).add(pid);
+        }
+    }
+
+    /**
+     * Mark the pages a split or merge released as empty, and give back the
+     * new pages it allocated but did not use. This is done once the latches
+     * are released, since it may have to wait for the locks of header pages.
+     */
+    private void freePages(TransactionId tid, Operation op)
+            throws DbException, IOException, TransactionAbortedException {
+        for (int emptyPageNo : op.takeFreedPages()) {
+            try {
+                setEmptyPage(tid, op, emptyPageNo);
+            } finally {
+                op.release(tid);
+            }
+        }
+    }
+
     /**
      * Get a read lock on the root pointer page. Create the root pointer page and root page
-     * if necessary.
+     * if necessary. On behalf of an insert or delete, the root pointer page is only latched
+     * while it is read, see {@link #findLeafPage(TransactionId, Permissions, Field)}.
      *
      * @param tid        - the transaction id
      * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
@@ -1131,15 +1434,13 @@ public class BTreeFile implements DbFile {
      */
     BTreeRootPtrPage getRootPtrPage(TransactionId tid, HashMap<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
         synchronized (this) {
-            if (f.length() == 0) {
+            // the file never shrinks, only check the disk while it looks empty
+            if (file.size() == 0 && file.refreshSize() == 0) {
                 // create the root pointer page and the root page
-                BufferedOutputStream bw = new BufferedOutputStream(
-                        new FileOutputStream(f, true));
                 byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
                 byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-                bw.write(emptyRootPtrData);
-                bw.write(emptyLeafData);
-                bw.close();
+                file.append(emptyRootPtrData);
+                file.append(emptyLeafData);
             }
         }
 
@@ -1191,15 +1492,10 @@ public class BTreeFile implements DbFile {
         // at this point if headerId is null, either there are no header pages
         // or there are no free slots
         if (headerId == null) {
-            synchronized (this) {
-                // create the new page
-                BufferedOutputStream bw = new BufferedOutputStream(
-                        new FileOutputStream(f, true));
-                byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-                bw.write(emptyData);
-                bw.close();
-                emptyPageNo = numPages();
-            }
+            // create the new page
+            byte[] emptyData = BTreeInternalPage.createEmptyPageData();
+            long offset = file.append(emptyData);
+            emptyPageNo = (int) ((offset - BTreeRootPtrPage.getPageSize()) / BufferPool.getPageSize()) + 1;
         }
 
         return emptyPageNo;
@@ -1222,20 +1518,29 @@ public class BTreeFile implements DbFile {
      */
     private Page getEmptyPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int pgcateg)
             throws DbException, IOException, TransactionAbortedException {
+        if (dirtypages instanceof Operation) {
+            // a split takes the pages it allocated before it latched anything
+            BTreePageId emptyPageId = ((Operation) dirtypages).takeEmptyPage(pgcateg);
+            if (emptyPageId != null) {
+                return getPage(tid, dirtypages, emptyPageId, Permissions.READ_WRITE);
+            }
+        }
+
         // create the new page
         int emptyPageNo = getEmptyPageNo(tid, dirtypages);
         BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 
-        // write empty page to disk
-        RandomAccessFile rf = new RandomAccessFile(f, "rw");
-        rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo - 1) * BufferPool.getPageSize());
-        rf.write(BTreePage.createEmptyPageData());
-        rf.close();
-
-        // make sure the page is not in the buffer pool	or in the local cache
-        Database.getBufferPool().discardPage(newPageId);
+        // make sure the page is not in the buffer pool	or in the local cache, whatever it was
+        // used for before: a stale copy written back later would overwrite the new page
+        for (int categ : new int[]{BTreePageId.INTERNAL, BTreePageId.LEAF, BTreePageId.HEADER}) {
+            Database.getBufferPool().discardPage(new BTreePageId(tableid, emptyPageNo, categ));
+        }
         dirtypages.remove(newPageId);
 
+        // write empty page to disk
+        byte[] emptyData = BTreePage.createEmptyPageData();
+        file.write(pageOffset(emptyPageNo), emptyData, emptyData.length);
+
         return getPage(tid, dirtypages, newPageId, Permissions.READ_WRITE);
     }
 
@@ -1253,6 +1558,11 @@ public class BTreeFile implements DbFile {
      */
     protected void setEmptyPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int emptyPageNo)
             throws DbException, IOException, TransactionAbortedException {
+        if (dirtypages instanceof Operation && ((Operation) dirtypages).holdsLatches()) {
+            // updating the header pages may have to wait for their locks
+            ((Operation) dirtypages).addFreedPage(emptyPageNo);
+            return;
+        }
 
         // if this is the last page in the file (and not the only page), just
         // truncate the file
@@ -1356,7 +1666,9 @@ public class BTreeFile implements DbFile {
         Field key = entry.getKey();
 
         try {
-            if (leftId.pgcateg() == BTreePageId.LEAF) {
+            // an operation holding latches may not wait for the locks of pages it does not have yet
+            if (leftId.pgcateg() == BTreePageId.LEAF && (!(dirtypages instanceof Operation)
+                    || dirtypages.containsKey(leftId) && dirtypages.containsKey(rightId))) {
                 BTreeLeafPage left = (BTreeLeafPage) getPage(tid, dirtypages, leftId, Permissions.READ_ONLY);
                 BTreeLeafPageIterator newit = new BTreeLeafPageIterator(left);
                 Field leftLower = newit.next().getField(0);
@@ -1474,6 +1786,377 @@ public class BTreeFile implements DbFile {
         prefix += " ";
         return prefix;
     }
+
+    /**
+     * A bulk load in progress, see {@link #bulkLoad(TransactionId, OpIterator, double)}:
+     * the right edge of the tree it appends to, the tuples not written to the
+     * right-most leaf yet, and the extent new pages are taken from.
+     */
+    private class BulkLoad {
+
+        // pages of an extent, at most
+        private static final int MAX_EXTENT = 64;
+
+        private final TransactionId tid;
+        private final double fillFactor;
+        private final int leafTuples;
+
+        // the right-most page of each level, the leaf first and the root last
+        private final List<BTreePageId> edge = new ArrayList<>();
+        private final List<Tuple> pending = new ArrayList<>();
+        private int tuples; // on the right-most leaf, pending ones included
+        private Field lastKey;
+
+        private int nextPageNo;
+        private int extentLeft;
+        private int extentSize;
+
+        /**
+         * Lock the root pointer page, creating the root if necessary, and the
+         * right edge of the tree with read-write permission.
+         */
+        BulkLoad(TransactionId tid, double fillFactor)
+                throws DbException, IOException, TransactionAbortedException {
+            this.tid = tid;
+            this.fillFactor = fillFactor;
+            BufferPool pool = Database.getBufferPool();
+
+            Operation op = new Operation();
+            BTreePageId pid;
+            try {
+                BTreeRootPtrPage rootPtr = getRootPtrPage(tid, op);
+                rootPtr = (BTreeRootPtrPage) getPage(tid, op, rootPtr.getId(), Permissions.READ_WRITE);
+                if (rootPtr.getRootId() == null) {
+                    rootPtr.setRootId(new BTreePageId(tableid, numPages(), BTreePageId.LEAF));
+                }
+                pid = rootPtr.getRootId();
+            } finally {
+                op.release(tid);
+            }
+            pool.cacheDirtyPages(tid, op.values());
+
+            // nobody else changes the pages once they are locked, so they
+            // can be read without their latches
+            while (pid.pgcateg() == BTreePageId.INTERNAL) {
+                edge.add(0, pid);
+                BTreeInternalPage page = (BTreeInternalPage) pool.getPage(tid, pid, Permissions.READ_WRITE);
+                pid = page.getChildAt(page.getNumEntries());
+            }
+            edge.add(0, pid);
+            BTreeLeafPage leaf = (BTreeLeafPage) pool.getPage(tid, pid, Permissions.READ_WRITE);
+            leafTuples = Math.max(1, (int) (leaf.getMaxTuples() * fillFactor));
+            tuples = leaf.getNumTuples();
+            if (tuples > 0) {
+                lastKey = leaf.lastTuple().getField(keyField);
+            }
+        }
+
+        /**
+         * Add the next tuple, starting a new leaf if the right-most one is
+         * filled.
+         */
+        void add(Tuple t) throws DbException, IOException, TransactionAbortedException {
+            Field key = t.getField(keyField);
+            if (lastKey != null && key.compare(Op.LESS_THAN, lastKey)) {
+                throw new DbException("tuples to bulk load are not sorted on the key field");
+            }
+            lastKey = key;
+            if (tuples >= leafTuples) {
+                writePending();
+                addLeaf(key);
+                tuples = 0;
+            }
+            pending.add(t);
+            tuples++;
+        }
+
+        /**
+         * Write the pending tuples, give back the unused pages of the extent,
+         * and bring the pages on the right edge up to minimum occupancy.
+         */
+        void finish() throws DbException, IOException, TransactionAbortedException {
+            BufferPool pool = Database.getBufferPool();
+            writePending();
+
+            Operation op = new Operation();
+            for (int i = 0; i < extentLeft; i++) {
+                op.addEmptyPage(new BTreePageId(tableid, nextPageNo + i, BTreePageId.LEAF));
+            }
+            extentLeft = 0;
+            freePages(tid, op);
+            pool.cacheDirtyPages(tid, op.values());
+
+            BTreePage page;
+            while ((page = underfullEdgePage()) != null) {
+                op = new Operation();
+                if (page.getId().pgcateg() == BTreePageId.LEAF) {
+                    page = (BTreePage) getPage(tid, op, page.getId(), Permissions.READ_WRITE);
+                }
+                latchMerge(tid, op, page);
+                try {
+                    page = (BTreePage) getPage(tid, op, page.getId(), Permissions.READ_WRITE);
+                    handleMinOccupancyPage(tid, op, page);
+                } finally {
+                    op.release(tid);
+                }
+                freePages(tid, op);
+                pool.cacheDirtyPages(tid, op.values());
+            }
+        }
+
+        private void writePending() throws DbException, TransactionAbortedException {
+            if (pending.isEmpty()) {
+                return;
+            }
+            BufferPool pool = Database.getBufferPool();
+            BTreeLeafPage leaf = (BTreeLeafPage) pool.getPage(tid, edge.get(0), Permissions.READ_WRITE);
+            leaf.appendTuples(pending);
+            pool.cacheDirtyPages(tid, Collections.singletonList(leaf));
+            pending.clear();
+        }
+
+        /**
+         * Start a new right-most leaf for the tuples from the given key on,
+         * and add it to the right-most page of the level above. If that page
+         * is filled, it hands its last child over to a new page to its right,
+         * which goes to the level above in turn with the last key of the
+         * page, up to a page that is not filled or a new root.
+         */
+        private void addLeaf(Field key) throws DbException, IOException, TransactionAbortedException {
+            BufferPool pool = Database.getBufferPool();
+            int height = 1;
+            while (height < edge.size()) {
+                BTreeInternalPage page = (BTreeInternalPage) pool.getPage(tid, edge.get(height), Permissions.READ_WRITE);
+                if (hasRoom(page)) {
+                    break;
+                }
+                height++;
+            }
+
+            // a new page for every level below height, and a new root if
+            // the root is filled
+            TreeMap<Integer, Set<BTreePageId>> inner = new TreeMap<>(Comparator.reverseOrder());
+            List<BTreePageId> newPages = new ArrayList<>();
+            newPages.add(allocatePage(BTreePageId.LEAF));
+            for (int h = 1; h <= height && h < edge.size(); h++) {
+                inner.computeIfAbsent(h, x -> new HashSet<>()).add(edge.get(h));
+            }
+            for (int h = 1; h < height || h == edge.size(); h++) {
+                newPages.add(allocatePage(BTreePageId.INTERNAL));
+                inner.computeIfAbsent(h, x -> new HashSet<>()).add(newPages.get(h));
+            }
+            if (height == edge.size()) {
+                inner.computeIfAbsent(Integer.MAX_VALUE, h -> new HashSet<>()).add(BTreeRootPtrPage.getId(tableid));
+            }
+
+            Operation op = new Operation();
+            try {
+                op.latchAll(tid, inner);
+                BTreeLeafPage leaf = (BTreeLeafPage) getPage(tid, op, edge.get(0), Permissions.READ_WRITE);
+                BTreeLeafPage newLeaf = (BTreeLeafPage) getPage(tid, op, newPages.get(0), Permissions.READ_WRITE);
+                leaf.setRightSiblingId(newLeaf.getId());
+                newLeaf.setLeftSiblingId(leaf.getId());
+
+                BTreePage left = leaf;
+                BTreePage right = newLeaf;
+                for (int h = 1; ; h++) {
+                    edge.set(h - 1, right.getId());
+                    if (h == edge.size()) {
+                        BTreeInternalPage root = (BTreeInternalPage) getPage(tid, op, newPages.get(h), Permissions.READ_WRITE);
+                        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, op,
+                                BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+                        root.insertEntry(new BTreeEntry(key, left.getId(), right.getId()));
+                        root.setParentId(rootPtr.getId());
+                        rootPtr.setRootId(root.getId());
+                        left.setParentId(root.getId());
+                        right.setParentId(root.getId());
+                        edge.add(root.getId());
+                        break;
+                    }
+                    BTreeInternalPage parent = (BTreeInternalPage) getPage(tid, op, edge.get(h), Permissions.READ_WRITE);
+                    if (h == height) {
+                        parent.insertEntry(new BTreeEntry(key, left.getId(), right.getId()));
+                        right.setParentId(parent.getId());
+                        break;
+                    }
+                    BTreeInternalPage sibling = (BTreeInternalPage) getPage(tid, op, newPages.get(h), Permissions.READ_WRITE);
+                    BTreeEntry last = parent.reverseIterator().next();
+                    parent.deleteKeyAndRightChild(last);
+                    sibling.insertEntry(new BTreeEntry(key, left.getId(), right.getId()));
+                    left.setParentId(sibling.getId());
+                    right.setParentId(sibling.getId());
+                    key = last.getKey();
+                    left = parent;
+                    right = sibling;
+                }
+            } finally {
+                op.release(tid);
+            }
+            pool.cacheDirtyPages(tid, op.values());
+        }
+
+        /**
+         * @return true if an entry may still be added to an internal page on
+         * the right edge. The page is filled with one entry more than the
+         * fill factor asks for, since it hands the last one over when it
+         * gets a new sibling.
+         */
+        private boolean hasRoom(BTreeInternalPage page) {
+            return page.getNumEmptySlots() > 0
+                    && page.getNumEntries() <= Math.max(1, (int) (page.getMaxEntries() * fillFactor));
+        }
+
+        /**
+         * @return a new page at the end of the file. The file grows by
+         * extents of twice the size of the last one, up to MAX_EXTENT pages.
+         */
+        private BTreePageId allocatePage(int pgcateg) throws IOException {
+            if (extentLeft == 0) {
+                extentSize = Math.min(MAX_EXTENT, Math.max(1, 2 * extentSize));
+                long offset = file.append(new byte[extentSize * BufferPool.getPageSize()]);
+                nextPageNo = (int) ((offset - BTreeRootPtrPage.getPageSize()) / BufferPool.getPageSize()) + 1;
+                extentLeft = extentSize;
+            }
+            extentLeft--;
+            return new BTreePageId(tableid, nextPageNo++, pgcateg);
+        }
+
+        /**
+         * @return the lowest page on the right edge below minimum occupancy,
+         * other than the root, or null if there is none
+         */
+        private BTreePage underfullEdgePage() throws DbException, TransactionAbortedException {
+            BufferPool pool = Database.getBufferPool();
+            BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) pool.getPage(tid,
+                    BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+            BTreePageId pid = rootPtr.getRootId();
+            BTreePage underfull = null;
+            boolean root = true;
+            while (true) {
+                BTreePage page = (BTreePage) pool.getPage(tid, pid, Permissions.READ_WRITE);
+                if (pid.pgcateg() == BTreePageId.LEAF) {
+                    BTreeLeafPage leaf = (BTreeLeafPage) page;
+                    if (!root && leaf.getNumEmptySlots() > leaf.getMaxTuples() - leaf.getMaxTuples() / 2) {
+                        underfull = leaf;
+                    }
+                    return underfull;
+                }
+                BTreeInternalPage internal = (BTreeInternalPage) page;
+                if (!root && internal.getNumEmptySlots() > internal.getMaxEntries() - internal.getMaxEntries() / 2) {
+                    underfull = internal;
+                }
+                root = false;
+                pid = internal.getChildAt(internal.getNumEntries());
+            }
+        }
+    }
+
+    /**
+     * The dirty pages of an insert or delete, which also tracks the latches
+     * it holds on inner pages while it splits or merges pages, the new pages
+     * allocated for a split ahead of time, and the pages released by a
+     * merge, which are only marked empty once the latches are released.
+     * Inner pages that getPage() fetches with read-write permission on behalf
+     * of an operation are locked and then latched exclusively until the
+     * operation is released.
+     */
+    private static class Operation extends HashMap<PageId, Page> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final LinkedHashMap<PageId, Page> latched = new LinkedHashMap<>();
+        private final List<BTreePageId> emptyPages = new ArrayList<>();
+        private final List<Integer> freedPages = new ArrayList<>();
+
+        /**
+         * Fetch an inner page. Read-only, the page is only latched while it
+         * is read from the buffer pool, unless the operation already holds
+         * its latch.
+         */
+        Page latch(TransactionId tid, BTreePageId pid, Permissions perm)
+                throws DbException, TransactionAbortedException {
+            Page page = latched.get(pid);
+            if (page != null) {
+                return page;
+            }
+            BufferPool pool = Database.getBufferPool();
+            if (perm == Permissions.READ_ONLY) {
+                page = pool.latchPage(pid, perm);
+                pool.unlatchPage(pid);
+                return page;
+            }
+            pool.lockPage(tid, pid, perm);
+            page = pool.latchPage(pid, perm);
+            latched.put(pid, page);
+            return page;
+        }
+
+        /**
+         * Latch pages the transaction has locked with read-write permission,
+         * in the order of the map.
+         */
+        void latchAll(TransactionId tid, Map<Integer, Set<BTreePageId>> pids)
+                throws DbException, TransactionAbortedException {
+            for (Set<BTreePageId> level : pids.values()) {
+                for (BTreePageId pid : level) {
+                    latch(tid, pid, Permissions.READ_WRITE);
+                }
+            }
+        }
+
+        boolean holdsLatches() {
+            return !latched.isEmpty();
+        }
+
+        /**
+         * Mark the dirty pages dirty, so that the buffer pool does not drop
+         * them once they are no longer latched, and release all latches.
+         */
+        void release(TransactionId tid) {
+            for (Page page : values()) {
+                page.markDirty(true, tid);
+            }
+            List<PageId> pids = new ArrayList<>(latched.keySet());
+            Collections.reverse(pids);
+            for (PageId pid : pids) {
+                Database.getBufferPool().unlatchPage(pid);
+            }
+            latched.clear();
+        }
+
+        void addEmptyPage(PageId pid) {
+            emptyPages.add((BTreePageId) pid);
+        }
+
+        BTreePageId takeEmptyPage(int pgcateg) {
+            for (Iterator<BTreePageId> it = emptyPages.iterator(); it.hasNext(); ) {
+                BTreePageId pid = it.next();
+                if (pid.pgcateg() == pgcateg) {
+                    it.remove();
+                    return pid;
+                }
+            }
+            return null;
+        }
+
+        void addFreedPage(int emptyPageNo) {
+            freedPages.add(emptyPageNo);
+        }
+
+        /**
+         * @return the numbers of the pages released while the latches were
+         * held, and of the allocated pages that were not used
+         */
+        List<Integer> takeFreedPages() {
+            List<Integer> pageNos = new ArrayList<>(freedPages);
+            for (BTreePageId pid : emptyPages) {
+                pageNos.add(pid.getPageNumber());
+            }
+            freedPages.clear();
+            emptyPages.clear();
+            return pageNos;
+        }
+    }
 }
 
 /**
@@ -1502,11 +2185,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
      * Open this iterator by getting an iterator on the first leaf page
      */
     public void open() throws DbException, TransactionAbortedException {
-        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-                tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-        BTreePageId root = rootPtr.getRootId();
-        curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
-        it = curp.iterator();
+        curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
+        it = curp == null ? null : curp.iterator();
     }
 
     /**
@@ -1584,19 +2264,23 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
     /**
      * Open this iterator by getting an iterator on the first leaf page applicable
-     * for the given predicate operation
+     * for the given predicate operation, starting at the first tuple in range
      */
     public void open() throws DbException, TransactionAbortedException {
-        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-                tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-        BTreePageId root = rootPtr.getRootId();
         if (ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN
                 || ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-            curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+            curp = f.findLeafPage(tid, Permissions.READ_ONLY, ipred.getField());
+            if (curp == null) {
+                it = null;
+            } else if (ipred.getOp() == Op.GREATER_THAN) {
+                it = curp.iterator(curp.upperBound(ipred.getField()));
+            } else {
+                it = curp.iterator(curp.lowerBound(ipred.getField()));
+            }
         } else {
-            curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+            curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
+            it = curp == null ? null : curp.iterator();
         }
-        it = curp.iterator();
     }
 
     /**
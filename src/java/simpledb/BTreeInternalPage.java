@@ -45,6 +45,16 @@ public class BTreeInternalPage extends BTreePage {
         }
     }
 
+    /**
+     * Create a BTreeInternalPage of the B+ tree file in the catalog, for
+     * recovery.
+     *
+     * @see #BTreeInternalPage(BTreePageId, byte[], int)
+     */
+    public BTreeInternalPage(BTreePageId id, byte[] data) throws IOException {
+        this(id, data, keyField(id));
+    }
+
     /**
      * Create a BTreeInternalPage from a set of bytes of data read from disk.
      * The format of a BTreeInternalPage is a set of header bytes indicating
@@ -443,6 +453,7 @@ public class BTreeInternalPage extends BTreePage {
         }
         children[rid.getTupleNumber()] = e.getRightChild().getPageNumber();
         keys[rid.getTupleNumber()] = e.getKey();
+        keysChanged();
     }
 
     /**
@@ -613,6 +624,42 @@ public class BTreeInternalPage extends BTreePage {
             header[headerbyte] |= 1 << headerbit;
         else
             header[headerbyte] &= (0xFF ^ (1 << headerbit));
+        keysChanged();
+    }
+
+    protected BTreeKeys sortKeys() {
+        int[] slots = new int[numSlots];
+        Field[] fields = new Field[numSlots];
+        int n = 0;
+        // start from 1 because the first key slot is not used
+        for (int i = 1; i < numSlots; i++) {
+            if (isSlotUsed(i)) {
+                slots[n] = i;
+                fields[n++] = keys[i];
+            }
+        }
+        return new BTreeKeys(td.getFieldType(keyField), slots, fields, n);
+    }
+
+    /**
+     * Get the ith child of this page in key order, the child left of the ith
+     * key, or the right-most child if i is the number of entries. Together
+     * with {@link #lowerBound(Field)} this finds the child whose subtree is the
+     * left-most one possibly containing a key with binary search.
+     *
+     * @param i - the position of the child, from 0 to the number of entries
+     * @return the ith child page id
+     * @throws NoSuchElementException if there is no such child
+     */
+    public BTreePageId getChildAt(int i) throws NoSuchElementException {
+        if (i == 0) {
+            // a page with entries always uses slot 0 for its left-most child
+            return getChildId(0);
+        }
+        BTreeKeys sorted = sortedKeys();
+        if (i < 0 || i > sorted.size())
+            throw new NoSuchElementException();
+        return getChildId(sorted.slot(i - 1));
     }
 
     /**
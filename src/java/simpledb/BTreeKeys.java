@@ -0,0 +1,101 @@
+package simpledb;
+
+import simpledb.Predicate.Op;
+
+/**
+ * The keys of a B+ tree page in key order, packed densely, so that the page
+ * can be searched with binary search instead of stepping through its slots
+ * one compare at a time. A page keeps its entries in key order in the slots
+ * it has on disk, with unused slots in between; this is the list of used
+ * slots and their keys. Integer keys are also kept as an int[], so that a
+ * search over them compares ints rather than calling Field.compare.
+ * <p>
+ * A page builds its keys the first time it is searched and drops them
+ * whenever it changes, see {@link BTreePage#lowerBound(Field)}. They are
+ * immutable, so that readers sharing a page may build and use them
+ * concurrently.
+ */
+final class BTreeKeys {
+
+    private final int size;
+    private final int[] slots;
+    private final Field[] fields;
+    private final int[] ints; // the keys as ints, if they are integers
+
+    /**
+     * @param type   - the type of the keys
+     * @param slots  - the used slots of the page, in key order
+     * @param fields - the keys of these slots
+     * @param size   - the number of used slots
+     */
+    BTreeKeys(Type type, int[] slots, Field[] fields, int size) {
+        this.size = size;
+        this.slots = slots;
+        this.fields = fields;
+        if (type == Type.INT_TYPE) {
+            ints = new int[size];
+            for (int i = 0; i < size; i++) {
+                ints[i] = ((IntField) fields[i]).getValue();
+            }
+        } else {
+            ints = null;
+        }
+    }
+
+    /**
+     * @return the number of keys
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the slot of the ith key in key order
+     */
+    int slot(int i) {
+        return slots[i];
+    }
+
+    /**
+     * @return the number of keys less than f, which is the position of the
+     * first key greater than or equal to f
+     */
+    int lowerBound(Field f) {
+        return search(f, false);
+    }
+
+    /**
+     * @return the number of keys less than or equal to f, which is the
+     * position of the first key greater than f
+     */
+    int upperBound(Field f) {
+        return search(f, true);
+    }
+
+    private int search(Field f, boolean inclusive) {
+        int lo = 0;
+        int hi = size;
+        if (ints != null && f instanceof IntField) {
+            int key = ((IntField) f).getValue();
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (ints[mid] < key || inclusive && ints[mid] == key) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+        } else {
+            Op op = inclusive ? Op.LESS_THAN_OR_EQ : Op.LESS_THAN;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (fields[mid].compare(op, f)) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+        }
+        return lo;
+    }
+}
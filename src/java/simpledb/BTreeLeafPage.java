@@ -10,7 +10,7 @@ import java.io.*;
  * @see BTreeFile
  * @see BufferPool
  */
-public class BTreeLeafPage extends BTreePage {
+public class BTreeLeafPage extends BTreePage implements SlottedPage {
     private final byte header[];
     private final Tuple tuples[];
     private final int numSlots;
@@ -39,6 +39,15 @@ public class BTreeLeafPage extends BTreePage {
         }
     }
 
+    /**
+     * Create a BTreeLeafPage of the B+ tree file in the catalog, for recovery.
+     *
+     * @see #BTreeLeafPage(BTreePageId, byte[], int)
+     */
+    public BTreeLeafPage(BTreePageId id, byte[] data) throws IOException {
+        this(id, data, keyField(id));
+    }
+
     /**
      * Create a BTreeLeafPage from a set of bytes of data read from disk.
      * The format of a BTreeLeafPage is a set of header bytes indicating
@@ -105,6 +114,22 @@ public class BTreeLeafPage extends BTreePage {
         setBeforeImage();
     }
 
+    public int slotBitmapOffset() {
+        return 3 * INDEX_SIZE;
+    }
+
+    public int firstSlotOffset() {
+        return 3 * INDEX_SIZE + header.length;
+    }
+
+    public int slotSize() {
+        return td.getSize();
+    }
+
+    public int slotCount() {
+        return numSlots;
+    }
+
     /**
      * Retrieve the maximum number of tuples this page can hold.
      */
@@ -324,16 +349,9 @@ public class BTreeLeafPage extends BTreePage {
             throw new DbException("called addTuple on page with no empty slots.");
 
         // find the last key less than or equal to the key being inserted
-        int lessOrEqKey = -1;
-        Field key = t.getField(keyField);
-        for (int i = 0; i < numSlots; i++) {
-            if (isSlotUsed(i)) {
-                if (tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
-                    lessOrEqKey = i;
-                else
-                    break;
-            }
-        }
+        BTreeKeys sorted = sortedKeys();
+        int lessOrEq = sorted.upperBound(t.getField(keyField));
+        int lessOrEqKey = lessOrEq == 0 ? -1 : sorted.slot(lessOrEq - 1);
 
         // shift records back or forward to fill empty slot and make room for new record
         // while keeping records in sorted order
@@ -358,6 +376,34 @@ public class BTreeLeafPage extends BTreePage {
         tuples[goodSlot] = t;
     }
 
+    /**
+     * Adds tuples whose keys are not less than any key on the page to the
+     * slots after the last used one, in order, without searching the page for
+     * each of them as insertTuple does. Tuples that do not fit there, when
+     * there are empty slots before, are added with insertTuple.
+     *
+     * @param ts the tuples to add, in key order
+     * @throws DbException if the page has too few empty slots or tupledesc
+     *                     is mismatch.
+     */
+    public void appendTuples(List<Tuple> ts) throws DbException {
+        int slot = numSlots;
+        while (slot > 0 && !isSlotUsed(slot - 1)) {
+            slot--;
+        }
+        for (Tuple t : ts) {
+            if (slot == numSlots) {
+                insertTuple(t);
+                continue;
+            }
+            if (!t.getTupleDesc().equals(td))
+                throw new DbException("type mismatch, in appendTuples");
+            markSlotUsed(slot, true);
+            t.setRecordId(new RecordId(pid, slot));
+            tuples[slot++] = t;
+        }
+    }
+
     /**
      * Move a record from one slot to another slot, and update the corresponding
      * headers and RecordId
@@ -475,6 +521,20 @@ public class BTreeLeafPage extends BTreePage {
             header[headerbyte] |= 1 << headerbit;
         else
             header[headerbyte] &= (0xFF ^ (1 << headerbit));
+        keysChanged();
+    }
+
+    protected BTreeKeys sortKeys() {
+        int[] slots = new int[numSlots];
+        Field[] fields = new Field[numSlots];
+        int n = 0;
+        for (int i = 0; i < numSlots; i++) {
+            if (isSlotUsed(i)) {
+                slots[n] = i;
+                fields[n++] = tuples[i].getField(keyField);
+            }
+        }
+        return new BTreeKeys(td.getFieldType(keyField), slots, fields, n);
     }
 
     /**
@@ -485,6 +545,19 @@ public class BTreeLeafPage extends BTreePage {
         return new BTreeLeafPageIterator(this);
     }
 
+    /**
+     * @param from - the position in key order of the first tuple to return,
+     *             as found by {@link #lowerBound(Field)} or
+     *             {@link #upperBound(Field)}
+     * @return an iterator over the tuples on this page from the given position
+     * on, so that a range scan can start at the first tuple in range without
+     * stepping through the tuples before it
+     */
+    public Iterator<Tuple> iterator(int from) {
+        BTreeKeys sorted = sortedKeys();
+        return new BTreeLeafPageIterator(this, from < sorted.size() ? sorted.slot(from) : numSlots);
+    }
+
     /**
      * @return a reverse iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
      * (note that this iterator shouldn't return tuples in empty slots!)
@@ -550,6 +623,11 @@ class BTreeLeafPageIterator implements Iterator<Tuple> {
         this.p = p;
     }
 
+    public BTreeLeafPageIterator(BTreeLeafPage p, int firstSlot) {
+        this.p = p;
+        this.curTuple = firstSlot;
+    }
+
     public boolean hasNext() {
         if (nextToReturn != null)
             return true;
@@ -23,6 +23,10 @@ public abstract class BTreePage implements Page {
     protected byte[] oldData;
     protected final Byte oldDataLock = new Byte((byte) 0);
 
+    // the keys of this page in key order, built when the page is searched,
+    // null once it has changed since
+    private volatile BTreeKeys sortedKeys = null;
+
     /**
      * Create a BTreeInternalPage from a set of bytes of data read from disk.
      * The format of a BTreeInternalPage is a set of header bytes indicating
@@ -53,6 +57,14 @@ public abstract class BTreePage implements Page {
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
     }
 
+    /**
+     * @return the field the B+ tree file a page belongs to is keyed on, for
+     * creating its pages from their data alone
+     */
+    static int keyField(BTreePageId id) {
+        return ((BTreeFile) Database.getCatalog().getDatabaseFile(id.getTableId())).keyField();
+    }
+
     /**
      * @return the PageId associated with this page.
      */
@@ -128,6 +140,56 @@ public abstract class BTreePage implements Page {
             return null;
     }
 
+    /**
+     * Find the first key on this page greater than or equal to f with
+     * binary search.
+     *
+     * @param f - the key to search for
+     * @return the number of keys on this page less than f, that is the
+     * position of the first key greater than or equal to f in key order
+     */
+    public int lowerBound(Field f) {
+        return sortedKeys().lowerBound(f);
+    }
+
+    /**
+     * Find the first key on this page greater than f with binary search.
+     *
+     * @param f - the key to search for
+     * @return the number of keys on this page less than or equal to f, that
+     * is the position of the first key greater than f in key order
+     */
+    public int upperBound(Field f) {
+        return sortedKeys().upperBound(f);
+    }
+
+    /**
+     * @return the keys of this page in key order. They are built again after
+     * the page has changed; a page is only changed by a transaction that
+     * keeps everybody else from reading it meanwhile.
+     */
+    BTreeKeys sortedKeys() {
+        BTreeKeys keys = sortedKeys;
+        if (keys == null) {
+            keys = sortKeys();
+            sortedKeys = keys;
+        }
+        return keys;
+    }
+
+    /**
+     * @return the used slots of this page and their keys, in key order
+     */
+    protected abstract BTreeKeys sortKeys();
+
+    /**
+     * Drop the sorted keys of this page, to be called whenever a slot or key
+     * of the page changes.
+     */
+    protected void keysChanged() {
+        sortedKeys = null;
+    }
+
     /**
      * Returns the number of empty slots on this page.
      */
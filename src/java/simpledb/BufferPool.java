@@ -7,6 +7,14 @@ import java.io.*;
 import java.lang.invoke.MethodHandles;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -16,6 +24,30 @@ import java.util.concurrent.ConcurrentHashMap;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Pages live in a fixed table of frames. A frame is pinned while the pool is
+ * reading a page into it or writing it out, and its latch is held for the
+ * duration of that I/O, so eviction simply skips pinned frames. The mapping
+ * from PageId to frame is split into independently locked stripes: getPage
+ * calls on different pages never wait for each other, and a flush only
+ * blocks readers of the page being flushed.
+ * <p>
+ * Besides transaction locks the pool hands out page latches, see
+ * {@link #latchPage}. Access methods latch the pages that belong to no
+ * transaction in particular, like the inner nodes of a B+ tree, for as long
+ * as they read or restructure them; a latched page stays in the pool.
+ * <p>
+ * Sequential scans ask the pool to read the pages they are about to visit in
+ * the background, see {@link #prefetchPages}. Likewise a {@link PageCleaner}
+ * writes dirty pages in the background once more than cleanerHighWatermark
+ * percent of the pool is dirty, until only cleanerLowWatermark percent is.
+ * <p>
+ * The pool runs STEAL/NO FORCE: eviction may write out pages of transactions
+ * that have not committed, their changes are undone from the log if they
+ * abort, and a committing transaction only logs its pages, which are written
+ * later by eviction or checkpoints. Setting noStealForce in the config
+ * switches to NO STEAL/FORCE: only clean pages are evicted and commits write
+ * their pages out.
  *
  * @Threadsafe, all fields are final
  */
@@ -37,23 +69,145 @@ public class BufferPool {
      */
     public static final int DEFAULT_PAGES = 50;
 
-    private int numPages = 0;
-    public ConcurrentHashMap<PageId, Page> buffer;
+    /**
+     * Number of independently locked partitions of the page table.
+     */
+    private static final int NUM_STRIPES = 64;
+
+    /**
+     * Number of background threads reading pages ahead of scans.
+     */
+    private static final int PREFETCH_THREADS = 2;
 
-    // Used to evict oldest page in the buffer pool
-    public ConcurrentHashMap<PageId, Long> accessTime;
+    // shared by all buffer pools, so resetting the pool does not leak threads
+    private static final ExecutorService prefetcher = Executors.newFixedThreadPool(PREFETCH_THREADS, r -> {
+        Thread thread = new Thread(r, "prefetcher");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * A slot that holds at most one page.
+     */
+    private static final class Frame {
+        // held while the page is read into or written out of this frame
+        final ReentrantLock latch = new ReentrantLock();
+        // frames with a non-zero pin count are never evicted
+        final AtomicInteger pinCount = new AtomicInteger();
+        // null while the frame is free or its page is still being read
+        volatile Page page;
+        // LSN of the last log record describing the page, the log has to be
+        // durable up to here before the page may be written
+        volatile long pageLsn;
+        // the page data as of that record, null if the page was not logged
+        // since it was read; never modified, changes guarded by the frame's
+        // monitor
+        volatile byte[] loggedData;
+        // end of the log when the page became dirty, 0 while it is clean;
+        // changed with REC_LSN only
+        volatile long recLsn;
+        // set when the page is used, cleared by the page cleaner as it passes
+        volatile boolean referenced;
+    }
+
+    private static final AtomicLongFieldUpdater<Frame> REC_LSN =
+            AtomicLongFieldUpdater.newUpdater(Frame.class, "recLsn");
+
+    /**
+     * One partition of the page table, guarded by its own monitor.
+     */
+    private static final class Stripe {
+        final HashMap<PageId, Frame> frames = new HashMap<>();
+    }
+
+    private final int numPages;
+    private final Frame[] frames;
+    private final ConcurrentLinkedQueue<Frame> freeFrames = new ConcurrentLinkedQueue<>();
+    private final Stripe[] stripes;
+
+    // the latch of every page that was ever latched; pages are only latched
+    // by access methods, for the inner pages of their structures
+    private final ConcurrentHashMap<PageId, ReentrantReadWriteLock> pageLatches = new ConcurrentHashMap<>();
+
+    // Decides which page to evict when the buffer pool is full
+    private final EvictionPolicy evictionPolicy;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder prefetched = new LongAdder();
+
+    // number of frames with a non-zero recLSN
+    private final AtomicInteger dirtyFrames = new AtomicInteger();
+    private volatile PageCleaner cleaner;
+    // where the cleaner's next sweep over the frames starts
+    private int cleanerHand = 0;
+
+    // upper bound on the number of pages a scan reads ahead
+    private volatile int prefetchWindow = Config.getIntProperty("prefetchWindow", 64);
+
+    // NO STEAL/FORCE instead of STEAL/NO FORCE
+    private volatile boolean noStealForce = Config.getBoolProperty("noStealForce");
+
+    /**
+     * Smallest grant of work memory, in pages, an operator is given even when
+     * the others have taken all of it.
+     */
+    public static final int MIN_WORK_MEMORY_PAGES = 4;
+
+    // pages a checkpoint writes with one force of the log
+    private static final int CHECKPOINT_BATCH_PAGES = 16;
+
+    // how long an abort tries to latch the pages it puts back
+    private static final long UNDO_LATCH_NANOS = 100000000L;
+
+    // pages a flush latches and writes at a time
+    private static final int WRITE_BATCH_PAGES = 64;
+
+    // flushes go out grouped by table and in page order
+    private static final Comparator<PageId> PAGE_ORDER =
+            Comparator.comparingInt(PageId::getTableId).thenComparingInt(PageId::getPageNumber);
+
+    // memory operators may hold outside the pool for hash tables and sort
+    // runs, in pages, and how much of it is not reserved
+    private int workMemoryPages;
+    private int freeWorkMemoryPages;
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, evicting pages
+     * with the CLOCK policy.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, new ClockEvictionPolicy(numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages.
+     *
+     * @param numPages       maximum number of pages in this buffer pool.
+     * @param evictionPolicy the policy used to pick pages to evict
+     */
+    public BufferPool(int numPages, EvictionPolicy evictionPolicy) {
         // some code goes here
         this.numPages = numPages;
-        this.buffer = new ConcurrentHashMap<>();
+        this.frames = new Frame[numPages];
+        for (int i = 0; i < numPages; i++) {
+            frames[i] = new Frame();
+            freeFrames.add(frames[i]);
+        }
+        this.stripes = new Stripe[NUM_STRIPES];
+        for (int i = 0; i < NUM_STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
 
-        this.accessTime = new ConcurrentHashMap<>();
+        this.evictionPolicy = evictionPolicy;
+        setCleaner(Config.getIntProperty("cleanerHighWatermark", 50),
+                Config.getIntProperty("cleanerLowWatermark", 25),
+                Config.getIntProperty("cleanerPagesPerSecond", 4000));
+
+        this.workMemoryPages = Config.getIntProperty("workMemoryPages", numPages);
+        this.freeWorkMemoryPages = workMemoryPages;
     }
 
     public static int getPageSize() {
@@ -88,45 +242,501 @@ public class BufferPool {
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
         // block and acquire the desired lock before returning a page
-        Lock lock = null;
+        lockPage(tid, pid, perm);
+        return fetchPage(pid);
+    }
+
+    /**
+     * Acquire the lock getPage would, without retrieving the page. Blocks
+     * until the lock is granted.
+     *
+     * @throws TransactionAbortedException if tid was chosen to resolve a
+     *                                     deadlock, its changes are rolled
+     *                                     back and its locks released
+     */
+    public void lockPage(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException {
+        Lock lock = lockFor(perm);
         try {
-            if (perm.equals(Permissions.READ_ONLY)) {
-                lock = Lock.SHARED_LOCK;
-            } else if (perm.equals(Permissions.READ_WRITE)) {
-                lock = Lock.EXCLUSIVE_LOCK;
-            }
             ConcurrentStatus.acquireLock(tid, pid, lock);
-            ConcurrentStatus.showStatus();
         } catch (TransactionAbortedException e) {
-            // Release all locks hold by tid
+            // Roll back tid's changes before anybody else can lock the pages
+            // it was modifying, then release all locks hold by tid
             logger.info("acquire lock failed: " + tid + ", " + pid + ", " + lock);
+            try {
+                discardWrittenPages(tid);
+            } catch (IOException ioe) {
+                throw new RuntimeException("could not roll back " + tid, ioe);
+            }
             ConcurrentStatus.releaseAllLocks(tid);
             throw new TransactionAbortedException();
         }
+    }
+
+    /**
+     * Retrieve a page like getPage, but only if its lock can be granted
+     * right away. For callers that hold latches, which must not wait for a
+     * lock: they release their latches, wait with lockPage and start over.
+     *
+     * @return the page, or null if the lock is held by another transaction
+     */
+    public Page tryGetPage(TransactionId tid, PageId pid, Permissions perm) throws DbException {
+        if (!ConcurrentStatus.tryAcquireLock(tid, pid, lockFor(perm))) {
+            return null;
+        }
+        return fetchPage(pid);
+    }
 
-        Page page = this.buffer.get(pid);
+    private static Lock lockFor(Permissions perm) {
+        return perm.equals(Permissions.READ_WRITE) ? Lock.EXCLUSIVE_LOCK : Lock.SHARED_LOCK;
+    }
 
-        if (page == null) {
-            DbFile f = Database.getCatalog().getDatabaseFile(pid.getTableId());
+    /**
+     * Latch a page and retrieve it, without locking it for a transaction.
+     * A latch is held for a single traversal or change of a page whose
+     * contents belong to no transaction in particular, such as an inner
+     * node of a B+ tree, and protects it from concurrent readers and
+     * writers for that long only. The page is not evicted while latched.
+     * <p>
+     * Latches are not part of deadlock detection: a thread holding latches
+     * must not wait for a lock, see {@link #tryGetPage}, and all threads have
+     * to take latches in the same order, top down in a tree.
+     *
+     * @param perm READ_ONLY for a shared latch, READ_WRITE for an
+     *             exclusive one
+     */
+    public Page latchPage(PageId pid, Permissions perm) throws DbException {
+        ReentrantReadWriteLock latch = pageLatches.computeIfAbsent(pid, k -> new ReentrantReadWriteLock());
+        if (perm.equals(Permissions.READ_WRITE)) {
+            latch.writeLock().lock();
+        } else {
+            latch.readLock().lock();
+        }
+        // once latched the page is not evicted, so the version read now is
+        // the one in the pool until the latch is released
+        try {
+            return fetchPage(pid);
+        } catch (DbException | RuntimeException e) {
+            unlatchPage(pid);
+            throw e;
+        }
+    }
+
+    /**
+     * Release a latch the current thread took with latchPage.
+     */
+    public void unlatchPage(PageId pid) {
+        ReentrantReadWriteLock latch = pageLatches.get(pid);
+        if (latch.isWriteLockedByCurrentThread()) {
+            latch.writeLock().unlock();
+        } else {
+            latch.readLock().unlock();
+        }
+    }
+
+    private boolean isLatched(PageId pid) {
+        ReentrantReadWriteLock latch = pageLatches.get(pid);
+        return latch != null && (latch.isWriteLocked() || latch.getReadLockCount() > 0);
+    }
+
+    /**
+     * Return a page from the pool, reading it in if needed.
+     */
+    private Page fetchPage(PageId pid) throws DbException {
+        Page page = lookupPage(pid);
+        if (page != null) {
+            hits.increment();
+            evictionPolicy.pageAccessed(pid);
+            return page;
+        }
+
+        misses.increment();
+        return loadPage(pid);
+    }
 
-            if (Config.debugPageRead()) {
-                logger.debug(String.format("Read page %s from %s", pid, f.getFile()));
+    private Stripe stripeFor(PageId pid) {
+        int h = pid.hashCode();
+        h ^= (h >>> 16);
+        return stripes[(h & 0x7fffffff) % stripes.length];
+    }
+
+    /**
+     * Return the cached version of a page, waiting for it if another thread
+     * is still reading it from disk.
+     *
+     * @return the page, or null if it is not in the buffer pool
+     */
+    private Page lookupPage(PageId pid) {
+        Stripe stripe = stripeFor(pid);
+        Frame frame;
+        synchronized (stripe) {
+            frame = stripe.frames.get(pid);
+            if (frame == null) {
+                return null;
+            }
+            frame.pinCount.incrementAndGet();
+        }
+        try {
+            Page page = frame.page;
+            if (page == null) {
+                // the page is being read, the loader holds the latch
+                frame.latch.lock();
+                frame.latch.unlock();
+                page = frame.page;
+            }
+            // the read may have failed, or the frame may have been reused
+            if (page == null || !pid.equals(page.getId())) {
+                return null;
+            }
+            if (!frame.referenced) {
+                frame.referenced = true;
+            }
+            return page;
+        } finally {
+            frame.pinCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Read a page that is not in the buffer pool into a free frame. The frame
+     * is mapped before the read so that concurrent requests for the same page
+     * wait for this read instead of issuing their own.
+     */
+    private Page loadPage(PageId pid) throws DbException {
+        Stripe stripe = stripeFor(pid);
+        while (true) {
+            Frame frame = allocateFrame();
+            Frame existing;
+            synchronized (stripe) {
+                existing = stripe.frames.get(pid);
+                if (existing == null) {
+                    frame.pinCount.incrementAndGet();
+                    frame.latch.lock();
+                    stripe.frames.put(pid, frame);
+                }
+            }
+            if (existing != null) {
+                // somebody else read the page in the meantime
+                freeFrames.add(frame);
+                Page page = lookupPage(pid);
+                if (page != null) {
+                    return page;
+                }
+                continue;
             }
 
-            page = f.readPage(pid);
+            try {
+                DbFile f = Database.getCatalog().getDatabaseFile(pid.getTableId());
 
-            // evict page
+                if (Config.debugPageRead()) {
+                    logger.debug(String.format("Read page %s from %s", pid, f.getFile()));
+                }
+
+                Page page = f.readPage(pid);
+                frame.page = page;
+                frame.referenced = true;
+                evictionPolicy.pageAdded(pid);
+                return page;
+            } catch (RuntimeException e) {
+                synchronized (stripe) {
+                    stripe.frames.remove(pid, frame);
+                }
+                freeFrames.add(frame);
+                throw e;
+            } finally {
+                frame.latch.unlock();
+                frame.pinCount.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Take a free frame, evicting a page if there is none.
+     */
+    private Frame allocateFrame() throws DbException {
+        Frame frame;
+        while ((frame = freeFrames.poll()) == null) {
             evictPage();
+        }
+        return frame;
+    }
+
+    /**
+     * @return the number of pages a scan should read ahead of its position.
+     * Scans never prefetch more than a quarter of the buffer pool, so pages
+     * read ahead do not push out the pages other queries are working on.
+     */
+    public int getPrefetchWindow() {
+        return Math.min(prefetchWindow, numPages / 4);
+    }
 
-            // than insert
-            buffer.put(pid, page);
+    /**
+     * Set the number of pages scans read ahead, 0 turns prefetching off.
+     */
+    public void setPrefetchWindow(int pages) {
+        this.prefetchWindow = pages;
+    }
+
+    /**
+     * Configure the page cleaner. A high watermark of 100 percent turns it
+     * off.
+     *
+     * @param highWatermark  percentage of dirty pages that starts the cleaner
+     * @param lowWatermark   percentage of dirty pages the cleaner stops at
+     * @param pagesPerSecond upper bound on the cleaner's write rate, 0 for
+     *                       no bound
+     */
+    public void setCleaner(int highWatermark, int lowWatermark, int pagesPerSecond) {
+        cleaner = new PageCleaner(this, numPages * highWatermark / 100, numPages * lowWatermark / 100,
+                pagesPerSecond);
+    }
+
+    /**
+     * @return true if only clean pages are evicted and committing
+     * transactions write out their pages, false if dirty pages are evicted
+     * too and commits only log them
+     */
+    public boolean isNoStealForce() {
+        return noStealForce;
+    }
+
+    /**
+     * Choose between NO STEAL/FORCE and STEAL/NO FORCE.
+     */
+    public void setNoStealForce(boolean noStealForce) {
+        this.noStealForce = noStealForce;
+    }
+
+    /**
+     * Read up to count pages of a heap file, starting at page first, into the
+     * buffer pool on a background thread. Pages that are already cached are
+     * skipped and the others are read from disk with a single read.
+     * <p>
+     * No locks are taken: getPage still locks the pages when the scan gets to
+     * them, it just finds them in the pool. Prefetching backs off when the
+     * pool is under pressure, i.e. when it would have to evict a page and no
+     * page is clean and unpinned.
+     */
+    public void prefetchPages(HeapFile file, int first, int count) {
+        int window = getPrefetchWindow();
+        if (window <= 0 || count <= 0) {
+            return;
+        }
+        int pages = Math.min(count, window);
+        prefetcher.execute(() -> {
+            try {
+                prefetch(file, first, pages);
+            } catch (RuntimeException e) {
+                logger.warn("prefetch of " + pages + " pages of table " + file.getId() + " failed", e);
+            }
+        });
+    }
+
+    private void prefetch(HeapFile file, int first, int count) {
+        // map frames for the pages that are not cached yet and hold their
+        // latches, so that getPage waits for this read instead of issuing its own
+        List<PageId> pids = new ArrayList<>(count);
+        List<Frame> reserved = new ArrayList<>(count);
+        for (int pgNo = first; pgNo < first + count; pgNo++) {
+            PageId pid = new HeapPageId(file.getId(), pgNo);
+            Stripe stripe = stripeFor(pid);
+            synchronized (stripe) {
+                if (stripe.frames.containsKey(pid)) {
+                    continue;
+                }
+            }
+
+            Frame frame = freeFrames.poll();
+            if (frame == null) {
+                try {
+                    evictPage();
+                } catch (DbException e) {
+                    break;
+                }
+                frame = freeFrames.poll();
+                if (frame == null) {
+                    break;
+                }
+            }
+
+            boolean mapped;
+            synchronized (stripe) {
+                mapped = !stripe.frames.containsKey(pid);
+                if (mapped) {
+                    frame.pinCount.incrementAndGet();
+                    frame.latch.lock();
+                    stripe.frames.put(pid, frame);
+                }
+            }
+            if (mapped) {
+                pids.add(pid);
+                reserved.add(frame);
+            } else {
+                freeFrames.add(frame);
+            }
+        }
+        if (pids.isEmpty()) {
+            return;
         }
 
-        // refresh accessTime
-        Date date = new Date();
-        accessTime.put(pid, date.getTime());
+        try {
+            int from = pids.get(0).getPageNumber();
+            int to = pids.get(pids.size() - 1).getPageNumber();
+            try {
+                file.readAhead(from, to - from + 1);
+            } catch (IOException e) {
+                // readPage reads the pages one by one
+            }
 
-        return page;
+            for (int i = 0; i < pids.size(); i++) {
+                PageId pid = pids.get(i);
+                Frame frame = reserved.get(i);
+                Page page = null;
+                try {
+                    page = file.readPage(pid);
+                    if (page != null) {
+                        frame.page = page;
+                        evictionPolicy.pageAdded(pid);
+                        prefetched.increment();
+                    }
+                } catch (RuntimeException e) {
+                    logger.debug("prefetch of " + pid + " failed", e);
+                } finally {
+                    if (page == null) {
+                        Stripe stripe = stripeFor(pid);
+                        synchronized (stripe) {
+                            stripe.frames.remove(pid, frame);
+                        }
+                    }
+                    frame.latch.unlock();
+                    frame.pinCount.decrementAndGet();
+                }
+                if (page == null) {
+                    freeFrames.add(frame);
+                }
+            }
+        } finally {
+            file.endReadAhead();
+        }
+    }
+
+    /**
+     * Put a page into the buffer pool, replacing any cached version of it.
+     */
+    private void cachePage(Page page) throws DbException {
+        PageId pid = page.getId();
+        Stripe stripe = stripeFor(pid);
+        Frame frame;
+        while (true) {
+            synchronized (stripe) {
+                frame = stripe.frames.get(pid);
+                if (frame != null) {
+                    frame.pinCount.incrementAndGet();
+                }
+            }
+            if (frame != null) {
+                // wait for a read or flush of the old version to finish
+                frame.latch.lock();
+                try {
+                    frame.page = page;
+                } finally {
+                    frame.latch.unlock();
+                    frame.pinCount.decrementAndGet();
+                }
+                evictionPolicy.pageAccessed(pid);
+                return;
+            }
+
+            frame = allocateFrame();
+            synchronized (stripe) {
+                if (!stripe.frames.containsKey(pid)) {
+                    frame.latch.lock();
+                    frame.page = page;
+                    stripe.frames.put(pid, frame);
+                    break;
+                }
+            }
+            // somebody else cached the page in the meantime
+            freeFrames.add(frame);
+        }
+        try {
+            evictionPolicy.pageAdded(pid);
+        } finally {
+            frame.latch.unlock();
+        }
+    }
+
+    /**
+     * @return the ids of all pages currently in the buffer pool
+     */
+    private List<PageId> residentPages() {
+        List<PageId> pids = new ArrayList<>(numPages);
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                pids.addAll(stripe.frames.keySet());
+            }
+        }
+        return pids;
+    }
+
+    /**
+     * Reserve memory for an operator that keeps tuples in memory, such as the
+     * hash table of a join. Operators spill to disk rather than use more than
+     * they were granted, so the total memory held by all operators stays
+     * bounded. One operator is granted at most half of the memory that is
+     * free, so concurrent operators each get a share, and at least
+     * {@link #MIN_WORK_MEMORY_PAGES}, so it can make progress.
+     *
+     * @param pages the number of pages the operator would like
+     * @return the number of pages granted, to be given back with
+     * {@link #releaseWorkMemory(int)}
+     */
+    public synchronized int reserveWorkMemory(int pages) {
+        int granted = Math.max(MIN_WORK_MEMORY_PAGES, Math.min(pages, freeWorkMemoryPages / 2));
+        freeWorkMemoryPages -= granted;
+        return granted;
+    }
+
+    /**
+     * Give back memory granted by {@link #reserveWorkMemory(int)}.
+     */
+    public synchronized void releaseWorkMemory(int pages) {
+        freeWorkMemoryPages += pages;
+    }
+
+    /**
+     * @return the total memory operators may reserve, in pages
+     */
+    public synchronized int getWorkMemoryPages() {
+        return workMemoryPages;
+    }
+
+    /**
+     * Set the total memory operators may reserve, in pages.
+     */
+    public synchronized void setWorkMemoryPages(int pages) {
+        freeWorkMemoryPages += pages - workMemoryPages;
+        workMemoryPages = pages;
+    }
+
+    /**
+     * @return the number of pages read into the buffer pool by prefetching
+     */
+    public long getPrefetchCount() {
+        return prefetched.sum();
+    }
+
+    /**
+     * @return the number of getPage calls served from the buffer pool
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of getPage calls that had to read the page from disk
+     */
+    public long getMissCount() {
+        return misses.sum();
     }
 
     /**
@@ -139,7 +749,7 @@ public class BufferPool {
      * @param pid the ID of the page to unlock
      */
     public void releasePage(TransactionId tid, PageId pid) {
-        ConcurrentStatus.releaseAllLocks(pid);
+        ConcurrentStatus.releaseLock(tid, pid);
     }
 
     /**
@@ -167,22 +777,128 @@ public class BufferPool {
      */
     public void transactionComplete(TransactionId tid, boolean commit)
             throws IOException {
-        for (PageId pageId : buffer.keySet()) {
-            if (commit) {
-                flushPages(tid);
-                Page page = buffer.get(pageId);
-                page.setBeforeImage();
-            } else {
-                Page page = buffer.get(pageId);
-                if (page.isDirty() != null) {
-                    discardPage(pageId);
+        if (commit) {
+            // what tid leaves behind is the version later aborts go back to
+            for (PageId pageId : ConcurrentStatus.getLockedPages(tid)) {
+                Page page = residentPage(pageId);
+                // the page may have been evicted in the meantime
+                if (page != null) {
+                    page.setBeforeImage();
                 }
             }
+        } else {
+            // tid changed only pages it holds exclusively. If it was aborted
+            // while waiting for a lock, they were put back then and its locks
+            // released, and the pages it still marked dirty may be changed
+            // by others by now
+            discardWrittenPages(tid);
         }
 
         ConcurrentStatus.removeTransaction(tid);
     }
 
+    /**
+     * Undo the changes to every page tid holds an exclusive lock on. Pages
+     * are modified before they are marked dirty, so a transaction that
+     * aborts in the middle of an operation may have changed pages that
+     * still look clean. Changes that were written out (STEAL) are rolled
+     * back from the log first, unless the transaction was rolled back
+     * already when its abort record was logged.
+     */
+    private void discardWrittenPages(TransactionId tid) throws IOException {
+        List<PageId> latched = latchForUndo(tid);
+        try {
+            if (Database.getLogFile().isLive(tid)) {
+                Database.getLogFile().rollback(tid);
+            }
+            for (PageId pageId : ConcurrentStatus.getLockedPages(tid)) {
+                if (ConcurrentStatus.holdsExclusiveLock(tid, pageId)) {
+                    undoChanges(pageId);
+                }
+            }
+        } finally {
+            unlatchPages(latched);
+        }
+    }
+
+    /**
+     * Latch the pages tid changed that access methods latch, so that nobody
+     * traverses a structure while its pages are put back one by one. The
+     * latches are only tried, and given up and tried again as a whole when
+     * one is busy, since its holder may be waiting for a latch the current
+     * thread holds; if that takes too long the pages are put back anyway.
+     *
+     * @return the pages latched, for unlatchPages
+     */
+    private List<PageId> latchForUndo(TransactionId tid) {
+        long deadline = System.nanoTime() + UNDO_LATCH_NANOS;
+        while (true) {
+            List<PageId> latched = new ArrayList<>();
+            boolean complete = true;
+            for (PageId pid : ConcurrentStatus.getLockedPages(tid)) {
+                ReentrantReadWriteLock latch = pageLatches.get(pid);
+                // a shared latch of the current thread cannot be upgraded,
+                // it keeps writers out all the same
+                if (latch == null || !ConcurrentStatus.holdsExclusiveLock(tid, pid)
+                        || (latch.getReadHoldCount() > 0 && !latch.isWriteLockedByCurrentThread())) {
+                    continue;
+                }
+                if (!latch.writeLock().tryLock()) {
+                    complete = false;
+                    break;
+                }
+                latched.add(pid);
+            }
+            if (complete || System.nanoTime() > deadline) {
+                return latched;
+            }
+            unlatchPages(latched);
+            Thread.yield();
+        }
+    }
+
+    private void unlatchPages(List<PageId> pids) {
+        for (PageId pid : pids) {
+            pageLatches.get(pid).writeLock().unlock();
+        }
+    }
+
+    /**
+     * Take the changes of an aborting transaction out of a cached page. A
+     * clean page is the same as on disk apart from them and is discarded. A
+     * dirty page may hold changes of committed transactions that are only
+     * in the log so far, so it goes back to its before image, the version
+     * the last transaction that changed it committed, and stays dirty.
+     * Changes that reached the disk are undone from the log by rollback.
+     */
+    private void undoChanges(PageId pid) {
+        Frame frame = pinFrame(pid);
+        if (frame == null) {
+            return;
+        }
+        boolean restored = false;
+        try {
+            frame.latch.lock();
+            try {
+                Page page = frame.page;
+                TransactionId dirtier = page == null ? null : page.isDirty();
+                if (dirtier != null && pid.equals(page.getId())) {
+                    Page before = page.getBeforeImage();
+                    before.markDirty(true, dirtier);
+                    frame.page = before;
+                    restored = true;
+                }
+            } finally {
+                frame.latch.unlock();
+            }
+        } finally {
+            frame.pinCount.decrementAndGet();
+        }
+        if (!restored) {
+            discardPage(pid);
+        }
+    }
+
     /**
      * Add a tuple to the specified table on behalf of transaction tid.  Will
      * acquire a write lock on the page the tuple is added to and any other
@@ -207,10 +923,8 @@ public class BufferPool {
         ArrayList<Page> pageArrayList = Database.getCatalog().getDatabaseFile(tableId).insertTuple(tid, t);
 
         for (Page page : pageArrayList) {
-            // set pages as dirty
-            page.markDirty(true, tid);
-            // put page to buffer
-            buffer.put(page.getId(), page);
+            // set pages as dirty, put page to buffer
+            cacheDirtyPage(page, tid);
         }
     }
 
@@ -239,22 +953,208 @@ public class BufferPool {
 
         // delete tuple
         int tableId = pageId.getTableId();
-        Database.getCatalog().getDatabaseFile(tableId).deleteTuple(tid, t);
+        ArrayList<Page> pageArrayList = Database.getCatalog().getDatabaseFile(tableId).deleteTuple(tid, t);
+
+        for (Page page : pageArrayList) {
+            // set pages as dirty, so they are not evicted before they are flushed
+            cacheDirtyPage(page, tid);
+        }
+    }
+
+    /**
+     * Mark pages a file changed on behalf of a transaction other than through
+     * insertTuple or deleteTuple dirty and cache them, replacing any existing
+     * versions, as those do. Used by the bulk load of a BTreeFile, which hands
+     * over the pages it changed as it goes rather than all at the end.
+     *
+     * @param tid   the transaction that changed the pages
+     * @param pages the changed pages
+     */
+    void cacheDirtyPages(TransactionId tid, Collection<Page> pages) throws DbException {
+        for (Page page : pages) {
+            cacheDirtyPage(page, tid);
+        }
     }
 
     /**
-     * Flush all dirty pages to disk.
-     * NB: Be careful using this routine -- it writes dirty data to disk so will
-     * break simpledb if running in NO STEAL mode.
+     * Mark a page dirty and cache it. If it was clean, the current end of
+     * the log becomes its recLSN: the records needed to redo its changes all
+     * come after that point.
      */
-    public synchronized void flushAllPages() throws IOException {
+    private void cacheDirtyPage(Page page, TransactionId tid) throws DbException {
+        Frame frame;
+        while (true) {
+            cachePage(page);
+            // pinned, the page is not evicted as clean before it is marked dirty
+            frame = pinFrame(page.getId());
+            if (frame == null) {
+                continue;
+            }
+            // under the latch, so that a flush in progress does not mark the
+            // page clean after it was marked dirty
+            frame.latch.lock();
+            try {
+                if (frame.page == page) {
+                    page.markDirty(true, tid);
+                    break;
+                }
+            } finally {
+                frame.latch.unlock();
+            }
+            frame.pinCount.decrementAndGet();
+        }
+        boolean dirtied = frame.recLsn == 0
+                && REC_LSN.compareAndSet(frame, 0, Math.max(1, Database.getLogFile().getEndLsn()));
+        frame.pinCount.decrementAndGet();
+        if (dirtied && dirtyFrames.incrementAndGet() > cleaner.getHighWatermark()) {
+            wakeCleaner();
+        }
+    }
+
+    /**
+     * Have the page cleaner run, unless it is turned off or there is nothing
+     * it may write (NO STEAL).
+     */
+    private void wakeCleaner() {
+        PageCleaner c = cleaner;
+        if (c.getHighWatermark() < numPages && !noStealForce) {
+            c.wake();
+        }
+    }
+
+    /**
+     * @return the number of pages that were marked dirty through the buffer
+     * pool and have not been written since
+     */
+    public int getDirtyPageCount() {
+        return dirtyFrames.get();
+    }
+
+    /**
+     * @return the number of pages the page cleaner wrote since it was last
+     * configured
+     */
+    public long getCleanedCount() {
+        return cleaner.getWrittenCount();
+    }
+
+    /**
+     * Write out up to max dirty pages that are neither pinned nor used since
+     * the last sweep, in page order. Called by the page cleaner, which only
+     * writes what committed transactions left behind: a page locked
+     * exclusively may be in the middle of a change, and is left to eviction.
+     * With NO STEAL the cleaner has nothing to write, commits write their
+     * pages themselves.
+     *
+     * @return the number of pages written
+     */
+    int cleanPages(int max) throws IOException {
+        if (noStealForce || max <= 0) {
+            return 0;
+        }
+        List<PageId> batch = new ArrayList<>(max);
+        // two rounds: pages skipped as recently used in the first are taken
+        // in the second unless they were used again
+        for (int i = 0; i < 2 * numPages && batch.size() < max; i++) {
+            Frame frame = frames[cleanerHand];
+            cleanerHand = (cleanerHand + 1) % numPages;
+            Page page = frame.page;
+            if (page == null || page.isDirty() == null || frame.pinCount.get() != 0
+                    || ConcurrentStatus.isExclusivelyLocked(page.getId())) {
+                continue;
+            }
+            if (frame.referenced) {
+                frame.referenced = false;
+                continue;
+            }
+            if (!batch.contains(page.getId())) {
+                batch.add(page.getId());
+            }
+        }
+        flushPages(batch, null, true);
+        return batch.size();
+    }
+
+    /**
+     * @return the dirty pages in the buffer pool with their recLSN, 0 for
+     * pages that were not marked dirty through the buffer pool
+     */
+    public Map<PageId, Long> dirtyPages() {
+        Map<PageId, Long> dirty = new HashMap<>();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (Map.Entry<PageId, Frame> e : stripe.frames.entrySet()) {
+                    Page page = e.getValue().page;
+                    if (page != null && page.isDirty() != null) {
+                        dirty.put(e.getKey(), e.getValue().recLsn);
+                    }
+                }
+            }
+        }
+        return dirty;
+    }
+
+    /**
+     * Write out the pages a checkpoint found dirty, a batch at a time in
+     * page order, while other transactions go on. Pages that have been
+     * written since the checkpoint began are skipped, whether or not they
+     * are dirty again. Every file written to is forced once at the end.
+     *
+     * @param pids     the dirty pages when the checkpoint began
+     * @param beginLsn the LSN of the checkpoint's BEGIN record
+     */
+    public void flushCheckpointPages(Collection<PageId> pids, long beginLsn) throws IOException {
+        List<PageId> sorted = new ArrayList<>(pids);
+        sorted.sort(PAGE_ORDER);
+        Set<DbFile> files = new HashSet<>();
+        List<PageId> batch = new ArrayList<>(CHECKPOINT_BATCH_PAGES);
+        Iterator<PageId> it = sorted.iterator();
+        while (it.hasNext()) {
+            PageId pid = it.next();
+            Frame frame = pinFrame(pid);
+            if (frame != null) {
+                Page page = frame.page;
+                if (page != null && page.isDirty() != null && frame.recLsn <= beginLsn) {
+                    batch.add(pid);
+                }
+                frame.pinCount.decrementAndGet();
+            }
+            if (batch.size() == CHECKPOINT_BATCH_PAGES || (!it.hasNext() && !batch.isEmpty())) {
+                flushPages(batch, files);
+                batch.clear();
+            }
+        }
+        forceFiles(files);
+    }
+
+    /**
+     * Flush all dirty pages to disk, including those of transactions that
+     * have not committed: their records go to the log first, so they can
+     * still be undone.
+     * <p>
+     * Releases all locks on the pages as well, which tests rely on to hand
+     * pages from one transaction to the next. Eviction and checkpoints
+     * write pages without touching their locks.
+     */
+    public void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        for (PageId pageId : buffer.keySet()) {
-            flushPage(pageId);
+        List<PageId> pids = residentPages();
+        flushPagesDurably(pids);
+        for (PageId pid : pids) {
+            ConcurrentStatus.releaseAllLocks(pid);
         }
     }
 
+    /**
+     * Write out the dirty pages without touching their locks. With NO FORCE
+     * the pool may hold the only copy of committed changes outside the log,
+     * so a pool that is replaced writes them first.
+     */
+    void flushDirtyPages() throws IOException {
+        flushPagesDurably(dirtyPages().keySet());
+    }
+
     /**
      * Remove the specific page id from the buffer pool.
      * Needed by the recovery manager to ensure that the
@@ -264,12 +1164,50 @@ public class BufferPool {
      * Also used by B+ tree files to ensure that deleted pages
      * are removed from the cache so they can be reused safely
      */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        buffer.remove(pid);
+        Stripe stripe = stripeFor(pid);
+        Frame frame;
+        synchronized (stripe) {
+            frame = stripe.frames.remove(pid);
+        }
+        if (frame != null) {
+            releaseFrame(pid, frame);
+        }
+    }
+
+    /**
+     * Return a frame that was just unmapped to the free list, once any
+     * in-flight read or write of its page has finished.
+     */
+    private void releaseFrame(PageId pid, Frame frame) {
+        frame.latch.lock();
+        try {
+            frame.page = null;
+            frame.pageLsn = 0;
+            frame.referenced = false;
+            markClean(frame);
+            synchronized (frame) {
+                frame.loggedData = null;
+            }
+            evictionPolicy.pageRemoved(pid);
+        } finally {
+            frame.latch.unlock();
+        }
+        freeFrames.add(frame);
+    }
 
-        accessTime.remove(pid);
+    /**
+     * @return the cached version of a page without touching the eviction
+     * policy, or null if the page is not in the buffer pool
+     */
+    private Page residentPage(PageId pid) {
+        Stripe stripe = stripeFor(pid);
+        synchronized (stripe) {
+            Frame frame = stripe.frames.get(pid);
+            return frame == null ? null : frame.page;
+        }
     }
 
     /**
@@ -277,62 +1215,370 @@ public class BufferPool {
      *
      * @param pid an ID indicating the page to flush
      */
-    private synchronized void flushPage(PageId pid) throws IOException {
+    private void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
+        flushPages(Collections.singletonList(pid));
+    }
 
-        Page page = buffer.get(pid);
-        Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
-        page.markDirty(false, null);
+    /**
+     * Flush a set of pages, logging all of them first so that a single force
+     * of the log makes every write ahead of them durable. The pages are
+     * written grouped by table and in page order, adjacent pages with a
+     * single write; the files are not forced.
+     *
+     * @param files collects the files written to, may be null
+     */
+    private void flushPages(Collection<PageId> pids, Set<DbFile> files) throws IOException {
+        flushPages(pids, files, false);
+    }
 
-//        only write raf log for heap storage structure
-        if (pid instanceof HeapPageId) {
-            TransactionId tid = new TransactionId();
-            Database.getLogFile().logWrite(tid,page.getBeforeImage(),page);
+    /**
+     * @param skipLocked whether to leave out pages that a transaction has
+     *                   locked exclusively by the time they are written
+     */
+    private void flushPages(Collection<PageId> pids, Set<DbFile> files, boolean skipLocked) throws IOException {
+        long lsn = 0;
+        for (PageId pid : pids) {
+            lsn = Math.max(lsn, logPage(pid));
         }
+        Database.getLogFile().force(lsn);
 
-        // release locks associated with the page
-        ConcurrentStatus.releaseAllLocks(pid);
+        List<PageId> sorted = new ArrayList<>(pids);
+        sorted.sort(PAGE_ORDER);
+        for (int i = 0; i < sorted.size(); i += WRITE_BATCH_PAGES) {
+            writePages(sorted.subList(i, Math.min(i + WRITE_BATCH_PAGES, sorted.size())), files, skipLocked);
+        }
+    }
+
+    private void flushPages(Collection<PageId> pids) throws IOException {
+        flushPages(pids, null);
+    }
+
+    /**
+     * Flush a set of pages and force the files they were written to, once
+     * per file.
+     */
+    private void flushPagesDurably(Collection<PageId> pids) throws IOException {
+        Set<DbFile> files = new HashSet<>();
+        flushPages(pids, files);
+        forceFiles(files);
+    }
+
+    private static void forceFiles(Set<DbFile> files) throws IOException {
+        for (DbFile file : files) {
+            file.force();
+        }
+    }
+
+    /**
+     * Write the log records for the pages a committing transaction changed,
+     * without writing the pages (NO FORCE). The changes are durable once the
+     * log is forced past the commit record, the pages stay dirty until
+     * eviction or a checkpoint writes them.
+     */
+    public void logPages(TransactionId tid) throws IOException {
+        for (PageId pid : ConcurrentStatus.getLockedPages(tid)) {
+            if (ConcurrentStatus.holdsExclusiveLock(tid, pid)) {
+                logPage(pid);
+            }
+        }
+    }
+
+    /**
+     * @return the frame holding a page, pinned, or null if the page is not
+     * in the buffer pool
+     */
+    private Frame pinFrame(PageId pid) {
+        Stripe stripe = stripeFor(pid);
+        synchronized (stripe) {
+            Frame frame = stripe.frames.get(pid);
+            if (frame != null) {
+                frame.pinCount.incrementAndGet();
+            }
+            return frame;
+        }
+    }
+
+    /**
+     * Write the log record for a page that is about to be flushed.
+     *
+     * @return the LSN the log has to be forced to before the page is written,
+     * 0 if the page is not in the buffer pool
+     */
+    private long logPage(PageId pid) throws IOException {
+        Frame frame = pinFrame(pid);
+        if (frame == null) {
+            return 0;
+        }
+        try {
+            Page page = frame.page;
+            if (page == null || !pid.equals(page.getId())) {
+                return 0;
+            }
+
+            // the log record goes out before the page, and without holding the
+            // latch: rollback holds the log while it discards pages
+            // on behalf of the transaction that dirtied it, which undo goes by;
+            // the frame's monitor keeps concurrent flushes from logging
+            // deltas against the same older data
+            TransactionId tid = page.isDirty();
+            if (tid != null) {
+                synchronized (frame) {
+                    byte[] data = page.getPageData();
+                    frame.pageLsn = Database.getLogFile().logWrite(tid, page, data, frame.loggedData, frame.pageLsn);
+                    frame.loggedData = data;
+                }
+            }
+            return frame.pageLsn;
+        } finally {
+            frame.pinCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return a copy of the page data as of the page's last log record, null
+     * if the page is not in the buffer pool or was not logged since it was
+     * read, in which case the page on disk is that version
+     */
+    byte[] getLoggedData(PageId pid) {
+        Frame frame = pinFrame(pid);
+        if (frame == null) {
+            return null;
+        }
+        try {
+            // without the frame's monitor: rollback calls this holding the
+            // log, which logPage() takes while holding the monitor
+            byte[] data = frame.loggedData;
+            return data == null ? null : data.clone();
+        } finally {
+            frame.pinCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Write pages, in page order, once the log is durable up to their page
+     * LSNs. The latches of all of them are held while they are written, in
+     * page order so that concurrent flushes do not deadlock; only readers
+     * and writers of these very pages wait.
+     * <p>
+     * A transaction may have fetched a page before it was latched, and
+     * change it while it is written. With skipLocked such pages are left
+     * alone, otherwise the page could be marked clean after the transaction
+     * marked it dirty, and its change would be lost on eviction. Without,
+     * only pages locked exclusively by whoever dirtied them are written, see
+     * {@link #changedUnmarked}. A page that
+     * is not locked exclusively once latched can only be fetched for writing
+     * after the latch is released. Pages whose page latch is held
+     * exclusively, see {@link #latchPage}, are being changed and not written
+     * either.
+     */
+    private void writePages(List<PageId> pids, Set<DbFile> files, boolean skipLocked) throws IOException {
+        List<Frame> pinned = new ArrayList<>(pids.size());
+        List<Page> pages = new ArrayList<>(pids.size());
+        try {
+            long lsn = 0;
+            for (PageId pid : pids) {
+                Frame frame = pinFrame(pid);
+                if (frame == null) {
+                    continue;
+                }
+                pinned.add(frame);
+                Page page = frame.page;
+                pages.add(page != null && pid.equals(page.getId()) ? page : null);
+                lsn = Math.max(lsn, frame.pageLsn);
+            }
+            // write ahead logging, a no-op unless the log is behind the pages;
+            // the log is not waited for with latches held
+            Database.getLogFile().force(lsn);
+
+            List<Frame> latched = new ArrayList<>(pinned.size());
+            List<ReentrantReadWriteLock> pageLatched = new ArrayList<>();
+            try {
+                List<Page> toWrite = new ArrayList<>(pinned.size());
+                List<Frame> toClean = new ArrayList<>(pinned.size());
+                for (int i = 0; i < pinned.size(); i++) {
+                    Frame frame = pinned.get(i);
+                    Page page = pages.get(i);
+                    if (page == null) {
+                        continue;
+                    }
+                    frame.latch.lock();
+                    latched.add(frame);
+                    if (skipLocked ? ConcurrentStatus.isExclusivelyLocked(page.getId()) : changedUnmarked(page)) {
+                        continue;
+                    }
+                    // a page being changed under its latch is written once it is released
+                    ReentrantReadWriteLock pageLatch = pageLatches.get(page.getId());
+                    if (pageLatch != null) {
+                        if (pageLatch.isWriteLocked() || !pageLatch.readLock().tryLock()) {
+                            continue;
+                        }
+                        pageLatched.add(pageLatch);
+                    }
+                    if (frame.page == page && !changedSinceLogged(frame, page)) {
+                        toWrite.add(page);
+                        toClean.add(frame);
+                    }
+                }
+
+                // the pages are sorted by table, one batch per file
+                int start = 0;
+                while (start < toWrite.size()) {
+                    int tableId = toWrite.get(start).getId().getTableId();
+                    int end = start + 1;
+                    while (end < toWrite.size() && toWrite.get(end).getId().getTableId() == tableId) {
+                        end++;
+                    }
+                    DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+                    file.writePages(toWrite.subList(start, end));
+                    if (files != null) {
+                        files.add(file);
+                    }
+                    start = end;
+                }
+                for (int i = 0; i < toWrite.size(); i++) {
+                    toWrite.get(i).markDirty(false, null);
+                    markClean(toClean.get(i));
+                }
+            } finally {
+                for (Frame frame : latched) {
+                    frame.latch.unlock();
+                }
+                for (ReentrantReadWriteLock pageLatch : pageLatched) {
+                    pageLatch.readLock().unlock();
+                }
+            }
+        } finally {
+            for (Frame frame : pinned) {
+                frame.pinCount.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @return true if a dirty page was changed after its last log record was
+     * written, by a transaction that is still working on it. Such a page is
+     * not written: the log could not undo or redo the changes on disk. It
+     * stays dirty and is logged again by the next flush.
+     */
+    private static boolean changedSinceLogged(Frame frame, Page page) {
+        byte[] logged = frame.loggedData;
+        return page.isDirty() != null && logged != null && !Arrays.equals(logged, page.getPageData());
+    }
+
+    /**
+     * Reset the recLSN of a frame whose page was written or dropped.
+     */
+    private void markClean(Frame frame) {
+        if (frame.recLsn != 0 && REC_LSN.getAndSet(frame, 0) != 0) {
+            dirtyFrames.decrementAndGet();
+        }
     }
 
     /**
      * Write all pages of the specified transaction to disk.
      */
-    public synchronized void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        for (PageId pageId : buffer.keySet()) {
-            if (buffer.get(pageId) != null && holdsLock(tid, pageId)) {
-                // write to log
-                Page page = buffer.get(pageId);
-
-                flushPage(pageId);
+        List<PageId> pids = new ArrayList<>();
+        for (PageId pageId : residentPages()) {
+            if (holdsLock(tid, pageId)) {
+                pids.add(pageId);
             }
         }
+        flushPagesDurably(pids);
     }
 
     /**
      * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Clean, unpinned pages are evicted first. If there are none, a dirty
+     * page is written out and evicted (STEAL): write ahead logging puts its
+     * record in the log first, so changes of a transaction that aborts later
+     * can be undone from there. With NO STEAL only clean pages are evicted.
+     * The freed frame is put on the free list.
+     *
+     * @throws DbException if every page in the buffer pool is pinned, or
+     *                     dirty with NO STEAL
      */
-    private synchronized void evictPage() throws DbException {
+    private void evictPage() throws DbException {
         // some code goes here
         // not necessary for lab1
-        if (accessTime.size() == 0) {
+        while (true) {
+            PageId victimId = chooseVictim(false);
+            if (victimId == null) {
+                if (noStealForce) {
+                    throw new DbException("all pages in the buffer pool are dirty, no page can be evicted");
+                }
+                victimId = chooseVictim(true);
+                if (victimId == null) {
+                    throw new DbException("all pages in the buffer pool are pinned, no page can be evicted");
+                }
+                // the cleaner is behind, have it write the next ones
+                wakeCleaner();
+                try {
+                    flushPage(victimId);
+                } catch (IOException e) {
+                    throw new DbException("could not write out page " + victimId + ": " + e.getMessage());
+                }
+                // evicted as a clean page unless it was dirtied again
+                continue;
+            }
+
+            // the victim may have been pinned or dirtied since it was chosen
+            Stripe stripe = stripeFor(victimId);
+            Frame frame;
+            synchronized (stripe) {
+                frame = stripe.frames.get(victimId);
+                if (frame != null && !isEvictable(frame, false)) {
+                    continue;
+                }
+                stripe.frames.remove(victimId);
+            }
+            if (frame == null) {
+                // stale entry left behind by a concurrent discard
+                evictionPolicy.pageRemoved(victimId);
+                continue;
+            }
+            releaseFrame(victimId, frame);
             return;
         }
+    }
 
-        PageId stalestPageId = Collections.min(accessTime.entrySet(), Comparator.comparingLong(Map.Entry::getValue)).getKey();
-
-        // flush in case of the page is dirty
-        Page stalestPage = buffer.get(stalestPageId);
-        if (stalestPage.isDirty() != null) {
-            try {
-                flushPage(stalestPageId);
-                discardPage(stalestPageId);
-            } catch (IOException e) {
-                e.printStackTrace();
+    private PageId chooseVictim(boolean dirty) {
+        return evictionPolicy.chooseVictim(pid -> {
+            Stripe stripe = stripeFor(pid);
+            synchronized (stripe) {
+                return isEvictable(stripe.frames.get(pid), dirty);
             }
+        });
+    }
+
+    /**
+     * Must be called with the frame's stripe locked.
+     *
+     * @param dirty whether dirty pages may be chosen too
+     */
+    private boolean isEvictable(Frame frame, boolean dirty) {
+        if (frame == null || frame.pinCount.get() != 0) {
+            return false;
         }
+        Page page = frame.page;
+        return page != null && (page.isDirty() == null || dirty && !changedUnmarked(page))
+                && !isLatched(page.getId());
+    }
+
+    /**
+     * @return true if a transaction other than the one that dirtied a page
+     * holds it exclusively. That transaction may be changing the page without
+     * having marked it dirty yet: written out now, the log record would go to
+     * the wrong transaction, and an abort would leave the change on disk.
+     */
+    private static boolean changedUnmarked(Page page) {
+        PageId pid = page.getId();
+        TransactionId dirtier = page.isDirty();
+        return ConcurrentStatus.isExclusivelyLocked(pid)
+                && (dirtier == null || !ConcurrentStatus.holdsExclusiveLock(dirtier, pid));
     }
 }
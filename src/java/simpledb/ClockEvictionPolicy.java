@@ -0,0 +1,105 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * CLOCK (second chance) eviction.
+ * <p>
+ * Resident pages sit in a circular array of frames, each with a reference
+ * bit that is set on every hit. To pick a victim the clock hand sweeps the
+ * frames, clearing set bits and stopping at the first frame whose bit is
+ * already clear. Hits and insertions are O(1) and a victim is found in
+ * amortized O(1), approximating LRU without keeping any timestamps.
+ * <p>
+ * Hits do not take the policy's lock: setting a reference bit is only a
+ * hint, so losing one to a concurrent sweep or resize is harmless.
+ */
+public class ClockEvictionPolicy implements EvictionPolicy {
+
+    private PageId[] frames;
+    private volatile boolean[] referenced;
+    private final ConcurrentHashMap<PageId, Integer> frameOf = new ConcurrentHashMap<>();
+    private final ArrayDeque<Integer> freeFrames = new ArrayDeque<>();
+
+    // number of frames handed out so far, the clock only sweeps [0, used)
+    private int used = 0;
+    private int hand = 0;
+
+    /**
+     * @param numPages expected number of resident pages; the clock grows
+     *                 if the pool temporarily holds more than this
+     */
+    public ClockEvictionPolicy(int numPages) {
+        int capacity = Math.max(1, numPages);
+        this.frames = new PageId[capacity];
+        this.referenced = new boolean[capacity];
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        Integer frame = frameOf.get(pid);
+        if (frame != null) {
+            referenced[frame] = true;
+            return;
+        }
+
+        int f;
+        if (!freeFrames.isEmpty()) {
+            f = freeFrames.pop();
+        } else {
+            if (used == frames.length) {
+                frames = Arrays.copyOf(frames, frames.length * 2);
+                referenced = Arrays.copyOf(referenced, referenced.length * 2);
+            }
+            f = used++;
+        }
+        frames[f] = pid;
+        referenced[f] = true;
+        frameOf.put(pid, f);
+    }
+
+    public void pageAccessed(PageId pid) {
+        Integer frame = frameOf.get(pid);
+        boolean[] ref = referenced;
+        if (frame != null && frame < ref.length) {
+            ref[frame] = true;
+        }
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Integer frame = frameOf.remove(pid);
+        if (frame == null) {
+            return;
+        }
+        frames[frame] = null;
+        referenced[frame] = false;
+        freeFrames.push(frame);
+    }
+
+    public synchronized PageId chooseVictim(Filter filter) {
+        if (frameOf.isEmpty()) {
+            return null;
+        }
+
+        // two full turns are enough: the first one clears every reference
+        // bit, the second one finds any evictable page
+        for (int i = 0; i < 2 * used; i++) {
+            int f = hand;
+            hand = (hand + 1) % used;
+
+            PageId pid = frames[f];
+            if (pid == null) {
+                continue;
+            }
+            if (referenced[f]) {
+                referenced[f] = false;
+                continue;
+            }
+            if (filter.isEvictable(pid)) {
+                return pid;
+            }
+        }
+        return null;
+    }
+}
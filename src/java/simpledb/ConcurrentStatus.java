@@ -3,29 +3,38 @@ package simpledb;
 import org.apache.log4j.Logger;
 
 import java.lang.invoke.MethodHandles;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
-import java.util.concurrent.locks.ReentrantLock;
-
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The lock manager. Every page has a queue of lock requests: compatible
+ * requests are granted in FIFO order and the others park until a release
+ * hands the lock over to them, so a waiter is woken as soon as the lock
+ * becomes available instead of polling for it.
+ */
 public class ConcurrentStatus {
 
     final static Logger logger = Logger.getLogger(MethodHandles.lookup().lookupClass());
 
     private static AtomicReference<ConcurrentStatus> _instance = new AtomicReference<>(new ConcurrentStatus());
 
-    private static final int POLL_INTERVAL = 20;
-    private static final int TIMEOUT = 20 * 1000;
+    // last resort in case a deadlock slips past the wait-for graph
+    private static final long TIMEOUT = TimeUnit.SECONDS.toNanos(20);
 
-    private static HashMap<PageId, Set<TransactionId>> sLockMap = new HashMap<>();
-    private static HashMap<PageId, TransactionId> xLockMap = new HashMap<>();
+    private static final ConcurrentHashMap<PageId, LockQueue> lockTable = new ConcurrentHashMap<>();
 
-    private static HashMap<TransactionId, Set<PageId>> holdPages = new HashMap<>();
+    private static final ConcurrentHashMap<TransactionId, Set<PageId>> holdPages = new ConcurrentHashMap<>();
 
-    private final WaitForGraph graph;
+    // the request each blocked transaction is waiting on
+    private static final ConcurrentHashMap<TransactionId, LockRequest> waiting = new ConcurrentHashMap<>();
 
-    private static ReentrantLock globalLock = new ReentrantLock();
+    private static volatile DeadlockVictimPolicy victimPolicy =
+            DeadlockVictimPolicy.valueOf(Config.getProperty("deadlockVictim", "YOUNGEST"));
+
+    private final WaitForGraph graph;
 
     private ConcurrentStatus() {
         this.graph = new WaitForGraph();
@@ -35,10 +44,172 @@ public class ConcurrentStatus {
         return _instance.get().graph;
     }
 
-    private static final boolean showStatus = false;
+    public static DeadlockVictimPolicy getVictimPolicy() {
+        return victimPolicy;
+    }
+
+    public static void setVictimPolicy(DeadlockVictimPolicy policy) {
+        victimPolicy = policy;
+    }
+
+    /**
+     * A pending lock request, granted by whoever releases the lock.
+     */
+    private static final class LockRequest {
+        final TransactionId tid;
+        final Lock lock;
+        final Thread thread;
+        volatile boolean granted;
+        // set when the transaction was chosen as a deadlock victim
+        volatile boolean aborted;
+
+        LockRequest(TransactionId tid, Lock lock, Thread thread) {
+            this.tid = tid;
+            this.lock = lock;
+            this.thread = thread;
+        }
+    }
+
+    /**
+     * The holders of and the waiters for the locks on one page. All fields
+     * are guarded by the queue's monitor.
+     */
+    private static final class LockQueue {
+        final PageId pid;
+        final Set<TransactionId> sharedHolders = new HashSet<>();
+        TransactionId exclusiveHolder;
+        final ArrayDeque<LockRequest> waiters = new ArrayDeque<>();
+        // set once the queue has been dropped from the lock table
+        boolean removed;
+
+        LockQueue(PageId pid) {
+            this.pid = pid;
+        }
+
+        boolean holds(TransactionId tid, Lock lock) {
+            if (tid.equals(exclusiveHolder)) {
+                return true;
+            }
+            return lock.equals(Lock.SHARED_LOCK) && sharedHolders.contains(tid);
+        }
+
+        boolean isUpgrade(TransactionId tid, Lock lock) {
+            return lock.equals(Lock.EXCLUSIVE_LOCK) && sharedHolders.contains(tid);
+        }
+
+        boolean compatible(TransactionId tid, Lock lock) {
+            if (exclusiveHolder != null && !exclusiveHolder.equals(tid)) {
+                return false;
+            }
+            if (lock.equals(Lock.SHARED_LOCK)) {
+                return true;
+            }
+            // If transaction t is the only transaction holding a shared lock on
+            // an object o, t may upgrade its lock on o to an exclusive lock.
+            return sharedHolders.isEmpty()
+                    || (sharedHolders.size() == 1 && sharedHolders.contains(tid));
+        }
+
+        void grant(TransactionId tid, Lock lock) {
+            if (lock.equals(Lock.SHARED_LOCK)) {
+                sharedHolders.add(tid);
+            } else {
+                sharedHolders.remove(tid);
+                exclusiveHolder = tid;
+            }
+            holdPages.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(pid);
+
+            if (Config.debugTransaction()) {
+                logger.debug(String.format("%s success acquire %s on %s", tid, lock, pid));
+            }
+        }
+
+        void release(TransactionId tid) {
+            sharedHolders.remove(tid);
+            if (tid.equals(exclusiveHolder)) {
+                exclusiveHolder = null;
+            }
+        }
+
+        /**
+         * Grant the requests at the head of the queue for as long as they
+         * are compatible with the current holders.
+         */
+        void grantWaiters() {
+            LockRequest head;
+            while ((head = waiters.peek()) != null && compatible(head.tid, head.lock)) {
+                waiters.poll();
+                grant(head.tid, head.lock);
+                head.granted = true;
+                waiting.remove(head.tid, head);
+                getGraph().removeEdges(head.tid);
+                LockSupport.unpark(head.thread);
+            }
+        }
+
+        /**
+         * @return the transactions a queued request waits for: the
+         * conflicting holders and every request queued ahead of it
+         */
+        List<TransactionId> blockers(LockRequest request) {
+            ArrayList<TransactionId> blockers = new ArrayList<>();
+            if (exclusiveHolder != null) {
+                blockers.add(exclusiveHolder);
+            }
+            if (request.lock.equals(Lock.EXCLUSIVE_LOCK)) {
+                blockers.addAll(sharedHolders);
+            }
+            for (LockRequest ahead : waiters) {
+                if (ahead == request) {
+                    break;
+                }
+                blockers.add(ahead.tid);
+            }
+            return blockers;
+        }
+
+        /**
+         * Hand the lock over after holders or waiters left the queue, and
+         * drop the wait-for edges to them.
+         */
+        void afterRelease() {
+            grantWaiters();
+            for (LockRequest request : waiters) {
+                getGraph().retainEdges(request.tid, blockers(request));
+            }
+            removeIfUnused();
+        }
+
+        /**
+         * Drop the queue from the lock table once nobody holds or waits for
+         * the lock any more.
+         */
+        void removeIfUnused() {
+            if (exclusiveHolder == null && sharedHolders.isEmpty() && waiters.isEmpty()) {
+                removed = true;
+                lockTable.remove(pid, this);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "S" + sharedHolders + " X[" + exclusiveHolder + "] waiting " + waiters.size();
+        }
+    }
+
+    /**
+     * Return the live lock queue of a page, creating it if needed. Must be
+     * re-checked for {@link LockQueue#removed} once its monitor is held.
+     */
+    private static LockQueue queueFor(PageId pageId) {
+        return lockTable.computeIfAbsent(pageId, LockQueue::new);
+    }
 
     /**
-     * Acquire a s/x globalLock on a page
+     * Acquire a s/x lock on a page, blocking until it is granted.
+     *
+     * @throws TransactionAbortedException if waiting for the lock would
+     *                                     deadlock or takes too long
      */
     public static void acquireLock(TransactionId transactionId, PageId pageId, Lock lock) throws TransactionAbortedException {
 
@@ -46,165 +217,301 @@ public class ConcurrentStatus {
             logger.debug(String.format("%s try to acquire %s on %s", transactionId, lock, pageId));
         }
 
-        long startTime = System.currentTimeMillis();
-        while ((System.currentTimeMillis() - startTime) < TIMEOUT) {
-            if (lock.equals(Lock.SHARED_LOCK)) {
-
-                // Check if there is deadlock before acquire the globalLock
-                // 1. add edge
-                if (xLockMap.containsKey(pageId)) {
-                    getGraph().addEdge(transactionId, xLockMap.get(pageId));
+        LockQueue queue;
+        LockRequest request;
+        while (true) {
+            queue = queueFor(pageId);
+            synchronized (queue) {
+                if (queue.removed) {
+                    continue;
                 }
-                // 2. check cycle
-                if (getGraph().containsCycle()) {
-                    throw new TransactionAbortedException();
+                if (queue.holds(transactionId, lock)) {
+                    return;
                 }
-
-                if (!xLockMap.containsKey(pageId) || xLockMap.get(pageId).equals(transactionId)) {
-                    addLock(transactionId, pageId, lock);
+                // FIFO: only jump the queue for an upgrade, whose waiters
+                // wait for this transaction anyway
+                boolean upgrade = queue.isUpgrade(transactionId, lock);
+                if (queue.compatible(transactionId, lock) && (upgrade || queue.waiters.isEmpty())) {
+                    queue.grant(transactionId, lock);
                     return;
                 }
-            } else if (lock.equals(Lock.EXCLUSIVE_LOCK)) {
 
-                // Check if there is deadlock before acquire the globalLock
-                // 1. add edge
-                if (xLockMap.containsKey(pageId)) {
-                    getGraph().addEdge(transactionId, xLockMap.get(pageId));
-                }
-                if (sLockMap.get(pageId) != null && sLockMap.get(pageId).size() != 0) {
-                    globalLock.lock();
-                    for (TransactionId tId1 : sLockMap.get(pageId)) {
-                        getGraph().addEdge(transactionId, tId1);
-                    }
-                    globalLock.unlock();
+                request = new LockRequest(transactionId, lock, Thread.currentThread());
+                if (upgrade) {
+                    queue.waiters.addFirst(request);
+                } else {
+                    queue.waiters.addLast(request);
                 }
 
-                // 2. check cycle
-                if (getGraph().containsCycle()) {
-                    logger.error("cycle detected");
-                    throw new TransactionAbortedException();
-                }
+                waiting.put(transactionId, request);
 
-                if (!xLockMap.containsKey(pageId) || xLockMap.get(pageId).equals(transactionId)) {
-                    // If transaction t is the only transaction holding a shared globalLock on
-                    // an object o, t may upgrade its globalLock on o to an exclusive globalLock.
-                    if (sLockMap.get(pageId) == null || sLockMap.get(pageId).size() == 0 || (sLockMap.get(pageId).size() == 1 && sLockMap.get(pageId).contains(transactionId))) {
-                        addLock(transactionId, pageId, lock);
-                        return;
+                // Check if waiting for the lock closes a cycle, the new edges
+                // are the only ones that can
+                List<TransactionId> cycle = getGraph().addEdges(transactionId, queue.blockers(request));
+                if (cycle != null) {
+                    TransactionId victim = chooseVictim(cycle);
+                    if (Config.debugTransaction()) {
+                        logger.debug(String.format("deadlock %s, aborting %s", cycle, victim));
+                    }
+                    if (victim.equals(transactionId) || !abortWaiter(victim)) {
+                        giveUp(queue, request);
+                        throw new TransactionAbortedException();
                     }
                 }
+                break;
             }
-            try {
-                showStatus();
-                Thread.sleep(POLL_INTERVAL);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+        }
+
+        showStatus();
+        long deadline = System.nanoTime() + TIMEOUT;
+        while (!request.granted && !request.aborted) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                logger.error(String.format("%s timed out waiting for %s on %s", transactionId, lock, pageId));
+                break;
+            }
+            LockSupport.parkNanos(queue, remaining);
+        }
+
+        synchronized (queue) {
+            if (request.granted && !request.aborted) {
+                return;
+            }
+            // a granted lock of a victim is released together with the
+            // rest of its locks when it aborts
+            if (!request.granted) {
+                giveUp(queue, request);
             }
         }
-        logger.error("timeout");
         throw new TransactionAbortedException();
     }
 
-    public synchronized static void addLock(TransactionId transactionId, PageId pageId, Lock lock) {
-        globalLock.lock();
-
-        if (lock.equals(Lock.SHARED_LOCK)) {
-            sLockMap.putIfAbsent(pageId, new HashSet<>());
-            sLockMap.get(pageId).add(transactionId);
-
-            holdPages.putIfAbsent(transactionId, new HashSet<>());
-            holdPages.get(transactionId).add(pageId);
-
-            if (Config.debugTransaction()) {
-                logger.debug(String.format("%s success acquire %s on %s", transactionId, lock, pageId));
+    /**
+     * Acquire a s/x lock on a page if that is possible without waiting.
+     * Used by callers that hold latches, which must never wait for a lock.
+     *
+     * @return false if the lock would have to be waited for
+     */
+    public static boolean tryAcquireLock(TransactionId transactionId, PageId pageId, Lock lock) {
+        while (true) {
+            LockQueue queue = queueFor(pageId);
+            synchronized (queue) {
+                if (queue.removed) {
+                    continue;
+                }
+                if (queue.holds(transactionId, lock)) {
+                    return true;
+                }
+                boolean upgrade = queue.isUpgrade(transactionId, lock);
+                if (queue.compatible(transactionId, lock) && (upgrade || queue.waiters.isEmpty())) {
+                    queue.grant(transactionId, lock);
+                    return true;
+                }
+                return false;
             }
-        } else if (lock.equals(Lock.EXCLUSIVE_LOCK)) {
-            xLockMap.put(pageId, transactionId);
+        }
+    }
 
-            holdPages.putIfAbsent(transactionId, new HashSet<>());
-            holdPages.get(transactionId).add(pageId);
+    /**
+     * Withdraw a request that has not been granted. Must hold the queue's
+     * monitor.
+     */
+    private static void giveUp(LockQueue queue, LockRequest request) {
+        queue.waiters.remove(request);
+        waiting.remove(request.tid, request);
+        getGraph().removeEdges(request.tid);
+        queue.afterRelease();
+    }
 
-            if (Config.debugTransaction()) {
-                logger.debug(String.format("%s success acquire %s on %s", transactionId, lock, pageId));
-            }
+    /**
+     * Make a blocked transaction give up its lock request and abort.
+     *
+     * @return false if the transaction is not waiting for a lock
+     */
+    private static boolean abortWaiter(TransactionId victim) {
+        LockRequest request = waiting.get(victim);
+        if (request == null) {
+            return false;
         }
-
-        globalLock.unlock();
+        request.aborted = true;
+        // the victim stops waiting right away as far as the graph is concerned
+        getGraph().removeEdges(victim);
+        LockSupport.unpark(request.thread);
+        return true;
     }
 
     /**
-     * Release a s/x globalLock on a page
+     * Pick the transaction on a wait-for cycle to abort according to the
+     * victim policy. Ties go to the youngest transaction.
      */
-    public synchronized static void releaseLock(TransactionId transactionId, PageId pageId) {
-        globalLock.lock();
+    private static TransactionId chooseVictim(List<TransactionId> cycle) {
+        Comparator<TransactionId> youngestFirst = Comparator.comparingLong(TransactionId::getId).reversed();
+        Comparator<TransactionId> order;
+        switch (victimPolicy) {
+            case FEWEST_LOCKS:
+                order = Comparator.<TransactionId>comparingInt(tid -> getLockedPageCount(tid))
+                        .thenComparing(youngestFirst);
+                break;
+            case LEAST_LOG:
+                order = Comparator.<TransactionId>comparingLong(tid -> Database.getLogFile().getLogBytes(tid))
+                        .thenComparing(youngestFirst);
+                break;
+            case YOUNGEST:
+            default:
+                order = youngestFirst;
+                break;
+        }
+        return Collections.min(cycle, order);
+    }
+
+    private static int getLockedPageCount(TransactionId transactionId) {
+        Set<PageId> pages = holdPages.get(transactionId);
+        return pages == null ? 0 : pages.size();
+    }
 
-        logger.debug(String.format("release %s's locks on %s", transactionId, pageId));
-        if (sLockMap.get(pageId) != null) {
-            sLockMap.get(pageId).remove(transactionId);
+    /**
+     * Release a s/x lock on a page
+     */
+    public static void releaseLock(TransactionId transactionId, PageId pageId) {
+        if (Config.debugTransaction()) {
+            logger.debug(String.format("release %s's locks on %s", transactionId, pageId));
         }
 
-        xLockMap.remove(pageId);
+        Set<PageId> pages = holdPages.get(transactionId);
+        if (pages != null) {
+            pages.remove(pageId);
+        }
 
-        globalLock.unlock();
+        LockQueue queue = lockTable.get(pageId);
+        if (queue == null) {
+            return;
+        }
+        synchronized (queue) {
+            queue.release(transactionId);
+            queue.afterRelease();
+        }
     }
 
     /**
      * Release all locks on a page
      */
-    public synchronized static void releaseAllLocks(PageId pageId) {
-        globalLock.lock();
-
+    public static void releaseAllLocks(PageId pageId) {
         if (Config.debugTransaction()) {
             logger.debug(String.format("release all locks on %s", pageId));
         }
 
-        sLockMap.remove(pageId);
-        xLockMap.remove(pageId);
-
-        for (TransactionId transactionId : holdPages.keySet()) {
-            holdPages.get(transactionId).remove(pageId);
+        LockQueue queue = lockTable.get(pageId);
+        if (queue == null) {
+            return;
         }
+        synchronized (queue) {
+            if (queue.exclusiveHolder != null) {
+                removeHeldPage(queue.exclusiveHolder, pageId);
+                queue.exclusiveHolder = null;
+            }
+            for (TransactionId holder : queue.sharedHolders) {
+                removeHeldPage(holder, pageId);
+            }
+            queue.sharedHolders.clear();
+            queue.afterRelease();
+        }
+    }
 
-        globalLock.unlock();
+    private static void removeHeldPage(TransactionId transactionId, PageId pageId) {
+        Set<PageId> pages = holdPages.get(transactionId);
+        if (pages != null) {
+            pages.remove(pageId);
+        }
     }
 
     /**
      * Release all locks on a transaction
      */
-    public synchronized static void releaseAllLocks(TransactionId transactionId) {
-        logger.debug(String.format("release all locks on %s", transactionId));
+    public static void releaseAllLocks(TransactionId transactionId) {
+        if (Config.debugTransaction()) {
+            logger.debug(String.format("release all locks on %s", transactionId));
+        }
 
-        if (holdPages.get(transactionId) != null) {
-            for (PageId pageId : holdPages.get(transactionId)) {
-                releaseLock(transactionId, pageId);
+        Set<PageId> pages = holdPages.remove(transactionId);
+        if (pages == null) {
+            return;
+        }
+        for (PageId pageId : pages) {
+            LockQueue queue = lockTable.get(pageId);
+            if (queue == null) {
+                continue;
+            }
+            synchronized (queue) {
+                queue.release(transactionId);
+                queue.afterRelease();
             }
         }
+    }
 
-        globalLock.lock();
-        holdPages.remove(transactionId);
-        globalLock.unlock();
+    public static boolean holdsLock(TransactionId transactionId, PageId pageId) {
+        LockQueue queue = lockTable.get(pageId);
+        if (queue == null) {
+            return false;
+        }
+        synchronized (queue) {
+            return queue.holds(transactionId, Lock.SHARED_LOCK);
+        }
     }
 
-    public synchronized static boolean holdsLock(TransactionId transactionId, PageId pageId) {
-        if (sLockMap.get(pageId) != null && sLockMap.get(pageId).contains(transactionId))
-            return true;
+    public static boolean holdsExclusiveLock(TransactionId transactionId, PageId pageId) {
+        LockQueue queue = lockTable.get(pageId);
+        if (queue == null) {
+            return false;
+        }
+        synchronized (queue) {
+            return transactionId.equals(queue.exclusiveHolder);
+        }
+    }
+
+    /**
+     * @return true if some transaction holds an exclusive lock on the page
+     */
+    public static boolean isExclusivelyLocked(PageId pageId) {
+        LockQueue queue = lockTable.get(pageId);
+        if (queue == null) {
+            return false;
+        }
+        synchronized (queue) {
+            return queue.exclusiveHolder != null;
+        }
+    }
 
-        if (xLockMap.get(pageId) != null && xLockMap.get(pageId).equals(transactionId))
-            return true;
+    /**
+     * @return a snapshot of the pages a transaction holds locks on
+     */
+    public static Set<PageId> getLockedPages(TransactionId transactionId) {
+        Set<PageId> pages = holdPages.get(transactionId);
+        return pages == null ? Collections.emptySet() : new HashSet<>(pages);
+    }
 
-        return false;
+    /**
+     * Forget all locks and waiters, for a restart after a crash.
+     */
+    public static void reset() {
+        lockTable.clear();
+        holdPages.clear();
+        waiting.clear();
+        _instance.set(new ConcurrentStatus());
     }
 
-    public synchronized static void removeTransaction(TransactionId transactionId) {
+    public static void removeTransaction(TransactionId transactionId) {
         releaseAllLocks(transactionId);
         getGraph().removeVertex(transactionId);
     }
 
-    public synchronized static void showStatus() {
-        globalLock.lock();
-        logger.debug("sLockMap: " + sLockMap);
-        logger.debug("xLockMap: " + xLockMap);
-        logger.debug("holdPages: " + holdPages);
-        globalLock.unlock();
+    public static void showStatus() {
+        if (!Config.debugTransaction()) {
+            return;
+        }
+        for (Map.Entry<PageId, LockQueue> entry : lockTable.entrySet()) {
+            synchronized (entry.getValue()) {
+                logger.debug(entry.getKey() + ": " + entry.getValue());
+            }
+        }
     }
 }
@@ -30,6 +30,15 @@ public class Config {
         return Boolean.parseBoolean(p.getProperty(key));
     }
 
+    public static String getProperty(String key, String defaultValue) {
+        return p.getProperty(key, defaultValue);
+    }
+
+    public static int getIntProperty(String key, int defaultValue) {
+        String value = p.getProperty(key);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
     public static boolean debugTransaction() {
         return getBoolProperty("debugTransaction");
     }
@@ -27,6 +27,27 @@ public interface DbFile {
      */
     public void writePage(Page p) throws IOException;
 
+    /**
+     * Push a batch of pages to disk. Files that can write adjacent pages
+     * with a single call do so, the others write the pages one by one.
+     *
+     * @param pages the pages to write, in page number order
+     * @throws IOException if a write fails
+     */
+    default void writePages(List<Page> pages) throws IOException {
+        for (Page p : pages) {
+            writePage(p);
+        }
+    }
+
+    /**
+     * Make the pages written so far durable.
+     *
+     * @throws IOException if the file cannot be forced to disk
+     */
+    default void force() throws IOException {
+    }
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
@@ -0,0 +1,24 @@
+package simpledb;
+
+/**
+ * Decides which transaction on a wait-for cycle is aborted to resolve the
+ * deadlock. Set with the deadlockVictim property in config.properties or
+ * with {@link ConcurrentStatus#setVictimPolicy}.
+ */
+public enum DeadlockVictimPolicy {
+    /**
+     * Abort the transaction that started last; it has probably done the
+     * least work.
+     */
+    YOUNGEST,
+    /**
+     * Abort the transaction holding the fewest locks, which frees the
+     * fewest pages but also throws away the least.
+     */
+    FEWEST_LOCKS,
+    /**
+     * Abort the transaction that wrote the least to the log, which is the
+     * cheapest one to roll back.
+     */
+    LEAST_LOG
+}
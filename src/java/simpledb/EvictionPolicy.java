@@ -0,0 +1,48 @@
+package simpledb;
+
+/**
+ * EvictionPolicy decides which resident page the BufferPool should give up
+ * when it needs room for a new one.
+ * <p>
+ * The BufferPool reports every change of residency and every hit to the
+ * policy, so implementations can keep their own bookkeeping and never have
+ * to scan the whole pool to find a victim.
+ *
+ * @see BufferPool#BufferPool(int, EvictionPolicy)
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Tells the policy whether a candidate victim may actually be evicted
+     * right now (e.g. it is not pinned).
+     */
+    interface Filter {
+        boolean isEvictable(PageId pid);
+    }
+
+    /**
+     * A page was read into (or put into) the buffer pool.
+     */
+    void pageAdded(PageId pid);
+
+    /**
+     * A resident page was requested again.
+     */
+    void pageAccessed(PageId pid);
+
+    /**
+     * A page left the buffer pool, either because it was evicted or
+     * because it was discarded.
+     */
+    void pageRemoved(PageId pid);
+
+    /**
+     * Choose a resident page to evict. The page is not removed from the
+     * policy's bookkeeping; the BufferPool calls {@link #pageRemoved} once it
+     * has actually dropped the page.
+     *
+     * @param filter decides which candidates are allowed to be evicted
+     * @return the victim, or null if no resident page can be evicted
+     */
+    PageId chooseVictim(Filter filter);
+}
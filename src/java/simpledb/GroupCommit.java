@@ -0,0 +1,193 @@
+package simpledb;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.invoke.MethodHandles;
+
+/**
+ * Makes log records durable in batches, so that transactions committing at
+ * the same time share one force of the log instead of forcing it one after
+ * the other.
+ * <p>
+ * A committing transaction appends its COMMIT record and parks in
+ * {@link #await(long)} until the record is durable. A single flusher thread
+ * forces the log whenever somebody is waiting, and wakes up everybody whose
+ * record made it to disk. Transactions that commit while the log is being
+ * forced are batched into the next force. Before forcing, the flusher waits
+ * up to maxWait for more committers to join the batch, unless maxBatch of
+ * them are already waiting or no other transaction is running.
+ * <p>
+ * Records are identified by their LSN. The flusher thread is started when needed and exits after a
+ * second without work.
+ */
+class GroupCommit {
+
+    final static Logger logger = Logger.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final long IDLE_MILLIS = 1000;
+
+    private final LogFile log;
+    private final int maxBatch;
+    private final long maxWaitNanos;
+
+    // all guarded by this
+    private long requested = 0;
+    private long durable = 0;
+    private long failed = 0;
+    private IOException failure = null;
+    private int waiters = 0;
+    private boolean flusherRunning = false;
+
+    private long forces = 0;
+    private long batched = 0;
+
+    /**
+     * @param log           the log to force
+     * @param maxBatch      number of waiting committers that triggers a force
+     *                      without waiting for more
+     * @param maxWaitMicros how long to wait for more committers before forcing
+     */
+    GroupCommit(LogFile log, int maxBatch, long maxWaitMicros) {
+        this.log = log;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.maxWaitNanos = maxWaitMicros * 1000;
+    }
+
+    /**
+     * Block until the log is durable up to and including the given record.
+     *
+     * @throws IOException if the log could not be forced
+     */
+    synchronized void await(long lsn) throws IOException {
+        if (lsn <= durable) {
+            return;
+        }
+        waiters++;
+        if (lsn > requested) {
+            requested = lsn;
+        }
+        notifyAll();
+        try {
+            while (durable < lsn) {
+                if (lsn <= failed) {
+                    throw new IOException("could not force the log", failure);
+                }
+                startFlusher();
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for the log to be forced");
+        } finally {
+            waiters--;
+        }
+    }
+
+    private void startFlusher() {
+        if (!flusherRunning) {
+            flusherRunning = true;
+            Thread flusher = new Thread(this::run, "log-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+    }
+
+    /**
+     * @return true if the log is durable up to and including the given record
+     */
+    synchronized boolean isDurable(long lsn) {
+        return lsn <= durable;
+    }
+
+    /**
+     * @return the LSN up to which the log is known to be durable
+     */
+    synchronized long getDurableLsn() {
+        return durable;
+    }
+
+    /**
+     * Note that the log was forced up to the given record by somebody else.
+     */
+    synchronized void advance(long lsn) {
+        if (lsn > durable) {
+            durable = lsn;
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return the number of times the flusher forced the log
+     */
+    synchronized long getForceCount() {
+        return forces;
+    }
+
+    /**
+     * @return the number of commits made durable by the flusher
+     */
+    synchronized long getBatchedCount() {
+        return batched;
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                int batch;
+                synchronized (this) {
+                    if (!awaitWork()) {
+                        flusherRunning = false;
+                        return;
+                    }
+                    // give other running transactions a chance to join
+                    long deadline = System.nanoTime() + maxWaitNanos;
+                    long remaining;
+                    while (waiters < maxBatch && log.activeTransactions() > 0
+                            && (remaining = deadline - System.nanoTime()) > 0) {
+                        wait(remaining / 1000000, (int) (remaining % 1000000));
+                    }
+                    batch = waiters;
+                }
+
+                try {
+                    long lsn = log.forceLog();
+                    synchronized (this) {
+                        forces++;
+                        batched += batch;
+                        advance(lsn);
+                    }
+                } catch (IOException e) {
+                    logger.error("could not force the log", e);
+                    synchronized (this) {
+                        failed = requested;
+                        failure = e;
+                        notifyAll();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            synchronized (this) {
+                flusherRunning = false;
+            }
+        }
+    }
+
+    /**
+     * Wait until a record that is not durable yet is waited for.
+     *
+     * @return false if there was nothing to do for a while
+     */
+    private boolean awaitWork() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + IDLE_MILLIS;
+        while (requested <= Math.max(durable, failed)) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+}
@@ -45,57 +45,304 @@ public class HashEquiJoin extends Operator {
         return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
 
-    HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
-    public final static int MAP_SIZE = 20000;
-
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
-        map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
-            ArrayList<Tuple> list = map.get(t1.getField(pred.getField1()));
-            if (list == null) {
-                list = new ArrayList<Tuple>();
-                map.put(t1.getField(pred.getField1()), list);
+    /**
+     * Number of partitions the inputs are split into when the build side does
+     * not fit in memory.
+     */
+    public final static int FANOUT = 16;
+
+    /**
+     * Number of times a partition that does not fit is split again. Past
+     * that, or when splitting does not make it smaller, it is joined in
+     * chunks that fit, scanning its probe side once per chunk.
+     */
+    public final static int MAX_DEPTH = 4;
+
+    // memory granted by the buffer pool, in pages and bytes
+    transient private int memoryPages = 0;
+    transient private long memoryBytes;
+
+    // the pass being probed, and spilled partitions still to be joined
+    transient private Pass pass = null;
+    transient private ArrayDeque<Pass> pending = new ArrayDeque<Pass>();
+
+    transient Iterator<Tuple> listIt = null;
+
+    /**
+     * One hybrid hash join of a build input with a probe input. The build
+     * input is hashed into FANOUT partitions, kept in memory until they take
+     * more than the memory budget; then the biggest partition is written to
+     * a spill file, and so are the tuples of either input that fall into it
+     * from then on. Spilled partitions are joined by later passes, which
+     * split them again with other bits of the hash.
+     */
+    private class Pass {
+        final OpIterator build, probe;
+        final int depth;
+        // join the build input in chunks instead of partitioning it
+        final boolean chunked;
+        // the spill files the inputs are read from, null for the children
+        final SpillFile buildInput, probeInput;
+
+        final HashMap<Field, ArrayList<Tuple>>[] tables;
+        final long[] partitionBytes;
+        final SpillFile[] buildFiles;
+        final SpillFile[] probeFiles;
+        long residentBytes = 0;
+        int buildTuples = 0;
+
+        /**
+         * A pass over the children of the join.
+         */
+        Pass() {
+            this(child1, child2, null, null, 0, false);
+        }
+
+        /**
+         * A pass over a partition spilled by an earlier pass.
+         */
+        Pass(SpillFile buildInput, SpillFile probeInput, int depth, boolean chunked) {
+            this(buildInput.iterator(), probeInput.iterator(), buildInput, probeInput, depth, chunked);
+        }
+
+        @SuppressWarnings("unchecked")
+        private Pass(OpIterator build, OpIterator probe, SpillFile buildInput, SpillFile probeInput,
+                     int depth, boolean chunked) {
+            this.build = build;
+            this.probe = probe;
+            this.buildInput = buildInput;
+            this.probeInput = probeInput;
+            this.depth = depth;
+            this.chunked = chunked;
+            int partitions = chunked ? 1 : FANOUT;
+            this.tables = new HashMap[partitions];
+            for (int i = 0; i < partitions; i++) {
+                tables[i] = new HashMap<Field, ArrayList<Tuple>>();
+            }
+            this.partitionBytes = new long[partitions];
+            this.buildFiles = new SpillFile[partitions];
+            this.probeFiles = new SpillFile[partitions];
+        }
+
+        int partitionOf(Field key) {
+            if (chunked) {
+                return 0;
             }
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
+            // murmur3 finalizer, every pass uses different bits of it
+            int h = key.hashCode();
+            h ^= h >>> 16;
+            h *= 0x85ebca6b;
+            h ^= h >>> 13;
+            h *= 0xc2b2ae35;
+            h ^= h >>> 16;
+            return (h >>> (depth * 4)) & (FANOUT - 1);
         }
-        return cnt > 0;
 
+        /**
+         * Read the build input into the hash tables, or the next chunk of it
+         * that fits in memory if this pass is chunked.
+         */
+        void build() throws DbException, TransactionAbortedException {
+            long tupleBytes = SpillFile.memoryBytes(build.getTupleDesc());
+            while (build.hasNext()) {
+                Tuple t = build.next();
+                // the tuple outlives the page it was read from
+                t.materialize();
+                buildTuples++;
+                Field key = t.getField(pred.getField1());
+                int p = partitionOf(key);
+                if (buildFiles[p] != null) {
+                    buildFiles[p].add(t);
+                    continue;
+                }
+
+                ArrayList<Tuple> list = tables[p].get(key);
+                if (list == null) {
+                    list = new ArrayList<Tuple>();
+                    tables[p].put(key, list);
+                }
+                list.add(t);
+                partitionBytes[p] += tupleBytes;
+                residentBytes += tupleBytes;
+
+                if (chunked) {
+                    if (residentBytes >= memoryBytes) {
+                        return;
+                    }
+                } else {
+                    while (residentBytes > memoryBytes) {
+                        spillLargestPartition();
+                    }
+                }
+            }
+        }
+
+        private void spillLargestPartition() throws DbException {
+            int largest = -1;
+            for (int p = 0; p < tables.length; p++) {
+                if (buildFiles[p] == null && (largest < 0 || partitionBytes[p] > partitionBytes[largest])) {
+                    largest = p;
+                }
+            }
+            buildFiles[largest] = new SpillFile(build.getTupleDesc());
+            probeFiles[largest] = new SpillFile(probe.getTupleDesc());
+            for (ArrayList<Tuple> list : tables[largest].values()) {
+                for (Tuple t : list) {
+                    buildFiles[largest].add(t);
+                }
+            }
+            tables[largest].clear();
+            residentBytes -= partitionBytes[largest];
+            partitionBytes[largest] = 0;
+        }
+
+        /**
+         * Start over with the next chunk of the build input, after the probe
+         * input was joined with the current one.
+         *
+         * @return false if the whole build input has been joined
+         */
+        boolean nextChunk() throws DbException, TransactionAbortedException {
+            if (!chunked || !build.hasNext()) {
+                return false;
+            }
+            tables[0].clear();
+            residentBytes = 0;
+            probe.rewind();
+            build();
+            return true;
+        }
+
+        /**
+         * Queue the joins of the partitions this pass spilled, and drop its
+         * own inputs if they were spill files.
+         */
+        void finish() {
+            for (int p = 0; p < tables.length; p++) {
+                tables[p].clear();
+                if (buildFiles[p] == null) {
+                    continue;
+                }
+                if (buildFiles[p].size() == 0 || probeFiles[p].size() == 0) {
+                    // nothing in it can match
+                    buildFiles[p].delete();
+                    probeFiles[p].delete();
+                    continue;
+                }
+                // a partition that did not get smaller will not by splitting
+                // it again, all its keys hash alike
+                boolean chunk = depth + 1 >= MAX_DEPTH || buildFiles[p].size() == buildTuples;
+                pending.add(new Pass(buildFiles[p], probeFiles[p], depth + 1, chunk));
+            }
+            discard();
+        }
+
+        /**
+         * Delete the inputs of this pass if they are spill files.
+         */
+        void discard() {
+            if (buildInput != null) {
+                build.close();
+                probe.close();
+                buildInput.delete();
+                probeInput.delete();
+            }
+        }
+
+        void deleteSpillFiles() {
+            for (int p = 0; p < tables.length; p++) {
+                if (buildFiles[p] != null) {
+                    buildFiles[p].delete();
+                    probeFiles[p].delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Start joining the given pass: open its inputs and build its hash tables.
+     */
+    private void startPass(Pass next) throws DbException, TransactionAbortedException {
+        pass = next;
+        if (pass.buildInput != null) {
+            pass.build.open();
+            pass.probe.open();
+        }
+        pass.build();
+    }
+
+    /**
+     * Abandon the join, deleting all spill files.
+     */
+    private void clearPasses() {
+        if (pass != null) {
+            pass.discard();
+            pass.deleteSpillFiles();
+            pass = null;
+        }
+        for (Pass p : pending) {
+            p.discard();
+            p.deleteSpillFiles();
+        }
+        pending.clear();
+        listIt = null;
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        memoryPages = Database.getBufferPool().reserveWorkMemory(Integer.MAX_VALUE);
+        memoryBytes = (long) memoryPages * BufferPool.getPageSize();
+        startPass(new Pass());
         super.open();
     }
 
     public void close() {
         super.close();
+        clearPasses();
         child2.close();
         child1.close();
         this.t1 = null;
         this.t2 = null;
-        this.listIt = null;
-        this.map.clear();
+        if (memoryPages > 0) {
+            Database.getBufferPool().releaseWorkMemory(memoryPages);
+            memoryPages = 0;
+        }
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        clearPasses();
         child1.rewind();
         child2.rewind();
+        startPass(new Pass());
     }
 
-    transient Iterator<Tuple> listIt = null;
+    private Tuple processList() throws TransactionAbortedException, DbException {
+        t1 = listIt.next();
+
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = t2.getTupleDesc().numFields();
+
+        // set fields in combined tuple
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+
+    }
 
     /**
      * Returns the next tuple generated by the join, or null if there are no
      * more tuples. Logically, this is the next tuple in r1 cross r2 that
-     * satisfies the join predicate. There are many possible implementations;
-     * the simplest is a nested loops join.
+     * satisfies the join predicate.
+     * <p>
+     * The build side, child1, is hashed into memory, spilling partitions of
+     * both children to disk if it does not fit, see {@link Pass}. Tuples of
+     * child2 are looked up in the hash tables as they are read; the spilled
+     * partitions are joined after child2 has been read to the end.
      * <p>
      * Note that the tuples returned from this particular implementation of Join
      * are simply the concatenation of joining tuples from the left and right
@@ -109,48 +356,40 @@ public class HashEquiJoin extends Operator {
      * @return The next matching tuple.
      * @see JoinPredicate#filter
      */
-    private Tuple processList() throws TransactionAbortedException, DbException {
-        t1 = listIt.next();
-
-        int td1n = t1.getTupleDesc().numFields();
-        int td2n = t2.getTupleDesc().numFields();
-
-        // set fields in combined tuple
-        Tuple t = new Tuple(comboTD);
-        for (int i = 0; i < td1n; i++)
-            t.setField(i, t1.getField(i));
-        for (int i = 0; i < td2n; i++)
-            t.setField(td1n + i, t2.getField(i));
-        return t;
-
-    }
-
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
-        }
-
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
+        while (pass != null) {
+            if (listIt != null && listIt.hasNext()) {
+                return processList();
+            }
+            listIt = null;
 
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            ArrayList<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
+            // loop around the probe side
+            if (pass.probe.hasNext()) {
+                t2 = pass.probe.next();
+                Field key = t2.getField(pred.getField2());
+                int p = pass.partitionOf(key);
+                if (pass.probeFiles[p] != null) {
+                    pass.probeFiles[p].add(t2);
+                    continue;
+                }
+                ArrayList<Tuple> l = pass.tables[p].get(key);
+                if (l != null) {
+                    listIt = l.iterator();
+                }
                 continue;
-            listIt = l.iterator();
-
-            return processList();
-
-        }
+            }
 
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
+            // the probe side is done: next chunk, or next spilled partition
+            if (pass.nextChunk()) {
+                continue;
+            }
+            pass.finish();
+            pass = null;
+            Pass next = pending.poll();
+            if (next != null) {
+                startPass(next);
+            }
         }
-
         return null;
     }
 
@@ -20,6 +20,7 @@ public class HeapFile implements DbFile {
     final static Logger logger = Logger.getLogger(MethodHandles.lookup().lookupClass());
 
     private final File f;
+    private final PageFile file;
     private final TupleDesc td;
 
     /**
@@ -31,6 +32,7 @@ public class HeapFile implements DbFile {
     public HeapFile(File f, TupleDesc td) {
         // some code goes here
         this.f = f;
+        this.file = new PageFile(f);
         this.td = td;
     }
 
@@ -74,11 +76,8 @@ public class HeapFile implements DbFile {
         logger.debug("[disk io] read page: " + pid);
 
         try {
-            RandomAccessFile rf = new RandomAccessFile(f, "r");
-            rf.seek(pid.getPageNumber() * BufferPool.getPageSize());
             byte[] buffer = new byte[BufferPool.getPageSize()];
-            rf.read(buffer, 0, BufferPool.getPageSize());
-            rf.close();
+            file.read((long) pid.getPageNumber() * BufferPool.getPageSize(), buffer, buffer.length);
             return new HeapPage((HeapPageId) pid, buffer);
         } catch (IOException e) {
             e.printStackTrace();
@@ -93,18 +92,65 @@ public class HeapFile implements DbFile {
         logger.debug("[disk io] write page: " + page.getId());
 
         byte[] data = page.getPageData();
-        RandomAccessFile rf = new RandomAccessFile(f, "rw");
-        rf.seek(page.getId().getPageNumber() * BufferPool.getPageSize());
-        rf.write(data, 0, BufferPool.getPageSize());
-        rf.close();
+        file.write((long) page.getId().getPageNumber() * BufferPool.getPageSize(), data, BufferPool.getPageSize());
     }
 
     /**
-     * Returns the number of pages in this HeapFile.
+     * Writes runs of adjacent pages with a single gathering write each.
+     */
+    @Override
+    public void writePages(List<Page> pages) throws IOException {
+        long[] offsets = new long[pages.size()];
+        byte[][] blocks = new byte[pages.size()][];
+        for (int i = 0; i < blocks.length; i++) {
+            Page page = pages.get(i);
+            logger.debug("[disk io] write page: " + page.getId());
+            offsets[i] = (long) page.getId().getPageNumber() * BufferPool.getPageSize();
+            blocks[i] = page.getPageData();
+        }
+        file.write(offsets, blocks);
+    }
+
+    @Override
+    public void force() throws IOException {
+        file.force();
+    }
+
+    /**
+     * Returns the number of pages in this HeapFile. Pages appended to the file
+     * on disk by somebody else are counted too, so callers that need the
+     * count repeatedly should ask once.
      */
     public int numPages() {
         // some code goes here
-        return (int) Math.floorDiv(f.length(), BufferPool.getPageSize());
+        try {
+            return (int) (file.refreshSize() / BufferPool.getPageSize());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Read count pages starting at pgNo with a single read, so that the
+     * following readPage calls of this thread for those pages do not go to
+     * disk. Used by the buffer pool to prefetch the pages of a scan.
+     */
+    void readAhead(int pgNo, int count) throws IOException {
+        file.readAhead((long) pgNo * BufferPool.getPageSize(), count * BufferPool.getPageSize());
+    }
+
+    void endReadAhead() {
+        file.endReadAhead();
+    }
+
+    /**
+     * Serve page reads of this file from memory mappings instead of reading
+     * them through the file channel. Meant for large, read-mostly tables.
+     *
+     * @see PageFile#setMemoryMapped(boolean)
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        file.setMemoryMapped(memoryMapped);
     }
 
     // see DbFile.java for javadocs
@@ -116,8 +162,9 @@ public class HeapFile implements DbFile {
         HeapPage page = null;
 
         // Find a page with an empty slot
+        int numPages = numPages();
         int i = 0;
-        for (; i < numPages(); i++) {
+        for (; i < numPages; i++) {
             HeapPageId pageId = new HeapPageId(getId(),i);
             page = (HeapPage) Database.getBufferPool().getPage(tid,pageId, Permissions.READ_WRITE);
             if (page.getNumEmptySlots() > 0) {
@@ -6,6 +6,9 @@ import java.util.NoSuchElementException;
 
 public class HeapFileIterator implements DbFileIterator {
 
+    // pages read in order before the scan starts reading ahead
+    private static final int SEQUENTIAL_PAGES = 2;
+
     private TransactionId tid;
     private int tableId;
     private int numPages;
@@ -14,6 +17,8 @@ public class HeapFileIterator implements DbFileIterator {
     private boolean isOpen;
     private int pgNo;
     private Iterator<Tuple> tuples;
+    // pages before this one have been handed to the prefetcher
+    private int prefetchedTo;
 
     public HeapFileIterator(TransactionId tid, int tableId, int numPages, Permissions perm) {
         this.tid = tid;
@@ -31,6 +36,7 @@ public class HeapFileIterator implements DbFileIterator {
     public void open() throws DbException, TransactionAbortedException {
         isOpen = true;
         pgNo = 0;
+        prefetchedTo = 0;
 
         tuples = getTuples();
     }
@@ -88,8 +94,32 @@ public class HeapFileIterator implements DbFileIterator {
     }
 
     private Iterator<Tuple> getTuples() throws TransactionAbortedException, DbException {
+        readAhead();
         HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(tableId, pgNo), perm);
         pgNo++;
         return page.iterator();
     }
+
+    /**
+     * Once the scan has read a few pages in order, ask the buffer pool to read
+     * the next window of pages in the background. The following window is
+     * requested when the scan is half way through the previous one, so the
+     * reads stay ahead of it.
+     */
+    private void readAhead() {
+        if (pgNo < SEQUENTIAL_PAGES || prefetchedTo >= numPages) {
+            return;
+        }
+        BufferPool pool = Database.getBufferPool();
+        int window = pool.getPrefetchWindow();
+        if (window <= 0 || pgNo + window / 2 < prefetchedTo) {
+            return;
+        }
+        int from = Math.max(prefetchedTo, pgNo + 1);
+        int to = Math.min(numPages, pgNo + 1 + window);
+        if (from < to) {
+            pool.prefetchPages((HeapFile) Database.getCatalog().getDatabaseFile(tableId), from, to - from);
+        }
+        prefetchedTo = to;
+    }
 }
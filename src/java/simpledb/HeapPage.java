@@ -10,13 +10,18 @@ import java.io.*;
  * @see HeapFile
  * @see BufferPool
  */
-public class HeapPage implements Page {
+public class HeapPage implements SlottedPage {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte[] header;
-    final Tuple[] tuples;
-    private int numSlots;
+    // the page as stored on disk, header bits followed by the tuple slots;
+    // tuples are read from and written to it in place
+    private final byte[] data;
+    final int numSlots;
+    private final int headerSize;
+    private final int tupleSize;
+    // offset of every field within a tuple slot
+    private final int[] fieldOffsets;
 
     private byte[] oldData;
     private final Byte oldDataLock = new Byte((byte) 0);
@@ -36,6 +41,8 @@ public class HeapPage implements Page {
      * <p>
      * ceiling(no. tuple slots / 8)
      * <p>
+     * The page keeps data, it is not copied. Tuples are not decoded here but
+     * when they are read, see {@link #iterator()}.
      *
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
@@ -45,22 +52,17 @@ public class HeapPage implements Page {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i = 0; i < header.length; i++)
-            header[i] = dis.readByte();
+        this.headerSize = getHeaderSize();
+        this.tupleSize = td.getSize();
+        if (data.length < BufferPool.getPageSize()) {
+            throw new EOFException("page " + id + " is " + data.length + " bytes long");
+        }
+        this.data = data;
 
-        tuples = new Tuple[numSlots];
-        try {
-            // allocate and read the actual records of this page
-            for (int i = 0; i < tuples.length; i++)
-                tuples[i] = readNextTuple(dis, i);
-        } catch (NoSuchElementException e) {
-            e.printStackTrace();
+        this.fieldOffsets = new int[td.numFields()];
+        for (int j = 1; j < fieldOffsets.length; j++) {
+            fieldOffsets[j] = fieldOffsets[j - 1] + td.getFieldType(j - 1).getLen();
         }
-        dis.close();
 
         setBeforeImage();
 
@@ -97,7 +99,7 @@ public class HeapPage implements Page {
             synchronized (oldDataLock) {
                 oldDataRef = oldData;
             }
-            return new HeapPage(pid, oldDataRef);
+            return new HeapPage(pid, oldDataRef.clone());
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -108,7 +110,7 @@ public class HeapPage implements Page {
 
     public void setBeforeImage() {
         synchronized (oldDataLock) {
-            oldData = getPageData().clone();
+            oldData = getPageData();
         }
     }
 
@@ -120,38 +122,50 @@ public class HeapPage implements Page {
         return pid;
     }
 
+    public int slotBitmapOffset() {
+        return 0;
+    }
+
+    public int firstSlotOffset() {
+        return headerSize;
+    }
+
+    public int slotSize() {
+        return tupleSize;
+    }
+
+    public int slotCount() {
+        return numSlots;
+    }
+
+    private int slotOffset(int slotId) {
+        return headerSize + slotId * tupleSize;
+    }
+
     /**
-     * Suck up tuples from the source file.
+     * Decode field i of the tuple in the given slot straight from the page
+     * bytes.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i = 0; i < td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
+    Field readField(int slotId, int i) {
+        return td.getFieldType(i).parse(data, slotOffset(slotId) + fieldOffsets[i]);
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j = 0; j < td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
-        }
+    /**
+     * Read int field i of the tuple in the given slot without decoding it.
+     */
+    int readInt(int slotId, int i) {
+        return Type.readInt(data, slotOffset(slotId) + fieldOffsets[i]);
+    }
 
-        return t;
+    /**
+     * Compare field i of the tuple in the given slot with a value. Int fields
+     * are compared straight from the page bytes.
+     */
+    boolean compareField(int slotId, int i, Predicate.Op op, Field operand) {
+        if (td.getFieldType(i) == Type.INT_TYPE && operand instanceof IntField) {
+            return IntField.compare(readInt(slotId, i), op, ((IntField) operand).getValue());
+        }
+        return readField(slotId, i).compare(op, operand);
     }
 
     /**
@@ -166,59 +180,8 @@ public class HeapPage implements Page {
      * @see #HeapPage
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i = 0; i < header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i = 0; i < tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j = 0; j < td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j = 0; j < td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        // tuples are written in place, the bytes are always up to date
+        return Arrays.copyOf(data, BufferPool.getPageSize());
     }
 
     /**
@@ -255,8 +218,11 @@ public class HeapPage implements Page {
             throw new DbException("tuple slot is empty!");
         }
 
-        markSlotUsed(recordId.getTupleNumber(), false);
-        tuples[recordId.getTupleNumber()] = null;
+        // t may be reading its fields from the slot that is cleared now
+        t.materialize();
+        int slotId = recordId.getTupleNumber();
+        markSlotUsed(slotId, false);
+        Arrays.fill(data, slotOffset(slotId), slotOffset(slotId) + tupleSize, (byte) 0);
     }
 
     /**
@@ -278,9 +244,12 @@ public class HeapPage implements Page {
             throw new DbException("page is full, tuple can not be inserted");
         }
 
-        for (int i = 0; i < tuples.length; i++) {
-            if (tuples[i] == null) {
-                tuples[i] = t;
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i)) {
+                int offset = slotOffset(i);
+                for (int j = 0; j < fieldOffsets.length; j++) {
+                    td.getFieldType(j).write(t.getField(j), data, offset + fieldOffsets[j]);
+                }
                 RecordId recordId = new RecordId(pid, i);
                 t.setRecordId(recordId);
                 markSlotUsed(i, true);
@@ -318,13 +287,15 @@ public class HeapPage implements Page {
      */
     public int getNumEmptySlots() {
         // some code goes here
-        int num = 0;
-        for (int i = 0; i < this.numSlots; i++) {
-            if (!isSlotUsed(i)) {
-                num++;
-            }
+        int used = 0;
+        for (int i = 0; i < numSlots >> 3; i++) {
+            used += Integer.bitCount(data[i] & 0xff);
+        }
+        // the last header byte may have bits beyond the last slot
+        if ((numSlots & 7) != 0) {
+            used += Integer.bitCount(data[numSlots >> 3] & ((1 << (numSlots & 7)) - 1));
         }
-        return num;
+        return numSlots - used;
     }
 
     /**
@@ -332,10 +303,7 @@ public class HeapPage implements Page {
      */
     public boolean isSlotUsed(int i) {
         // some code goes here
-        int byte_index = Math.floorDiv(i, 8);
-        Byte b = header[byte_index];
-        int bit_index = Math.floorMod(i, 8);
-        return (b & (1 << bit_index)) != 0;
+        return (data[i >> 3] & (1 << (i & 7))) != 0;
     }
 
     /**
@@ -344,13 +312,12 @@ public class HeapPage implements Page {
     private void markSlotUsed(int i, boolean value) {
         // some code goes here
         // not necessary for lab1
-        int byte_index = Math.floorDiv(i, 8);
-        Byte b = header[byte_index];
-        int bit_index = Math.floorMod(i, 8);
+        int byte_index = i >> 3;
+        int bit_index = i & 7;
         if (value) {
-            header[byte_index] = (byte) (b | (1 << bit_index));
+            data[byte_index] = (byte) (data[byte_index] | (1 << bit_index));
         } else {
-            header[byte_index] = (byte) (b & ~(1 << bit_index));
+            data[byte_index] = (byte) (data[byte_index] & ~(1 << bit_index));
         }
     }
 
@@ -360,13 +327,34 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
-        List<Tuple> l = new ArrayList<>();
-        for (int i = 0; i < tuples.length; i++) {
-            if (tuples[i] != null) {
-                l.add(tuples[i]);
+        // iterate over the slots that are used now, like a snapshot would
+        byte[] used = Arrays.copyOf(data, headerSize);
+        return new Iterator<Tuple>() {
+            private int next = nextUsedSlot(used, 0);
+
+            @Override
+            public boolean hasNext() {
+                return next < numSlots;
             }
+
+            @Override
+            public Tuple next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Tuple t = new Tuple(td, HeapPage.this, next);
+                next = nextUsedSlot(used, next + 1);
+                return t;
+            }
+        };
+    }
+
+    private int nextUsedSlot(byte[] used, int from) {
+        int i = from;
+        while (i < numSlots && (used[i >> 3] & (1 << (i & 7))) == 0) {
+            i++;
         }
-        return l.iterator();
+        return i;
     }
 
 }
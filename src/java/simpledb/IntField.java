@@ -50,27 +50,34 @@ public class IntField implements Field {
     public boolean compare(Predicate.Op op, Field val) {
 
         IntField iVal = (IntField) val;
+        return compare(value, op, iVal.value);
+    }
 
+    /**
+     * Compare two int values, with the semantics of Field.compare, without
+     * having to box the first one into an IntField.
+     */
+    static boolean compare(int value, Predicate.Op op, int operand) {
         switch (op) {
             case EQUALS:
-                return value == iVal.value;
+                return value == operand;
             case NOT_EQUALS:
-                return value != iVal.value;
+                return value != operand;
 
             case GREATER_THAN:
-                return value > iVal.value;
+                return value > operand;
 
             case GREATER_THAN_OR_EQ:
-                return value >= iVal.value;
+                return value >= operand;
 
             case LESS_THAN:
-                return value < iVal.value;
+                return value < operand;
 
             case LESS_THAN_OR_EQ:
-                return value <= iVal.value;
+                return value <= operand;
 
             case LIKE:
-                return value == iVal.value;
+                return value == operand;
         }
 
         return false;
@@ -4,21 +4,44 @@ import java.util.*;
 
 /**
  * Knows how to compute some aggregate over a set of IntFields.
+ * <p>
+ * Every group keeps a count, a sum, a min and a max, updated as tuples are
+ * merged in, so merging a tuple takes constant time and space whatever the
+ * size of its group. The accumulators live in parallel primitive arrays
+ * indexed by group number. Int group values are mapped to their group number
+ * with an open-addressing table of ints, so merging a tuple allocates
+ * nothing; other group types go through a HashMap. Result tuples are only
+ * built by {@link #iterator()}.
  */
 public class IntegerAggregator implements Aggregator {
 
     private static final long serialVersionUID = 1L;
 
+    private static final int INITIAL_GROUPS = 16;
+
     private int gbfield;
     private Type gbfieldtype;
     private int afield;
     private Op what;
 
-    private HashMap<Field, ArrayList<Integer>> groups;
-    private HashMap<Field, Tuple> results;
-
     private TupleDesc td;
 
+    // accumulators, index g belongs to group number g
+    private int numGroups;
+    private int[] counts;
+    private long[] sums;
+    private int[] mins;
+    private int[] maxs;
+
+    // int group values: the value of each group, and a table of group
+    // number + 1 at the hash of the value, 0 marks an empty bucket
+    private int[] intGroupValues;
+    private int[] buckets;
+
+    // group values of any other type
+    private Field[] groupValues;
+    private HashMap<Field, Integer> groupNumbers;
+
     /**
      * Aggregate constructor
      *
@@ -37,8 +60,17 @@ public class IntegerAggregator implements Aggregator {
         this.afield = afield;
         this.what = what;
 
-        groups = new HashMap<>();
-        results = new HashMap<>();
+        counts = new int[INITIAL_GROUPS];
+        sums = new long[INITIAL_GROUPS];
+        mins = new int[INITIAL_GROUPS];
+        maxs = new int[INITIAL_GROUPS];
+        if (gbfieldtype == Type.INT_TYPE) {
+            intGroupValues = new int[INITIAL_GROUPS];
+            buckets = new int[INITIAL_GROUPS * 2];
+        } else {
+            groupValues = new Field[INITIAL_GROUPS];
+            groupNumbers = new HashMap<>();
+        }
 
         Type[] types;
         if (gbfield != Aggregator.NO_GROUPING) {
@@ -57,41 +89,25 @@ public class IntegerAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
-        // get target key
-        Field key;
-        if (gbfield != Aggregator.NO_GROUPING) {
-            key = tup.getField(gbfield);
+        int group;
+        if (gbfield == Aggregator.NO_GROUPING) {
+            group = numGroups == 0 ? newGroup() : 0;
+        } else if (gbfieldtype == Type.INT_TYPE) {
+            group = intGroup(tup.getIntValue(gbfield));
         } else {
-            key = new IntField(0);
-        }
-
-        // get target value
-        Integer val = tup.getField(afield).hashCode();
-
-        // append value to key
-        if (groups.get(key) == null) {
-            groups.put(key, new ArrayList<Integer>());
+            group = fieldGroup(tup.getField(gbfield));
         }
-        groups.get(key).add(val);
-
-        // aggregate
-        ArrayList<Integer> integerArrayList = groups.get(key);
-        Integer aggregateVal = doAggregate(integerArrayList);
 
-        // construct tuple
-        Tuple tuple = new Tuple(td);
-
-        if (gbfield != Aggregator.NO_GROUPING) {
-            Field f1 = tup.getField(gbfield);
-            Field f2 = new IntField(aggregateVal);
-            tuple.setField(0, f1);
-            tuple.setField(1, f2);
+        int val = tup.getIntValue(afield);
+        if (counts[group] == 0) {
+            mins[group] = val;
+            maxs[group] = val;
         } else {
-            Field f1 = new IntField(aggregateVal);
-            tuple.setField(0, f1);
+            mins[group] = Math.min(mins[group], val);
+            maxs[group] = Math.max(maxs[group], val);
         }
-
-        results.put(key, tuple);
+        counts[group]++;
+        sums[group] += val;
     }
 
     /**
@@ -104,50 +120,110 @@ public class IntegerAggregator implements Aggregator {
      */
     public OpIterator iterator() {
         // some code goes here
-        return new TupleIterator(td, results.values());
+        ArrayList<Tuple> results = new ArrayList<>(numGroups);
+        for (int group = 0; group < numGroups; group++) {
+            Tuple tuple = new Tuple(td);
+            Field aggregateVal = new IntField(aggregate(group));
+            if (gbfield != Aggregator.NO_GROUPING) {
+                Field groupVal = gbfieldtype == Type.INT_TYPE
+                        ? new IntField(intGroupValues[group]) : groupValues[group];
+                tuple.setField(0, groupVal);
+                tuple.setField(1, aggregateVal);
+            } else {
+                tuple.setField(0, aggregateVal);
+            }
+            results.add(tuple);
+        }
+        return new TupleIterator(td, results);
     }
 
-    private Integer doAggregate(ArrayList<Integer> integerArrayList) {
-        Integer result = 0;
-        Integer tmp = 0;
+    private int aggregate(int group) {
         switch (what) {
             case MIN:
-                result = integerArrayList.get(0);
-                for (Integer i = 1; i < integerArrayList.size(); i++) {
-                    tmp = integerArrayList.get(i);
-                    if (tmp < result) {
-                        result = tmp;
-                    }
-                }
-                break;
+                return mins[group];
             case MAX:
-                result = integerArrayList.get(0);
-                for (Integer i = 1; i < integerArrayList.size(); i++) {
-                    tmp = integerArrayList.get(i);
-                    if (tmp > result) {
-                        result = tmp;
-                    }
-                }
-                break;
+                return maxs[group];
             case SUM:
-                for (Integer i: integerArrayList) {
-                    result += i;
-                }
-                break;
+                return (int) sums[group];
             case AVG:
-                for (Integer i: integerArrayList) {
-                    result += i;
-                }
-                result /= integerArrayList.size();
-                break;
+                return (int) (sums[group] / counts[group]);
             case COUNT:
-                result = integerArrayList.size();
-                break;
-            case SUM_COUNT:
-                break;
-            case SC_AVG:
-                break;
+                return counts[group];
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @return the number of the group with the given int value, adding the
+     * group if it is new
+     */
+    private int intGroup(int value) {
+        int mask = buckets.length - 1;
+        int b = hash(value) & mask;
+        while (buckets[b] != 0) {
+            int group = buckets[b] - 1;
+            if (intGroupValues[group] == value) {
+                return group;
+            }
+            b = (b + 1) & mask;
+        }
+
+        int group = newGroup();
+        intGroupValues[group] = value;
+        buckets[b] = group + 1;
+        // keep the table at most half full
+        if (numGroups * 2 > buckets.length) {
+            rehash(buckets.length * 2);
+        }
+        return group;
+    }
+
+    private void rehash(int size) {
+        buckets = new int[size];
+        int mask = size - 1;
+        for (int group = 0; group < numGroups; group++) {
+            int b = hash(intGroupValues[group]) & mask;
+            while (buckets[b] != 0) {
+                b = (b + 1) & mask;
+            }
+            buckets[b] = group + 1;
+        }
+    }
+
+    private static int hash(int value) {
+        // spread consecutive values over the table
+        int h = value * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private int fieldGroup(Field value) {
+        Integer group = groupNumbers.get(value);
+        if (group == null) {
+            group = newGroup();
+            groupValues[group] = value;
+            groupNumbers.put(value, group);
+        }
+        return group;
+    }
+
+    /**
+     * Add the accumulators of a new group, growing the arrays if they are full.
+     */
+    private int newGroup() {
+        if (numGroups == counts.length) {
+            int size = counts.length * 2;
+            counts = Arrays.copyOf(counts, size);
+            sums = Arrays.copyOf(sums, size);
+            mins = Arrays.copyOf(mins, size);
+            maxs = Arrays.copyOf(maxs, size);
+            if (intGroupValues != null) {
+                intGroupValues = Arrays.copyOf(intGroupValues, size);
+            }
+            if (groupValues != null) {
+                groupValues = Arrays.copyOf(groupValues, size);
+            }
         }
-        return result;
+        return numGroups++;
     }
 }
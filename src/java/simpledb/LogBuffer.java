@@ -0,0 +1,115 @@
+package simpledb;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Collects log records in memory until they are written to the log file.
+ * The bytes are kept in a fixed set of buffers that are filled in turn;
+ * when all of them are full, or when {@link #writeOut()} is called, the
+ * filled parts of all buffers are written to the log segments with one
+ * gathering write per segment, at the LSN they belong at, and the buffers
+ * are reused.
+ * <p>
+ * Not thread safe, LogFile only uses it while holding its own lock.
+ */
+class LogBuffer extends OutputStream {
+
+    private final ByteBuffer[] buffers;
+    // the buffer being filled, the ones before it are full
+    private int current = 0;
+
+    private LogSegments segments;
+    // LSN of the first buffered byte, and of the end of the log
+    private long start;
+    private long end;
+
+    LogBuffer(int numBuffers, int bufferSize) {
+        buffers = new ByteBuffer[numBuffers];
+        for (int i = 0; i < numBuffers; i++) {
+            buffers[i] = ByteBuffer.allocateDirect(bufferSize);
+        }
+    }
+
+    /**
+     * Drop anything buffered and continue the log in the given segments at
+     * the given LSN.
+     */
+    void reset(LogSegments segments, long offset) {
+        for (ByteBuffer b : buffers) {
+            b.clear();
+        }
+        current = 0;
+        this.segments = segments;
+        this.start = offset;
+        this.end = offset;
+    }
+
+    /**
+     * @return the LSN the next byte appended will have
+     */
+    long end() {
+        return end;
+    }
+
+    /**
+     * @return true if there are buffered bytes not written to the log yet
+     */
+    boolean isDirty() {
+        return end > start;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!buffers[current].hasRemaining()) {
+            nextBuffer();
+        }
+        buffers[current].put((byte) b);
+        end++;
+    }
+
+    @Override
+    public void write(byte[] data, int off, int len) throws IOException {
+        while (len > 0) {
+            ByteBuffer b = buffers[current];
+            if (!b.hasRemaining()) {
+                nextBuffer();
+                continue;
+            }
+            int n = Math.min(len, b.remaining());
+            b.put(data, off, n);
+            off += n;
+            len -= n;
+            end += n;
+        }
+    }
+
+    private void nextBuffer() throws IOException {
+        if (current + 1 < buffers.length) {
+            current++;
+        } else {
+            writeOut();
+        }
+    }
+
+    /**
+     * Write everything buffered to the log, without forcing it to disk.
+     */
+    void writeOut() throws IOException {
+        if (!isDirty()) {
+            return;
+        }
+        ByteBuffer[] filled = new ByteBuffer[current + 1];
+        for (int i = 0; i <= current; i++) {
+            buffers[i].flip();
+            filled[i] = buffers[i];
+        }
+        segments.write(start, filled, end - start);
+        for (int i = 0; i <= current; i++) {
+            buffers[i].clear();
+        }
+        current = 0;
+        start = end;
+    }
+}
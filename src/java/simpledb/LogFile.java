@@ -1,22 +1,24 @@
 
 package simpledb;
 
-import net.sf.antcontrib.logic.TryCatchTask;
 import org.apache.log4j.Logger;
 
 import javax.xml.crypto.Data;
-import java.io.EOFException;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.lang.invoke.MethodHandles;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -52,35 +54,75 @@ import java.util.*;
  *
  * <ul>
  *
- * <li> The first long integer of the file represents the offset of the
- * last written checkpoint, or -1 if there are no checkpoints
+ * <li> The log file itself is a small control file. It holds the LSN of
+ * the BEGIN_CHECKPOINT record of the last completed checkpoint, or -1 if
+ * there are no checkpoints, the LSN of the first record of the log, the
+ * size of the log's segments and the version of the log format, all long
+ * integers. A control file without the version is from a version 1 log.
+ * Recovery reads logs of older versions, and then starts a new log in the
+ * current format.
  *
- * <li> All additional data in the log consists of log records.  Log
+ * <li> The log records are kept in segment files of a fixed size next to
+ * the control file, see {@link LogSegments}. A position in the log, its
+ * LSN, counts the bytes of the log as a whole, across segments.  Log
  * records are variable length.
  *
  * <li> Each log record begins with an integer type and a long integer
  * transaction id.
  *
- * <li> Each log record ends with a long integer file offset representing
- * the position in the log file where the record began.
+ * <li> Each log record ends with a long integer LSN representing the
+ * position in the log where the record began.
  *
- * <li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
- * CHECKPOINT
+ * <li> There are eight record types: ABORT, COMMIT, UPDATE, BEGIN,
+ * BEGIN_CHECKPOINT, END_CHECKPOINT, CLR and DELTA
  *
  * <li> ABORT, COMMIT, and BEGIN records contain no additional data
  *
  * <li>UPDATE RECORDS consist of two entries, a before image and an
- * after image.  These images are serialized Page objects, and can be
- * accessed with the LogFile.readPageData() and LogFile.writePageData()
- * methods.  See LogFile.print() for an example.
+ * after image.  These images are serialized Page objects, written by
+ * LogFile.writePageData() and read back by LogRecord.PageImage.  An image
+ * starts with the one byte {@link PageType} code of the page followed by
+ * the integers of its page id, or, for pages of other classes, with a zero
+ * byte followed by the page and page id class names and the integer count
+ * and integers of the id; version 1 logs only have the latter, without the
+ * zero byte. Then come the integer length and bytes of the page data.  See
+ * LogFile.print() for an example.
  *
- * <li> CHECKPOINT records consist of active transactions at the time
+ * <li> BEGIN_CHECKPOINT records consist of active transactions at the time
  * the checkpoint was taken and their first log record on disk.  The format
  * of the record is an integer count of the number of transactions, as well
- * as a long integer transaction id and a long integer first record offset
- * for each active transaction.
+ * as a long integer transaction id and a long integer first record LSN
+ * for each active transaction. It is followed by the dirty page table: an
+ * integer count of dirty pages, and for each of them an integer table id,
+ * an integer page number and the long integer LSN of the first record
+ * after the page became dirty (its recLSN). Redo starts from the smallest
+ * of these LSNs.
+ *
+ * <li> END_CHECKPOINT records are written once the pages in the dirty page
+ * table have been written out, and contain the long integer LSN of the
+ * checkpoint's BEGIN_CHECKPOINT record.
+ *
+ * <li> CLR (compensation log) records are written when an update is undone.
+ * They consist of the page image the undo wrote, followed by the long
+ * integer LSN of the UPDATE record that was undone. They are redone like
+ * UPDATE records but never undone themselves.
+ *
+ * <li> DELTA records describe the change to a page since the previous
+ * record for it, see {@link PageDelta}. They consist of the page's type
+ * and id as in a page image, without the data, followed by an integer
+ * length and the serialized delta. A page gets an UPDATE record with full
+ * images the first time it is logged after it was read or after a
+ * checkpoint began, and DELTA records after that.
  *
  * </ul>
+ *
+ * <p> Records are collected in an in-memory log buffer and written to the
+ * segments in large chunks, when the buffer fills up or the log is forced.
+ * Records are referred to by the LSN they start at, but the LSN a record
+ * gets back when it is appended is the position just past it: a record is
+ * durable once the log has been forced up to that LSN, see
+ * {@link #force(long)}. Truncating the beginning of the log away deletes
+ * or recycles whole segments and never moves a record.
  */
 
 public class LogFile {
@@ -95,20 +137,59 @@ public class LogFile {
     static final int COMMIT_RECORD = 2;
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
-    static final int CHECKPOINT_RECORD = 5;
+    static final int BEGIN_CHECKPOINT_RECORD = 5;
+    static final int END_CHECKPOINT_RECORD = 6;
+    static final int CLR_RECORD = 7;
+    static final int DELTA_RECORD = 8;
+
+    // the format of the log this code writes: 1 had page class names in
+    // every image, 2 has PageType codes
+    static final int LOG_VERSION = 2;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
-    long currentOffset = -1;//protected by this
+    long currentOffset = -1;//LSN of the next record, protected by this
     //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
+    // records are serialized into record, then copied into the log buffer
+    private static final int LOG_BUFFERS = 8;
+    private static final int LOG_BUFFER_SIZE = 64 * 1024;
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+    private final LogBuffer buffer = new LogBuffer(LOG_BUFFERS, LOG_BUFFER_SIZE);
+
+    private static final int CONTROL_SIZE = 3 * LONG_SIZE;
+
+    // segment files holding the records, protected by this
+    private LogSegments segments;
+    // LSN of the first record the log holds, protected by this
+    private long logStart = 0;
+    // format of the log being appended to, protected by this
+    private int version = LOG_VERSION;
+
+    // threads that redo installs pages with during recovery
+    private int recoveryThreads =
+            Config.getIntProperty("recoveryThreads", Runtime.getRuntime().availableProcessors());
+
+    // end of the BEGIN_CHECKPOINT record of the last checkpoint begun, pages
+    // last logged before it get full images again, protected by this
+    private long checkpointLsn = 0;
+
+    // taken by checkpoints, so that only one of them runs at a time
+    private final Object checkpointLock = new Object();
+
+    // forces the log for committing transactions
+    private final GroupCommit groupCommit = new GroupCommit(this,
+            Config.getIntProperty("groupCommitMaxBatch", 64),
+            Config.getIntProperty("groupCommitMaxWaitMicros", 200));
+
     HashMap<Long, Long> tidToFirstLogRecord = new HashMap<Long, Long>();
 
-    String tempPageClassName = "";
-    String tempIdClassName = "";
+    // bytes logged by each live transaction, read without holding the log's lock
+    ConcurrentHashMap<Long, Long> tidToLogBytes = new ConcurrentHashMap<Long, Long>();
 
     /**
      * Constructor.
@@ -125,6 +206,8 @@ public class LogFile {
     public LogFile(File f) throws IOException {
         this.logFile = f;
         raf = new RandomAccessFile(f, "rw");
+        segments = new LogSegments(f, Config.getIntProperty("logSegmentSize", 16 * 1024 * 1024),
+                Config.getIntProperty("logSegmentsRecycled", 4));
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -142,21 +225,78 @@ public class LogFile {
     // DB wants to do recovery, we're sure now -- it didn't. So truncate
     // the log.
     void preAppend() throws IOException {
-        logger.debug("preAppend start, offsets = " + raf.getFilePointer());
-        print();
+        logger.debug("preAppend start, offsets = " + currentOffset);
 
         totalRecords++;
         if (recoveryUndecided) {
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            startNewLog();
+        }
+
+        logger.debug("preAppend end, offsets = " + currentOffset);
+    }
+
+    // throw away the log and start an empty one in the current format
+    private void startNewLog() throws IOException {
+        logStart = segments.reset();
+        version = LOG_VERSION;
+        raf.setLength(0);
+        writeControl(NO_CHECKPOINT_ID);
+        startAppending(logStart);
+    }
+
+    // append the following records at the given LSN
+    private void startAppending(long lsn) {
+        currentOffset = lsn;
+        buffer.reset(segments, lsn);
+    }
+
+    // write the control file and force it to disk
+    private void writeControl(long checkpoint) throws IOException {
+        raf.seek(0);
+        raf.writeLong(checkpoint);
+        raf.writeLong(logStart);
+        raf.writeLong(segments.getSegmentSize());
+        raf.writeLong(version);
+        raf.getChannel().force(false);
+    }
+
+    /**
+     * @return the contents of the control file, null if there is no log
+     * @throws IOException if the log is of a newer format than this code
+     */
+    private long[] readControl() throws IOException {
+        if (raf.length() < CONTROL_SIZE) {
+            return null;
+        }
+        raf.seek(0);
+        long[] control = new long[]{raf.readLong(), raf.readLong(), raf.readLong(), 1};
+        if (raf.length() >= CONTROL_SIZE + LONG_SIZE) {
+            control[3] = raf.readLong();
+        }
+        if (control[3] < 1 || control[3] > LOG_VERSION) {
+            throw new IOException("unsupported log format version " + control[3]);
         }
+        return control;
+    }
 
-        print();
-        logger.debug("preAppend end, offsets = " + raf.getFilePointer());
+    /**
+     * Start serializing a new record.
+     */
+    private DataOutputStream beginRecord() {
+        record.reset();
+        return recordOut;
+    }
+
+    /**
+     * Append the record serialized since beginRecord() to the log buffer.
+     *
+     * @return the LSN of the record
+     */
+    private long endRecord() throws IOException {
+        record.writeTo(buffer);
+        currentOffset += record.size();
+        return currentOffset;
     }
 
     public synchronized int getTotalRecords() {
@@ -184,37 +324,79 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                DataOutputStream out = beginRecord();
+                out.writeInt(ABORT_RECORD);
+                out.writeLong(tid.getId());
+                out.writeLong(currentOffset);
+                endRecord();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
+                tidToLogBytes.remove(tid.getId());
             }
         }
     }
 
+    /**
+     * @return the number of log bytes written so far on behalf of a live
+     * transaction
+     */
+    public long getLogBytes(TransactionId tid) {
+        return tidToLogBytes.getOrDefault(tid.getId(), 0L);
+    }
+
+    /**
+     * @return true if the transaction has begun in the log and not committed
+     * or aborted yet, so that rollback can find its records
+     */
+    public synchronized boolean isLive(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
+    }
+
+    /**
+     * @return the number of transactions that have begun and not committed
+     * or aborted yet
+     */
+    int activeTransactions() {
+        return tidToLogBytes.size();
+    }
+
     /**
      * Write a commit record to disk for the specified tid,
      * and force the log to disk.
+     * <p>
+     * The log is not forced by the calling thread: the commit waits for the
+     * group commit flusher, which forces the log once for all the
+     * transactions committing at the same time.
      *
      * @param tid The committing transaction.
      */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        logger.debug("logCommit start, offset = " + raf.getFilePointer());
-
-        preAppend();
-        logger.debug("COMMIT " + tid);
-        //should we verify that this is a live transaction?
-
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    public void logCommit(TransactionId tid) throws IOException {
+        long lsn;
+        synchronized (this) {
+            logger.debug("logCommit start, offset = " + currentOffset);
+
+            preAppend();
+            logger.debug("COMMIT " + tid);
+            //should we verify that this is a live transaction?
+
+            DataOutputStream out = beginRecord();
+            out.writeInt(COMMIT_RECORD);
+            out.writeLong(tid.getId());
+            out.writeLong(currentOffset);
+            lsn = endRecord();
+            tidToFirstLogRecord.remove(tid.getId());
+            tidToLogBytes.remove(tid.getId());
+
+            logger.debug("logCommit end, offset = " + currentOffset);
+        }
+        groupCommit.await(lsn);
+    }
 
-        logger.debug("logCommit end, offset = " + raf.getFilePointer());
+    /**
+     * @return the number of times the log was forced to make commits durable
+     */
+    public long getCommitForceCount() {
+        return groupCommit.getForceCount();
     }
 
     /**
@@ -224,12 +406,59 @@ public class LogFile {
      * @param tid    The transaction performing the write
      * @param before The before image of the page
      * @param after  The after image of the page
+     * @return the LSN of the record
      * @see simpledb.Page#getBeforeImage
      */
-    public synchronized void logWrite(TransactionId tid, Page before,
+    public synchronized long logWrite(TransactionId tid, Page before,
                                       Page after)
             throws IOException {
-        logger.debug(String.format("[%s] logWrite start, offset: %s", tid, raf.getFilePointer()));
+        return logWrite(tid, before, after, after.getPageData());
+    }
+
+    /**
+     * Write the record for a page that is about to be written out. The
+     * first time a page is logged after it was read, or after a checkpoint
+     * began, this is an UPDATE record with the before image and the page;
+     * otherwise a DELTA record with the change since the last record for
+     * the page.
+     *
+     * @param tid     The transaction that dirtied the page
+     * @param page    The page
+     * @param data    The page data to log
+     * @param logged  The page data as of the last record for the page, or
+     *                null if there is none
+     * @param pageLsn The LSN of the last record for the page, or 0
+     * @return the LSN of the record, or pageLsn if the page did not change
+     */
+    public long logWrite(TransactionId tid, Page page, byte[] data, byte[] logged, long pageLsn)
+            throws IOException {
+        PageDelta delta = logged == null ? null : PageDelta.diff(page, logged, data);
+        synchronized (this) {
+            if (delta == null || pageLsn <= checkpointLsn) {
+                return logWrite(tid, page.getBeforeImage(), page, data);
+            }
+            if (delta.isEmpty()) {
+                return pageLsn;
+            }
+            logger.debug(String.format("[%s] logWrite delta start, offset: %s", tid, currentOffset));
+
+            preAppend();
+            DataOutputStream out = beginRecord();
+            out.writeInt(DELTA_RECORD);
+            out.writeLong(tid.getId());
+            writePageId(out, page);
+            out.writeInt(delta.size());
+            delta.write(out);
+            out.writeLong(currentOffset);
+            long size = record.size();
+            tidToLogBytes.computeIfPresent(tid.getId(), (id, bytes) -> bytes + size);
+            return endRecord();
+        }
+    }
+
+    private long logWrite(TransactionId tid, Page before, Page after, byte[] afterData)
+            throws IOException {
+        logger.debug(String.format("[%s] logWrite start, offset: %s", tid, currentOffset));
 
         preAppend();
         /* update record conists of
@@ -242,111 +471,44 @@ public class LogFile {
 
            4 + 8 + before page + after page + 8
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf, before);
-        writePageData(raf, after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-
-        logger.debug(String.format("[%s] logWrite end, offset: %s", tid, raf.getFilePointer()));
+        DataOutputStream out = beginRecord();
+        out.writeInt(UPDATE_RECORD);
+        out.writeLong(tid.getId());
+
+        writePageData(out, before);
+        writePageData(out, after, afterData);
+        out.writeLong(currentOffset);
+        // pages may be flushed on behalf of a transaction that has finished
+        long size = record.size();
+        tidToLogBytes.computeIfPresent(tid.getId(), (id, bytes) -> bytes + size);
+        long lsn = endRecord();
+
+        logger.debug(String.format("[%s] logWrite end, offset: %s", tid, currentOffset));
+        return lsn;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException {
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
-
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
-
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+    void writePageData(DataOutput raf, Page p) throws IOException {
+        writePageData(raf, p, p.getPageData());
+    }
 
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
-        }
-        byte[] pageData = p.getPageData();
+    private void writePageData(DataOutput raf, Page p, byte[] pageData) throws IOException {
+        writePageId(raf, p);
         raf.writeInt(pageData.length);
         raf.write(pageData);
         logger.debug("page size: " + pageData.length);
-        logger.debug("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " + pid.getTableId() + ", page = " + pid.getPageNumber());
+        logger.debug("WROTE PAGE DATA, CLASS = " + p.getClass().getName() + ", table = " + p.getId().getTableId() + ", page = " + p.getId().getPageNumber());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
-
-        logger.debug(String.format("page class: %s, id class: %s",pageClassName, idClassName));
-
-        // temp variables
-        tempPageClassName = pageClassName;
-        tempIdClassName = idClassName;
-
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i < numIdArgs; i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            logger.debug(String.format("id args (from raf log): %s", idArgs));
-            pid = (PageId) idConsts[0].newInstance(idArgs);
-            logger.debug(String.format("pid: %s", pid));
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            logger.debug(String.format("pre read page data, page size: %s",pageSize));
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
-            logger.debug(String.format("post read page data, page data: %s",pageData));
-
-            Object[] pageArgs = new Object[2];
-            logger.debug(String.format("init page args: %s",pageArgs));
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
-            logger.debug(String.format("pid: %s, tableid: %s",pid, pid.getTableId()));
-
-//            add page to catelog
-//            Database.getCatalog().addTable();
-
-            logger.debug(String.format("updated page args: %s",pageArgs[0]));
-            logger.debug(String.format("updated page args: %s",pageArgs[1]));
-            logger.debug(String.format("page const: %s", pageConsts[0]));
-            newPage = (Page) pageConsts[0].newInstance(pageArgs);
-
-//            logger.debug("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().getPageNumber());
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
+    // the part of writePageData before the data
+    private void writePageId(DataOutput raf, Page p) throws IOException {
+        PageId pid = p.getId();
+        PageType type = PageType.of(p);
+        if (type != null) {
+            LogRecord.PageImage.writeId(raf, type, null, null, pid.serialize(), version);
+        } else {
+            LogRecord.PageImage.writeId(raf, null, p.getClass().getName(), pid.getClass().getName(),
+                    pid.serialize(), version);
         }
-        return newPage;
-
     }
 
     /**
@@ -356,164 +518,133 @@ public class LogFile {
      */
     public synchronized void logXactionBegin(TransactionId tid)
             throws IOException {
-        logger.debug(String.format("[%s] logXactionBegin start, offset: %s", tid, raf.getFilePointer()));
+        logger.debug(String.format("[%s] logXactionBegin start, offset: %s", tid, currentOffset));
 
         if (tidToFirstLogRecord.get(tid.getId()) != null) {
             System.err.printf("logXactionBegin: already began this tid\n");
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        DataOutputStream out = beginRecord();
+        out.writeInt(BEGIN_RECORD);
+        out.writeLong(tid.getId());
+        out.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        tidToLogBytes.put(tid.getId(), (long) record.size());
+        endRecord();
 
-        logger.debug(String.format("[%s] logXactionBegin end, offset: %s", tid, raf.getFilePointer()));
+        logger.debug(String.format("[%s] logXactionBegin end, offset: %s", tid, currentOffset));
     }
 
     /**
      * Checkpoint the log and write a checkpoint record.
+     * <p>
+     * The checkpoint is fuzzy: the BEGIN_CHECKPOINT record lists the active
+     * transactions and the dirty pages, then those pages are written out
+     * while other transactions keep running and logging, and finally an
+     * END_CHECKPOINT record is appended. Only then is the checkpoint pointer
+     * at the start of the log moved to the new checkpoint and the log
+     * truncated.
      */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
+        synchronized (checkpointLock) {
+            long beginOffset;
+            long beginLsn;
+            Map<PageId, Long> dirtyPages;
             synchronized (this) {
-                logger.debug(String.format("logCheckpoint start, offset: %s", raf.getFilePointer()));
+                logger.debug(String.format("logCheckpoint start, offset: %s", currentOffset));
 
                 preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
+                dirtyPages = Database.getBufferPool().dirtyPages();
+                beginOffset = currentOffset;
+                DataOutputStream out = beginRecord();
+                out.writeInt(BEGIN_CHECKPOINT_RECORD);
+                out.writeLong(-1); //no tid , but leave space for convenience
 
                 //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    logger.debug("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
+                out.writeInt(tidToFirstLogRecord.size());
+                for (Map.Entry<Long, Long> e : tidToFirstLogRecord.entrySet()) {
+                    logger.debug("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+                    out.writeLong(e.getKey());
+                    out.writeLong(e.getValue());
+                }
+
+                //write the dirty page table
+                out.writeInt(dirtyPages.size());
+                for (Map.Entry<PageId, Long> e : dirtyPages.entrySet()) {
+                    long recLsn = e.getValue();
+                    out.writeInt(e.getKey().getTableId());
+                    out.writeInt(e.getKey().getPageNumber());
+                    // a page without a recLSN may have been dirty for a while
+                    out.writeLong(Math.max(recLsn, logStart));
                 }
+                out.writeLong(currentOffset);
+                beginLsn = endRecord();
+                checkpointLsn = beginLsn;
+            }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+            Database.getBufferPool().flushCheckpointPages(dirtyPages.keySet(), beginLsn);
+
+            synchronized (this) {
+                preAppend();
+                DataOutputStream out = beginRecord();
+                out.writeInt(END_CHECKPOINT_RECORD);
+                out.writeLong(-1);
+                out.writeLong(beginOffset);
+                out.writeLong(currentOffset);
+                endRecord();
+                force();
+
+                //once the CP is complete, make sure the CP location in the
+                // control file is updated
+                writeControl(beginOffset);
                 //Debug.log("CP OFFSET = " + currentOffset);
 
-                logger.debug(String.format("logCheckpoint end, offset: %s", raf.getFilePointer()));
+                logger.debug(String.format("logCheckpoint end, offset: %s", currentOffset));
             }
-        }
 
-        logTruncate();
+            logTruncate();
+        }
     }
 
     /**
      * Truncate any unneeded portion of the log to reduce its space
-     * consumption
+     * consumption. The log is cut at a segment boundary, segments that only
+     * hold records from before the last checkpoint that recovery does not
+     * need are removed as a whole.
      */
     public synchronized void logTruncate() throws IOException {
         preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+        long[] control = readControl();
+        long cpLoc = control[0];
+        if (cpLoc == NO_CHECKPOINT_ID) {
+            return;
+        }
 
         long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
+        buffer.writeOut();
+        try (LogRecord.Reader reader = new LogRecord.Reader(segments, cpLoc, version, false)) {
+            LogRecord checkpoint = reader.next();
+            if (checkpoint == null || checkpoint.type != BEGIN_CHECKPOINT_RECORD) {
                 throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
             }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
+            for (long firstLogRecord : checkpoint.transactions.values()) {
+                minLogRecord = Math.min(minLogRecord, firstLogRecord);
             }
-        }
-
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                logger.debug("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                    case UPDATE_RECORD:
-                        Page before = readPageData(raf);
-                        Page after = readPageData(raf);
-
-                        writePageData(logNew, before);
-                        writePageData(logNew, after);
-                        break;
-                    case CHECKPOINT_RECORD:
-                        int numXactions = raf.readInt();
-                        logNew.writeInt(numXactions);
-                        while (numXactions-- > 0) {
-                            long xid = raf.readLong();
-                            long xoffset = raf.readLong();
-                            logNew.writeLong(xid);
-                            logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                        }
-                        break;
-                    case BEGIN_RECORD:
-                        tidToFirstLogRecord.put(record_tid, newStart);
-                        break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
+            // redo may have to start before the checkpoint
+            for (long recLsn : checkpoint.dirtyPages.values()) {
+                minLogRecord = Math.min(minLogRecord, recLsn);
             }
         }
+        if (minLogRecord <= logStart) {
+            return;
+        }
 
-        logger.debug("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
-        //print();
+        // the control file must not point into removed segments
+        logStart = minLogRecord;
+        writeControl(cpLoc);
+        segments.truncate(minLogRecord, currentOffset);
+        logger.debug("TRUNCATED LOG, NEW START: " + minLogRecord);
     }
 
     /**
@@ -533,57 +664,97 @@ public class LogFile {
 
                 preAppend();
                 // some code goes here
-                RandomAccessFile tempRaf = new RandomAccessFile(logFile,"rw");
-                long start = tidToFirstLogRecord.get(tid.getId());
-                tempRaf.seek(start + 20);
-                while (true) {
-                    try {
-                        int type = tempRaf.readInt();
-                        logger.debug(String.format("record type: %s", type));
-
-                        if (type < 1 || type > 5) {
-                            break;
-                        }
-
-                        long record_tid;
-
-                        switch (type) {
-                            case UPDATE_RECORD:
-                                record_tid = tempRaf.readLong();
-                                logger.debug("tid: " + record_tid);
-
-                                Page before = readPageData(tempRaf);
-                                Page after = readPageData(tempRaf);
-
-                                logger.debug("rollback page " + before.getId());
-                                Database.getCatalog().getDatabaseFile(before.getId().getTableId()).writePage(before);
-                                logger.debug(String.format("rollback page write complete, pageid: %s, empty slots: %d", before.getId(), ((HeapPage) before).getNumEmptySlots()));
-
-                                Database.getBufferPool().discardPage(before.getId());
-                                break;
-                            case CHECKPOINT_RECORD:
-                                int activeCount = tempRaf.readInt();
-                                logger.debug(String.format("checkpoint has %d transactions", activeCount));
-                                for (int i = 0; i < activeCount; i++) {
-                                    long tidTmp = tempRaf.readLong();
-                                    long firstOffset = tempRaf.readLong();
-                                    logger.debug(String.format("checkpoint transaction: %d, start offset: %d\n", tidTmp, firstOffset));
-                                }
-                                break;
-                            case COMMIT_RECORD:
-                            case BEGIN_RECORD:
-                                record_tid = tempRaf.readLong();
-                                logger.debug("tid: " + record_tid);
-                                break;
+                Long start = tidToFirstLogRecord.get(tid.getId());
+                if (start == null) {
+                    return;
+                }
+                // the records are read back from the segments
+                buffer.writeOut();
+                List<LogRecord> records = new ArrayList<>();
+                try (LogRecord.Reader reader = new LogRecord.Reader(segments, start, version, true)) {
+                    for (LogRecord r = reader.next(); r != null; r = reader.next()) {
+                        if (r.tid == tid.getId()
+                                && (r.type == UPDATE_RECORD || r.type == DELTA_RECORD || r.type == CLR_RECORD)) {
+                            records.add(r);
                         }
-                        long offset = tempRaf.readLong();
-                        logger.debug("offset: " + offset);
-                    } catch (EOFException e) {
-                        break;
                     }
                 }
+                undo(records);
+            }
+        }
+    }
+
+    /**
+     * Undo updates, newest first. Every undone update gets a CLR with the
+     * whole page as the undo leaves it, and the CLRs reach the disk before
+     * the pages they restore. Updates that a CLR already in the log has
+     * undone, before a crash, are not undone again. A DELTA is undone on
+     * the page as the newer records left it, or as the record itself left it
+     * if it is the newest record of the page: that is the buffer pool's last
+     * logged version of the page, or the page on disk if the pool has not
+     * logged it since reading it.
+     *
+     * @param records UPDATE, DELTA and CLR records of the transactions to
+     *                roll back, in log order
+     */
+    private void undo(List<LogRecord> records) throws IOException {
+        // CLRs are written newest update first, so everything from the
+        // oldest update a transaction has a CLR for on is undone already
+        Map<Long, Long> undoneFrom = new HashMap<>();
+        for (LogRecord r : records) {
+            if (r.type == CLR_RECORD) {
+                undoneFrom.merge(r.tid, r.ref, Math::min);
+            }
+        }
+
+        // every page as the undo leaves it, by page key
+        Map<Long, LogRecord.PageImage> undone = new LinkedHashMap<>();
+        for (int i = records.size() - 1; i >= 0; i--) {
+            LogRecord r = records.get(i);
+            if ((r.type != UPDATE_RECORD && r.type != DELTA_RECORD)
+                    || r.offset >= undoneFrom.getOrDefault(r.tid, Long.MAX_VALUE)) {
+                continue;
+            }
+            LogRecord.PageImage image;
+            if (r.type == UPDATE_RECORD) {
+                image = r.before;
+            } else {
+                LogRecord.PageImage newer = undone.get(r.after.key());
+                byte[] data = newer != null ? newer.data.clone() : loggedData(r.after);
+                r.delta.undo(data);
+                image = r.after.withData(data);
             }
+            undone.put(image.key(), image);
+
+            preAppend();
+            DataOutputStream out = beginRecord();
+            out.writeInt(CLR_RECORD);
+            out.writeLong(r.tid);
+            image.write(out, version);
+            out.writeLong(r.offset);
+            out.writeLong(currentOffset);
+            endRecord();
         }
+        if (undone.isEmpty()) {
+            return;
+        }
+        force();
+
+        for (LogRecord.PageImage image : undone.values()) {
+            Page before = image.toPage();
+            logger.debug("rollback page " + before.getId());
+            Database.getCatalog().getDatabaseFile(before.getId().getTableId()).writePage(before);
+            Database.getBufferPool().discardPage(before.getId());
+        }
+    }
+
+    /**
+     * @return the page as its newest record left it. A page that was logged
+     * but not written since is only up to date in the buffer pool.
+     */
+    private static byte[] loggedData(LogRecord.PageImage image) throws IOException {
+        byte[] data = Database.getBufferPool().getLoggedData(image.toPageId());
+        return data != null ? data : image.readData();
     }
 
     /**
@@ -591,10 +762,13 @@ public class LogFile {
      * is necessary so that start up can happen quickly (without
      * extensive recovery.)
      */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                raf.close();
+                segments.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -612,141 +786,118 @@ public class LogFile {
                 recoveryUndecided = false;
                 // some code goes here
                 logger.info("recover start");
+                long start = System.nanoTime();
+
+                // the transactions that held locks are gone
+                ConcurrentStatus.reset();
+
+                long[] control = readControl();
+                if (control == null) {
+                    startNewLog();
+                    return;
+                }
+                logStart = control[1];
+                version = (int) control[3];
+                if (control[2] != segments.getSegmentSize()) {
+                    // the log was written with another segment size
+                    segments.close();
+                    segments = new LogSegments(logFile, control[2], Config.getIntProperty("logSegmentsRecycled", 4));
+                }
+
+                LogRecovery recovery = new LogRecovery(segments, logStart, control[0], version, recoveryThreads);
+                long end = recovery.analyze();
+                // drop a record that was only partly written
+                segments.discardAfter(end);
+                // new records go after the existing ones
+                startAppending(end);
+
+                recovery.redo();
+
+                undo(recovery.getLoserRecords());
+                for (long tid : recovery.getLosers()) {
+                    preAppend();
+                    DataOutputStream out = beginRecord();
+                    out.writeInt(ABORT_RECORD);
+                    out.writeLong(tid);
+                    out.writeLong(currentOffset);
+                    endRecord();
+                }
+                force();
+                if (version < LOG_VERSION) {
+                    // what recovery did is in the table files now, the old
+                    // log is not needed anymore
+                    logger.info("recovered a version " + version + " log, starting a version " + LOG_VERSION + " log");
+                    startNewLog();
+                }
+
+                logger.info(String.format("recover end, %d losers rolled back in %.1f ms",
+                        recovery.getLosers().size(), (System.nanoTime() - start) / 1e6));
             }
         }
     }
 
+    /**
+     * Set the number of threads redo installs pages with during recovery.
+     */
+    public synchronized void setRecoveryThreads(int threads) {
+        recoveryThreads = threads;
+    }
+
     /**
      * Print out a human readable represenation of the log
      */
     public void print() throws IOException {
         // some code goes here
-
-        String s = "";
-        String contentHex = readFileHex(logFile);
-        if (contentHex.length() == 0) {
+        long[] control;
+        synchronized (this) {
+            buffer.writeOut();
+            control = readControl();
+        }
+        if (control == null) {
             logger.debug("wal log empty");
             return;
         }
 
-        s += String.format("\n\traw content [%d]:", logFile.length());
-        String content = "";
-
-        int line = 0;
-        for (int i = 0; i+4 < contentHex.length(); i += 4) {
-            if (i % (4 * 32) == 0) {
-                content += "\n\t\t";
-                line++;
-                if (line >= 2) {
-                    break;
-                }
-            }
-            content += contentHex.substring(i,i+4);
-            content += " ";
-
-        }
-        s += content;
-
-        s += "\n\tstructured content:\n";
-
-        logger.debug(String.format("create temporary raf log: %s",logFile));
-        RandomAccessFile tempRaf = new RandomAccessFile(logFile, "rw");
-        try {
-            long lastWrittenCheckpoint = tempRaf.readLong();
-            if (lastWrittenCheckpoint != NO_CHECKPOINT_ID) {
-                s += String.format("\t\tlastWrittenCheckpoint : %d\n", lastWrittenCheckpoint);
-            } else {
-                s += String.format("\t\tlastWrittenCheckpoint : no checkpoint[%d]\n", lastWrittenCheckpoint);
-            }
-        } catch (EOFException e) {
-            logger.debug(s);
+        String s = "\n\tstructured content:\n";
+        long lastWrittenCheckpoint = control[0];
+        if (lastWrittenCheckpoint != NO_CHECKPOINT_ID) {
+            s += String.format("\t\tlastWrittenCheckpoint : %d\n", lastWrittenCheckpoint);
+        } else {
+            s += String.format("\t\tlastWrittenCheckpoint : no checkpoint[%d]\n", lastWrittenCheckpoint);
         }
+        s += String.format("\t\tlog start : %d, segment size: %d, version: %d\n", control[1], control[2], control[3]);
 
         HashMap<Integer, String> recordName = new HashMap<>();
         recordName.put(1, "ABORT_RECORD");
         recordName.put(2, "COMMIT_RECORD");
         recordName.put(3, "UPDATE_RECORD");
         recordName.put(4, "BEGIN_RECORD");
-        recordName.put(5, "CHECKPOINT_RECORD");
-
-        int recordType;
-        long tid;
-        long offset = 0;
-
-        Integer[] arr = {1, 2, 3, 4, 5};
-
-        while (true) {
-            try {
-                recordType = tempRaf.readInt();
-                tid = tempRaf.readLong();
-
-                String beforeImageS = "\t\t\timage: \n";
-                String afterImageS = "\t\t\tafterImage: \n";
-                String checkS = "\t\t\tcheck point content: \n";
-
-                if (recordType == CHECKPOINT_RECORD) {
-                    int activeCount = tempRaf.readInt();
-                    for (int i = 0; i < activeCount; i++) {
-                        tid = tempRaf.readLong();
-                        long firstOffset = tempRaf.readLong();
-                        checkS += String.format("\t\t\t\ttransaction: %d, start offset: %d\n", tid, firstOffset);
-                    }
-                }
-
-                if (recordType == UPDATE_RECORD) {
-
-//                    The following sentence will cause problems with BufferPoolWriteTest, so we jump out here temporarily
-//                    The page initialization will failed since the tableid not in catalog
-//                    Error:
-//                    Caused by: java.util.NoSuchElementException
-//	at simpledb.Catalog.getTupleDesc(Catalog.java:102)
-//	at simpledb.HeapPage.<init>(HeapPage.java:46)
-
-                    if (true) break;
-
-                    Page beforeImage = readPageData(tempRaf);
-
-                    beforeImageS += String.format("\t\t\t\tclassName: %s\n", tempIdClassName);
-                    beforeImageS += String.format("\t\t\t\ttable: %s\n", beforeImage.getId().getTableId());
-                    beforeImageS += String.format("\t\t\t\tpage: %s\n", beforeImage.getId().getPageNumber());
-
-                    HeapPage image = (HeapPage) beforeImage;
-                    int beforeEmpty =  image.getNumEmptySlots();
-                    int beforeTotal = image.tuples.length;
-
-                    Page afterImage = readPageData(tempRaf);
-
-                    image = (HeapPage) afterImage;
-                    int afterEmpty =  image.getNumEmptySlots();
-                    int afterTotal = image.tuples.length;
-
-//                    beforeImageS += String.format("\t\t\t\tbefore total: %d\n", beforeTotal);
-                    beforeImageS += String.format("\t\t\t\tbefore empty: %d\n", beforeEmpty);
-//                    beforeImageS += String.format("\t\t\t\tafter total: %d\n", afterTotal);
-                    beforeImageS += String.format("\t\t\t\tafter empty: %d\n", afterEmpty);
-
-//                    afterImageS += String.format("\t\t\t\tclassName: %s\n", tempIdClassName);
-//                    afterImageS += String.format("\t\t\t\ttable: %s\n", afterImage.getId().getTableId());
-//                    afterImageS += String.format("\t\t\t\tpage: %s\n", afterImage.getId().getPageNumber());
-                }
-
-                if (Arrays.asList(arr).contains(recordType)) {
-                    offset = tempRaf.readLong();
-                } else {
-                    offset = -1;
+        recordName.put(5, "BEGIN_CHECKPOINT_RECORD");
+        recordName.put(6, "END_CHECKPOINT_RECORD");
+        recordName.put(7, "CLR_RECORD");
+        recordName.put(8, "DELTA_RECORD");
+
+        try (LogRecord.Reader reader = new LogRecord.Reader(segments, control[1], (int) control[3], false)) {
+            for (LogRecord r = reader.next(); r != null; r = reader.next()) {
+                s += String.format("\t\trecord:\n\t\t\ttype: %s[%d], \n\t\t\ttid: %d\n", recordName.get(r.type), r.type, r.tid);
+                s += String.format("\t\t\toffset: %d\n", r.offset);
+                if (r.type == UPDATE_RECORD || r.type == CLR_RECORD || r.type == DELTA_RECORD) {
+                    s += String.format("\t\t\timage: \n\t\t\t\tclassName: %s\n\t\t\t\ttable: %d\n\t\t\t\tpage: %d\n",
+                            r.after.pageClassName, r.after.id[0], r.after.id[1]);
                 }
-
-                s += String.format("\t\trecord:\n\t\t\ttype: %s[%d], \n\t\t\ttid: %d\n", recordName.get(recordType), recordType, tid);
-                s += String.format("\t\t\toffset: %d\n", offset);
-                if (recordType == UPDATE_RECORD) {
-                    s += beforeImageS;
-//                    s += afterImageS;
+                if (r.type == BEGIN_CHECKPOINT_RECORD) {
+                    s += "\t\t\tcheck point content: \n";
+                    for (Map.Entry<Long, Long> e : r.transactions.entrySet()) {
+                        s += String.format("\t\t\t\ttransaction: %d, start offset: %d\n", e.getKey(), e.getValue());
+                    }
+                    for (Map.Entry<Long, Long> e : r.dirtyPages.entrySet()) {
+                        s += String.format("\t\t\t\tdirty page: %d/%d, rec offset: %d\n",
+                                e.getKey() >>> 32, e.getKey() & 0xffffffffL, e.getValue());
+                    }
                 }
-                if (recordType == CHECKPOINT_RECORD) {
-                    s += checkS;
+                if (r.type == END_CHECKPOINT_RECORD) {
+                    s += String.format("\t\t\tcheck point content: \n\t\t\t\tbegin offset: %d\n", r.ref);
                 }
-            } catch (EOFException e) {
-                break;
             }
         }
 
@@ -754,7 +905,62 @@ public class LogFile {
     }
 
     public synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        buffer.writeOut();
+        for (FileChannel channel : segments.channels(groupCommit.getDurableLsn(), currentOffset)) {
+            channel.force(false);
+        }
+        groupCommit.advance(currentOffset);
+    }
+
+    /**
+     * Make the log durable up to the given LSN. Returns right away if it
+     * already is, so BufferPool can call this before writing any page.
+     *
+     * @param lsn the LSN of the last record that has to be durable
+     */
+    public void force(long lsn) throws IOException {
+        if (!groupCommit.isDurable(lsn)) {
+            groupCommit.advance(forceLog());
+        }
+    }
+
+    /**
+     * @return the LSN of the last record appended to the log
+     */
+    public synchronized long getEndLsn() {
+        return currentOffset;
+    }
+
+    /**
+     * @return the LSN of the first record the log holds
+     */
+    public synchronized long getStartLsn() {
+        return logStart;
+    }
+
+    /**
+     * Force the records appended so far to disk, without keeping other
+     * threads from appending while the disk works.
+     *
+     * @return the LSN up to which the log is now durable
+     */
+    long forceLog() throws IOException {
+        List<FileChannel> channels;
+        long lsn;
+        synchronized (this) {
+            buffer.writeOut();
+            lsn = currentOffset;
+            channels = segments.channels(groupCommit.getDurableLsn(), lsn);
+        }
+        for (FileChannel channel : channels) {
+            try {
+                channel.force(false);
+            } catch (ClosedChannelException e) {
+                // the segment was truncated away in the meantime, after a
+                // checkpoint forced it
+            }
+        }
+        return lsn;
     }
 
     public <T> boolean contains(final T[] array, final T key) {
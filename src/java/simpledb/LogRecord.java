@@ -0,0 +1,375 @@
+package simpledb;
+
+import java.io.*;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A record read back from the log, see LogFile for the format. Page images
+ * are kept as raw bytes, they are only turned into pages when needed.
+ */
+class LogRecord {
+
+    final int type;
+    final long tid;
+    // LSN the record starts at
+    long offset;
+
+    // UPDATE: before and after image, CLR: the image the undo wrote,
+    // DELTA: the page without data
+    PageImage before;
+    PageImage after;
+
+    // DELTA: the change to the page
+    PageDelta delta;
+
+    // CLR: the UPDATE record it undoes, END_CHECKPOINT: its BEGIN_CHECKPOINT
+    long ref;
+
+    // BEGIN_CHECKPOINT: first record of every active transaction, and
+    // recLSN offset of every dirty page by PageImage.key()
+    Map<Long, Long> transactions;
+    Map<Long, Long> dirtyPages;
+
+    private LogRecord(int type, long tid) {
+        this.type = type;
+        this.tid = tid;
+    }
+
+    /**
+     * A serialized page, as written by LogFile.writePageData().
+     */
+    static final class PageImage {
+        private static final int MAX_PAGE_BYTES = 1 << 24;
+
+        // null for pages logged by class name
+        final PageType type;
+        final String pageClassName;
+        // null for pages with a type
+        final String idClassName;
+        final int[] id;
+        // null if the image was skipped
+        final byte[] data;
+
+        private PageImage(PageType type, String pageClassName, String idClassName, int[] id, byte[] data) {
+            this.type = type;
+            this.pageClassName = pageClassName;
+            this.idClassName = idClassName;
+            this.id = id;
+            this.data = data;
+        }
+
+        /**
+         * @throws EOFException also for sizes that can only be garbage past
+         *                      the end of the log
+         */
+        static PageImage read(DataInputStream in, int version, boolean withData) throws IOException {
+            PageImage header = readId(in, version);
+            int length = in.readInt();
+            if (length < 0 || length > MAX_PAGE_BYTES) {
+                throw new EOFException();
+            }
+            byte[] data = null;
+            if (withData) {
+                data = new byte[length];
+                in.readFully(data);
+            } else {
+                in.skipBytes(length);
+            }
+            return header.withData(data);
+        }
+
+        /**
+         * Read the type and id of a page, as written by writeId().
+         *
+         * @param version the format of the log, see LogFile.LOG_VERSION
+         */
+        static PageImage readId(DataInputStream in, int version) throws IOException {
+            PageType type = null;
+            if (version >= 2) {
+                byte code = in.readByte();
+                if (code != PageType.BY_CLASS_NAME) {
+                    type = PageType.of(code);
+                    if (type == null) {
+                        throw new EOFException();
+                    }
+                    int[] id = new int[type.idLength];
+                    for (int i = 0; i < id.length; i++) {
+                        id[i] = in.readInt();
+                    }
+                    return new PageImage(type, type.pageClass.getName(), null, id, null);
+                }
+            }
+            String pageClassName = in.readUTF();
+            String idClassName = in.readUTF();
+            int idLength = in.readInt();
+            if (idLength < 2 || idLength > 16) {
+                throw new EOFException();
+            }
+            int[] id = new int[idLength];
+            for (int i = 0; i < id.length; i++) {
+                id[i] = in.readInt();
+            }
+            return new PageImage(null, pageClassName, idClassName, id, null);
+        }
+
+        /**
+         * Write the type and id of a page. Pages of a registered type are
+         * written as the type's code and the ints of the id, others as
+         * their class names and the id; version 1 logs only know the
+         * latter, without the code.
+         *
+         * @param type          the type, or null to write the class names
+         * @param pageClassName the page's class name, if type is null
+         * @param idClassName   the page id's class name, if type is null
+         * @param id            the serialized page id
+         * @param version       the format of the log
+         */
+        static void writeId(DataOutput out, PageType type, String pageClassName, String idClassName, int[] id,
+                            int version) throws IOException {
+            if (version >= 2) {
+                if (type != null) {
+                    out.writeByte(type.code);
+                    for (int i : id) {
+                        out.writeInt(i);
+                    }
+                    return;
+                }
+                out.writeByte(PageType.BY_CLASS_NAME);
+            }
+            if (type != null) {
+                pageClassName = type.pageClass.getName();
+                idClassName = type.pageId(id).getClass().getName();
+            }
+            out.writeUTF(pageClassName);
+            out.writeUTF(idClassName);
+            out.writeInt(id.length);
+            for (int i : id) {
+                out.writeInt(i);
+            }
+        }
+
+        /**
+         * @return the same page with other data
+         */
+        PageImage withData(byte[] data) {
+            return new PageImage(type, pageClassName, idClassName, id, data);
+        }
+
+        void write(DataOutput out, int version) throws IOException {
+            writeId(out, type, pageClassName, idClassName, id, version);
+            out.writeInt(data.length);
+            out.write(data);
+        }
+
+        int getTableId() {
+            return id[0];
+        }
+
+        /**
+         * @return table id and page number in one long, page ids of different
+         * classes for the same page of a file have the same key
+         */
+        long key() {
+            return key(id[0], id[1]);
+        }
+
+        static long key(int tableId, int pageNo) {
+            return ((long) tableId << 32) | (pageNo & 0xffffffffL);
+        }
+
+        boolean sameData(Page page) {
+            return page != null && Arrays.equals(data, page.getPageData());
+        }
+
+        /**
+         * @return the data of the page as it is in its file, zeros if the
+         * page is not in the file
+         */
+        byte[] readData() throws IOException {
+            DbFile dbFile = Database.getCatalog().getDatabaseFile(getTableId());
+            try {
+                return dbFile.readPage(toPageId()).getPageData();
+            } catch (IllegalArgumentException e) {
+                return new byte[BufferPool.getPageSize()];
+            }
+        }
+
+        PageId toPageId() throws IOException {
+            if (type != null) {
+                return type.pageId(id);
+            }
+            try {
+                Class<?>[] types = new Class<?>[id.length];
+                Object[] args = new Object[id.length];
+                for (int i = 0; i < id.length; i++) {
+                    types[i] = int.class;
+                    args[i] = id[i];
+                }
+                return (PageId) Class.forName(idClassName).getDeclaredConstructor(types).newInstance(args);
+            } catch (ClassNotFoundException | NoSuchMethodException | InstantiationException
+                    | IllegalAccessException | InvocationTargetException e) {
+                throw new IOException("cannot create page id " + idClassName, e);
+            }
+        }
+
+        Page toPage() throws IOException {
+            PageId pid = toPageId();
+            if (type != null) {
+                return type.page(pid, data);
+            }
+            try {
+                for (Constructor<?> c : Class.forName(pageClassName).getDeclaredConstructors()) {
+                    Class<?>[] types = c.getParameterTypes();
+                    if (types.length == 2 && types[0].isInstance(pid) && types[1] == byte[].class) {
+                        return (Page) c.newInstance(pid, data);
+                    }
+                }
+                throw new IOException("no constructor for page " + pageClassName);
+            } catch (ClassNotFoundException | InstantiationException
+                    | IllegalAccessException | InvocationTargetException e) {
+                throw new IOException("cannot create page " + pageClassName, e);
+            }
+        }
+    }
+
+    /**
+     * Reads the records of the log one after the other.
+     */
+    static final class Reader implements Closeable {
+        private final CountingInputStream counter;
+        private final DataInputStream in;
+        private final int version;
+        private final boolean withData;
+
+        /**
+         * @param segments the log
+         * @param offset   LSN of the first record to read
+         * @param version  the format of the log, see LogFile.LOG_VERSION
+         * @param withData false to skip over the bytes of page images
+         */
+        Reader(LogSegments segments, long offset, int version, boolean withData) {
+            this.counter = new CountingInputStream(
+                    new BufferedInputStream(segments.openInput(offset), 1 << 16), offset);
+            this.in = new DataInputStream(counter);
+            this.version = version;
+            this.withData = withData;
+        }
+
+        /**
+         * @return the LSN just past the last record returned by next()
+         */
+        long position() {
+            return counter.count;
+        }
+
+        /**
+         * @return the next record, or null at the end of the log. A record
+         * that was not completely written, as after a crash, ends the log.
+         */
+        LogRecord next() throws IOException {
+            long start = counter.count;
+            LogRecord r;
+            try {
+                r = new LogRecord(in.readInt(), in.readLong());
+                switch (r.type) {
+                    case LogFile.ABORT_RECORD:
+                    case LogFile.COMMIT_RECORD:
+                    case LogFile.BEGIN_RECORD:
+                        break;
+                    case LogFile.UPDATE_RECORD:
+                        r.before = PageImage.read(in, version, withData);
+                        r.after = PageImage.read(in, version, withData);
+                        break;
+                    case LogFile.CLR_RECORD:
+                        r.after = PageImage.read(in, version, withData);
+                        r.ref = in.readLong();
+                        break;
+                    case LogFile.DELTA_RECORD:
+                        r.after = PageImage.readId(in, version);
+                        int length = in.readInt();
+                        if (length < 0 || length > PageImage.MAX_PAGE_BYTES) {
+                            return endOfLog(start);
+                        }
+                        if (withData) {
+                            r.delta = PageDelta.read(in);
+                        } else {
+                            in.skipBytes(length);
+                        }
+                        break;
+                    case LogFile.BEGIN_CHECKPOINT_RECORD:
+                        r.transactions = new HashMap<>();
+                        for (int n = in.readInt(); n > 0; n--) {
+                            long tid = in.readLong();
+                            r.transactions.put(tid, in.readLong());
+                        }
+                        r.dirtyPages = new HashMap<>();
+                        for (int n = in.readInt(); n > 0; n--) {
+                            long key = PageImage.key(in.readInt(), in.readInt());
+                            r.dirtyPages.put(key, in.readLong());
+                        }
+                        break;
+                    case LogFile.END_CHECKPOINT_RECORD:
+                        r.ref = in.readLong();
+                        break;
+                    default:
+                        return endOfLog(start);
+                }
+                r.offset = in.readLong();
+            } catch (EOFException | UTFDataFormatException e) {
+                return endOfLog(start);
+            }
+            if (r.offset != start) {
+                return endOfLog(start);
+            }
+            return r;
+        }
+
+        private LogRecord endOfLog(long start) {
+            counter.count = start;
+            return null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in, long count) {
+            super(in);
+            this.count = count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package simpledb;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Analysis and redo of restart recovery, after ARIES. LogFile.recover()
+ * runs both and then undoes the transactions that never finished.
+ * <p>
+ * Analysis reads the log from the last complete checkpoint to its end, to
+ * find the transactions that were still running at the crash (the losers)
+ * and the pages that may be missing updates, each with the LSN of the
+ * first record that may be missing from it (its recLSN).
+ * <p>
+ * Redo repeats history from the smallest recLSN on. UPDATE and CLR records
+ * carry whole page images, DELTA records the change since the previous
+ * record of the page, so redo keeps the newest image of every page with the
+ * later deltas applied to it. A page that only has deltas gets them applied
+ * to the page as it is on disk, which is correct because every delta sets
+ * bytes instead of changing them. The pages are partitioned across worker
+ * threads; each worker reads its pages from disk and writes the redone
+ * page over the ones that do not hold it already. With write ahead logging
+ * no page on disk can be newer than the log.
+ */
+class LogRecovery {
+
+    final static Logger logger = Logger.getLogger(MethodHandles.lookup().lookupClass());
+
+    private final LogSegments segments;
+    private final long logStart;
+    private final int version;
+    private final int threads;
+
+    // LSN of the BEGIN_CHECKPOINT record of the last complete checkpoint
+    private long checkpoint;
+    // first record of every transaction that did not finish
+    private final Map<Long, Long> losers = new HashMap<>();
+    // LSN of the first record that may not be on disk, by page key
+    private final Map<Long, Long> dirtyPages = new HashMap<>();
+    // UPDATE, DELTA and CLR records of the losers, in log order
+    private final List<LogRecord> loserRecords = new ArrayList<>();
+
+    // what redo installs for a page: the newest image with the deltas after
+    // it applied, or only the deltas if there is no image in the log
+    private static final class PageRedo {
+        LogRecord.PageImage header;
+        byte[] data;
+        // whether data is a copy redo may change, not the record's
+        boolean copied;
+        final List<PageDelta> deltas = new ArrayList<>();
+
+        void add(LogRecord r) {
+            header = r.after;
+            if (r.type != LogFile.DELTA_RECORD) {
+                data = r.after.data;
+                copied = false;
+                deltas.clear();
+            } else if (data == null) {
+                deltas.add(r.delta);
+            } else {
+                if (!copied) {
+                    data = data.clone();
+                    copied = true;
+                }
+                r.delta.redo(data);
+            }
+        }
+    }
+
+    private final LongAdder pagesWritten = new LongAdder();
+    private final LongAdder pagesSkipped = new LongAdder();
+
+    /**
+     * @param segments   the log
+     * @param logStart   LSN of the first record of the log
+     * @param checkpoint LSN of the last complete checkpoint, or
+     *                   LogFile.NO_CHECKPOINT_ID
+     * @param version    the format of the log, see LogFile.LOG_VERSION
+     * @param threads    number of threads redo installs pages with
+     */
+    LogRecovery(LogSegments segments, long logStart, long checkpoint, int version, int threads) {
+        this.segments = segments;
+        this.logStart = logStart;
+        this.version = version;
+        this.checkpoint = checkpoint;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Find the losers and the pages that need redo.
+     *
+     * @return the LSN just past the last complete record of the log
+     */
+    long analyze() throws IOException {
+        long start = checkpoint == LogFile.NO_CHECKPOINT_ID ? logStart : checkpoint;
+        try (LogRecord.Reader reader = new LogRecord.Reader(segments, start, version, false)) {
+            LogRecord r = reader.next();
+            if (checkpoint != LogFile.NO_CHECKPOINT_ID
+                    && (r == null || r.type != LogFile.BEGIN_CHECKPOINT_RECORD)) {
+                logger.warn("checkpoint pointer " + checkpoint + " does not point to a checkpoint, reading the whole log");
+                checkpoint = LogFile.NO_CHECKPOINT_ID;
+                return analyze();
+            }
+            for (; r != null; r = reader.next()) {
+                switch (r.type) {
+                    case LogFile.BEGIN_RECORD:
+                        losers.put(r.tid, r.offset);
+                        break;
+                    case LogFile.COMMIT_RECORD:
+                    case LogFile.ABORT_RECORD:
+                        losers.remove(r.tid);
+                        break;
+                    case LogFile.UPDATE_RECORD:
+                    case LogFile.DELTA_RECORD:
+                    case LogFile.CLR_RECORD:
+                        dirtyPages.putIfAbsent(r.after.key(), r.offset);
+                        break;
+                    case LogFile.BEGIN_CHECKPOINT_RECORD:
+                        if (r.offset == checkpoint) {
+                            losers.putAll(r.transactions);
+                            dirtyPages.putAll(r.dirtyPages);
+                        }
+                        break;
+                }
+            }
+            logger.info(String.format("recovery analysis: checkpoint %d, %d losers, %d dirty pages, log ends at %d",
+                    checkpoint, losers.size(), dirtyPages.size(), reader.position()));
+            return reader.position();
+        }
+    }
+
+    /**
+     * Install the redone version of every page that may be missing
+     * updates, and collect the records undo needs.
+     */
+    void redo() throws IOException {
+        long start = checkpoint == LogFile.NO_CHECKPOINT_ID ? logStart : checkpoint;
+        for (long offset : dirtyPages.values()) {
+            start = Math.min(start, offset);
+        }
+        for (long offset : losers.values()) {
+            start = Math.min(start, offset);
+        }
+
+        List<Map<Long, PageRedo>> partitions = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            partitions.add(new HashMap<>());
+        }
+        try (LogRecord.Reader reader = new LogRecord.Reader(segments, start, version, true)) {
+            for (LogRecord r = reader.next(); r != null; r = reader.next()) {
+                if (r.type != LogFile.UPDATE_RECORD && r.type != LogFile.DELTA_RECORD
+                        && r.type != LogFile.CLR_RECORD) {
+                    continue;
+                }
+                long key = r.after.key();
+                Long recOffset = dirtyPages.get(key);
+                if (recOffset != null && r.offset >= recOffset) {
+                    partitions.get(partition(key)).computeIfAbsent(key, k -> new PageRedo()).add(r);
+                }
+                if (losers.containsKey(r.tid)) {
+                    loserRecords.add(r);
+                }
+            }
+        }
+
+        ExecutorService workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "redo");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<Void>> done = new ArrayList<>();
+            for (Map<Long, PageRedo> partition : partitions) {
+                done.add(workers.submit(() -> {
+                    install(partition.values());
+                    return null;
+                }));
+            }
+            for (Future<Void> f : done) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted during redo", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("redo failed", e.getCause());
+        } finally {
+            workers.shutdown();
+        }
+        logger.info(String.format("recovery redo: %d pages written, %d already up to date",
+                pagesWritten.sum(), pagesSkipped.sum()));
+    }
+
+    private int partition(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) Long.remainderUnsigned(h ^ (h >>> 32), threads);
+    }
+
+    private void install(Collection<PageRedo> pages) throws IOException {
+        for (PageRedo page : pages) {
+            DbFile dbFile;
+            try {
+                dbFile = Database.getCatalog().getDatabaseFile(page.header.getTableId());
+            } catch (NoSuchElementException e) {
+                logger.warn("redo: table " + page.header.getTableId() + " is not in the catalog");
+                continue;
+            }
+            Page onDisk;
+            try {
+                onDisk = dbFile.readPage(page.header.toPageId());
+            } catch (IllegalArgumentException e) {
+                // the page did not make it into the file
+                onDisk = null;
+            }
+            byte[] data = page.data;
+            if (data == null) {
+                data = onDisk != null ? onDisk.getPageData() : new byte[BufferPool.getPageSize()];
+                for (PageDelta delta : page.deltas) {
+                    delta.redo(data);
+                }
+            }
+            LogRecord.PageImage image = page.header.withData(data);
+            if (image.sameData(onDisk)) {
+                pagesSkipped.increment();
+            } else {
+                dbFile.writePage(image.toPage());
+                pagesWritten.increment();
+            }
+        }
+    }
+
+    /**
+     * @return the transactions that did not finish
+     */
+    Set<Long> getLosers() {
+        return losers.keySet();
+    }
+
+    /**
+     * @return the UPDATE, DELTA and CLR records of the losers, in log order
+     */
+    List<LogRecord> getLoserRecords() {
+        return loserRecords;
+    }
+
+    long getPagesWritten() {
+        return pagesWritten.sum();
+    }
+
+    long getPagesSkipped() {
+        return pagesSkipped.sum();
+    }
+}
@@ -0,0 +1,363 @@
+package simpledb;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The records of the log, kept in a sequence of segment files of a fixed
+ * size. A position in the log, an LSN, counts bytes from the beginning of
+ * the log as a whole: segment n holds the positions from n * size up to
+ * (n + 1) * size, and is named after the first of them, e.g.
+ * wal.log.0000000001000000. A record may continue from one segment into the
+ * next.
+ * <p>
+ * Segments are created at their full size before anything is written to
+ * them, so appending records never changes the length of a file and forcing
+ * them does not have to write file metadata. Segments the log does not need
+ * anymore are not deleted but renamed to become future segments, up to
+ * a limit. The bytes past the end of the log are therefore zeros or records
+ * of an earlier use of the file, and readers tell them apart from the log by
+ * the position every record ends with.
+ * <p>
+ * Not thread safe, LogFile only uses it while holding its own lock.
+ */
+class LogSegments {
+
+    final static Logger logger = Logger.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final int ZEROS = 64 * 1024;
+
+    private final File dir;
+    private final String prefix;
+    private final long segmentSize;
+    private final int maxRecycled;
+
+    // segments opened for writing, by number
+    private final TreeMap<Long, FileChannel> open = new TreeMap<>();
+
+    /**
+     * @param log         the log's control file, segments are put next to it
+     * @param segmentSize size of a segment in bytes
+     * @param maxRecycled how many unneeded segments to keep for reuse
+     */
+    LogSegments(File log, long segmentSize, int maxRecycled) {
+        File absolute = log.getAbsoluteFile();
+        this.dir = absolute.getParentFile();
+        this.prefix = absolute.getName() + ".";
+        this.segmentSize = segmentSize;
+        this.maxRecycled = maxRecycled;
+    }
+
+    long getSegmentSize() {
+        return segmentSize;
+    }
+
+    private long segment(long lsn) {
+        return lsn / segmentSize;
+    }
+
+    File file(long segment) {
+        return new File(dir, prefix + String.format("%016x", segment * segmentSize));
+    }
+
+    /**
+     * @return the numbers of the segment files there are, including
+     * recycled ones
+     */
+    TreeSet<Long> list() {
+        TreeSet<Long> segments = new TreeSet<>();
+        String[] names = dir.list();
+        if (names == null) {
+            return segments;
+        }
+        for (String name : names) {
+            if (name.startsWith(prefix) && name.length() == prefix.length() + 16) {
+                try {
+                    long start = Long.parseUnsignedLong(name.substring(prefix.length()), 16);
+                    if (start % segmentSize == 0) {
+                        segments.add(start / segmentSize);
+                    }
+                } catch (NumberFormatException e) {
+                    // not a segment
+                }
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Throw away the log and start a new one. Its LSNs continue after the
+     * ones of all existing segment files, so that records left in recycled
+     * segments can never be taken for records of the new log.
+     *
+     * @return the LSN the new log starts at
+     */
+    long reset() throws IOException {
+        close();
+        TreeSet<Long> existing = list();
+        long start = existing.isEmpty() ? 0 : (existing.last() + 1) * segmentSize;
+        long next = segment(start);
+        for (long segment : existing) {
+            if (next - segment(start) < maxRecycled) {
+                recycle(segment, next++);
+            } else {
+                delete(segment);
+            }
+        }
+        return start;
+    }
+
+    /**
+     * Remove the segments that only hold records before the given LSN.
+     *
+     * @param lsn the first record the log still needs
+     * @param end the current end of the log
+     */
+    void truncate(long lsn, long end) throws IOException {
+        TreeSet<Long> existing = list();
+        long next = Math.max(existing.isEmpty() ? 0 : existing.last(), segment(end)) + 1;
+        int recycled = existing.tailSet(segment(end), false).size();
+        for (long segment : existing.headSet(segment(lsn))) {
+            if (recycled < maxRecycled) {
+                recycle(segment, next++);
+                recycled++;
+            } else {
+                delete(segment);
+            }
+        }
+    }
+
+    /**
+     * Make sure nothing is found past the end of the log after a crash:
+     * clear the rest of the last segment and drop the segments after it,
+     * which may hold records written before a record the crash tore.
+     *
+     * @param end the end of the last complete record
+     */
+    void discardAfter(long end) throws IOException {
+        for (long segment : list().tailSet(segment(end), false)) {
+            delete(segment);
+        }
+        if (file(segment(end)).exists()) {
+            FileChannel channel = channel(segment(end));
+            long position = end - segment(end) * segmentSize;
+            ByteBuffer zeros = ByteBuffer.allocate(ZEROS);
+            while (position < segmentSize) {
+                zeros.clear();
+                zeros.limit((int) Math.min(ZEROS, segmentSize - position));
+                position += channel.write(zeros, position);
+            }
+            channel.force(false);
+        }
+    }
+
+    private void recycle(long segment, long as) throws IOException {
+        close(segment);
+        if (!file(segment).renameTo(file(as))) {
+            throw new IOException("cannot rename log segment " + file(segment) + " to " + file(as));
+        }
+        logger.debug("recycled log segment " + file(segment).getName() + " as " + file(as).getName());
+    }
+
+    private void delete(long segment) throws IOException {
+        close(segment);
+        if (!file(segment).delete() && file(segment).exists()) {
+            throw new IOException("cannot delete log segment " + file(segment));
+        }
+    }
+
+    /**
+     * @return the channel of the given segment, which is created at its full
+     * size if it does not exist
+     */
+    private FileChannel channel(long segment) throws IOException {
+        FileChannel channel = open.get(segment);
+        if (channel == null) {
+            channel = new RandomAccessFile(file(segment), "rw").getChannel();
+            if (channel.size() < segmentSize) {
+                preallocate(channel);
+            }
+            open.put(segment, channel);
+        }
+        return channel;
+    }
+
+    private void preallocate(FileChannel channel) throws IOException {
+        long start = System.nanoTime();
+        ByteBuffer zeros = ByteBuffer.allocateDirect(ZEROS);
+        for (long position = channel.size(); position < segmentSize; ) {
+            zeros.clear();
+            zeros.limit((int) Math.min(ZEROS, segmentSize - position));
+            position += channel.write(zeros, position);
+        }
+        channel.force(true);
+        logger.debug(String.format("preallocated log segment in %.1f ms", (System.nanoTime() - start) / 1e6));
+    }
+
+    /**
+     * Write the remaining bytes of the buffers to the log, starting at the
+     * given LSN. Uses one gathering write per segment the bytes go to.
+     */
+    void write(long lsn, ByteBuffer[] data, long length) throws IOException {
+        long end = lsn + length;
+        while (lsn < end) {
+            long segment = segment(lsn);
+            long n = Math.min(end - lsn, (segment + 1) * segmentSize - lsn);
+            write(channel(segment), lsn - segment * segmentSize, data, n);
+            lsn += n;
+        }
+    }
+
+    // write n bytes of the buffers, leaving the rest for the next segment
+    private static void write(FileChannel channel, long position, ByteBuffer[] data, long n) throws IOException {
+        int[] limits = new int[data.length];
+        long left = n;
+        for (int i = 0; i < data.length; i++) {
+            limits[i] = data[i].limit();
+            int take = (int) Math.min(left, data[i].remaining());
+            data[i].limit(data[i].position() + take);
+            left -= take;
+        }
+        channel.position(position);
+        while (n > 0) {
+            n -= channel.write(data);
+        }
+        for (int i = 0; i < data.length; i++) {
+            data[i].limit(limits[i]);
+        }
+    }
+
+    /**
+     * @return the open channels of the segments holding the given range of
+     * the log, to be forced
+     */
+    List<FileChannel> channels(long from, long to) {
+        if (from > to) {
+            return new ArrayList<>();
+        }
+        return new ArrayList<>(open.subMap(segment(from), true, segment(to), true).values());
+    }
+
+    /**
+     * @return a stream of the log from the given LSN on, which ends where
+     * the segment files end
+     */
+    InputStream openInput(long lsn) {
+        return new SegmentInputStream(lsn);
+    }
+
+    private void close(long segment) throws IOException {
+        FileChannel channel = open.remove(segment);
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    void close() throws IOException {
+        for (FileChannel channel : open.values()) {
+            channel.close();
+        }
+        open.clear();
+    }
+
+    /**
+     * Reads the segments one after the other.
+     */
+    private final class SegmentInputStream extends InputStream {
+        private long position;
+        // the segment being read, null if the next one has to be opened
+        private FileInputStream in;
+        private long segmentEnd;
+        private boolean ended = false;
+
+        SegmentInputStream(long position) {
+            this.position = position;
+        }
+
+        private boolean ensureOpen() throws IOException {
+            if (in != null) {
+                return true;
+            }
+            if (ended) {
+                return false;
+            }
+            long segment = segment(position);
+            File f = file(segment);
+            if (!f.exists()) {
+                ended = true;
+                return false;
+            }
+            in = new FileInputStream(f);
+            in.getChannel().position(position - segment * segmentSize);
+            segmentEnd = (segment + 1) * segmentSize;
+            return true;
+        }
+
+        private void advance(long n) throws IOException {
+            position += n;
+            if (position >= segmentEnd) {
+                in.close();
+                in = null;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!ensureOpen()) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, segmentEnd - position));
+            if (n < 0) {
+                // a segment that is shorter than it should be ends the log
+                ended = true;
+                in.close();
+                in = null;
+                return -1;
+            }
+            advance(n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0 || !ensureOpen()) {
+                return 0;
+            }
+            long skipped = Math.min(n, segmentEnd - position);
+            in.getChannel().position(in.getChannel().position() + skipped);
+            advance(skipped);
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            ended = true;
+            if (in != null) {
+                in.close();
+                in = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package simpledb;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Merges k sorted inputs into one sorted output. The inputs are the leaves
+ * of a tournament tree whose inner nodes remember the loser of the match
+ * played there; the overall winner is the next output. After it is taken,
+ * only the matches on the path from its input to the root are replayed, so
+ * every tuple costs log2(k) comparisons.
+ * <p>
+ * Ties go to the input that comes first in the list, so merging runs of a
+ * stable sort in the order they were written keeps the sort stable.
+ */
+class LoserTree {
+
+    private final List<OpIterator> inputs;
+    private final Comparator<Tuple> comparator;
+    private final int k;
+
+    // the current tuple of every input, null once it is exhausted
+    private final Tuple[] heads;
+    // tree[0] is the winner, tree[1..k-1] the losers of the inner nodes;
+    // the leaves, k..2k-1, are the inputs and are not stored
+    private final int[] tree;
+
+    /**
+     * @param inputs     sorted inputs, already open
+     * @param comparator the order of the inputs
+     */
+    LoserTree(List<OpIterator> inputs, Comparator<Tuple> comparator)
+            throws DbException, TransactionAbortedException {
+        this.inputs = inputs;
+        this.comparator = comparator;
+        this.k = inputs.size();
+        this.heads = new Tuple[k];
+        this.tree = new int[Math.max(k, 1)];
+        for (int i = 0; i < k; i++) {
+            advance(i);
+        }
+        if (k > 0) {
+            tree[0] = play(1);
+        }
+    }
+
+    /**
+     * Play the matches of the subtree rooted at node.
+     *
+     * @return the input that wins them
+     */
+    private int play(int node) {
+        if (node >= k) {
+            return node - k;
+        }
+        int a = play(2 * node);
+        int b = play(2 * node + 1);
+        if (beats(a, b)) {
+            tree[node] = b;
+            return a;
+        }
+        tree[node] = a;
+        return b;
+    }
+
+    private boolean beats(int a, int b) {
+        if (heads[a] == null) {
+            return false;
+        }
+        if (heads[b] == null) {
+            return true;
+        }
+        int c = comparator.compare(heads[a], heads[b]);
+        return c < 0 || (c == 0 && a < b);
+    }
+
+    private void advance(int i) throws DbException, TransactionAbortedException {
+        OpIterator input = inputs.get(i);
+        heads[i] = input.hasNext() ? input.next() : null;
+    }
+
+    boolean hasNext() {
+        return k > 0 && heads[tree[0]] != null;
+    }
+
+    Tuple next() throws DbException, TransactionAbortedException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        int winner = tree[0];
+        Tuple t = heads[winner];
+        advance(winner);
+
+        // replay the matches on the way from the winner's leaf to the root
+        for (int node = (winner + k) / 2; node > 0; node /= 2) {
+            if (beats(tree[node], winner)) {
+                int loser = winner;
+                winner = tree[node];
+                tree[node] = loser;
+            }
+        }
+        tree[0] = winner;
+        return t;
+    }
+}
@@ -0,0 +1,116 @@
+package simpledb;
+
+import java.util.HashMap;
+import java.util.TreeSet;
+
+/**
+ * LRU-K eviction (O'Neil, O'Neil and Weikum).
+ * <p>
+ * The policy remembers the last K accesses of every resident page and evicts
+ * the page whose K-th most recent access lies furthest in the past. Pages
+ * that have been touched fewer than K times have an infinite backward
+ * K-distance and are evicted first, least recently used among them first,
+ * so a page read once by a sequential scan cannot push out a page that is
+ * referenced over and over.
+ * <p>
+ * Pages are kept ordered in a tree, so every operation is O(log n).
+ */
+public class LruKEvictionPolicy implements EvictionPolicy {
+
+    public static final int DEFAULT_K = 2;
+
+    private static class History {
+        final PageId pid;
+        // access times, most recent first
+        final long[] times;
+        int count = 0;
+
+        History(PageId pid, int k) {
+            this.pid = pid;
+            this.times = new long[k];
+        }
+
+        void access(long now) {
+            System.arraycopy(times, 0, times, 1, times.length - 1);
+            times[0] = now;
+            if (count < times.length) {
+                count++;
+            }
+        }
+
+        // time of the K-th most recent access, or -1 for "infinitely long ago"
+        long kthAccess() {
+            return count < times.length ? -1 : times[times.length - 1];
+        }
+
+        long lastAccess() {
+            return times[0];
+        }
+    }
+
+    private final int k;
+    private long clock = 0;
+    private final HashMap<PageId, History> histories = new HashMap<>();
+    // ordered from best victim to worst victim; last access times are
+    // unique, which makes the order total
+    private final TreeSet<History> order = new TreeSet<>((a, b) -> {
+        int c = Long.compare(a.kthAccess(), b.kthAccess());
+        if (c != 0) {
+            return c;
+        }
+        return Long.compare(a.lastAccess(), b.lastAccess());
+    });
+
+    public LruKEvictionPolicy() {
+        this(DEFAULT_K);
+    }
+
+    /**
+     * @param k number of past accesses to remember per page, LRU-1 is
+     *          plain LRU
+     */
+    public LruKEvictionPolicy(int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be positive");
+        }
+        this.k = k;
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        History h = histories.get(pid);
+        if (h == null) {
+            h = new History(pid, k);
+            histories.put(pid, h);
+        } else {
+            order.remove(h);
+        }
+        h.access(++clock);
+        order.add(h);
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        History h = histories.get(pid);
+        if (h == null) {
+            return;
+        }
+        order.remove(h);
+        h.access(++clock);
+        order.add(h);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        History h = histories.remove(pid);
+        if (h != null) {
+            order.remove(h);
+        }
+    }
+
+    public synchronized PageId chooseVictim(Filter filter) {
+        for (History h : order) {
+            if (filter.isEvictable(h.pid)) {
+                return h.pid;
+            }
+        }
+        return null;
+    }
+}
@@ -4,10 +4,26 @@ import java.util.*;
 
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
+ * <p>
+ * If the child's tuples fit in the work memory granted by the BufferPool
+ * they are sorted in memory. Otherwise OrderBy does an external merge sort:
+ * replacement selection turns the child into sorted runs, about twice as
+ * long as what fits in memory, which are written to spill files and merged
+ * with a {@link LoserTree}, in several passes if there are more runs than
+ * input buffers. Both ways the sort is stable.
+ * <p>
+ * With a limit only the first tuples of the ordering are returned, and if
+ * they fit in memory only they are kept, in a bounded heap.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /**
+     * Limit meaning all tuples are returned.
+     */
+    public static final int NO_LIMIT = -1;
+
     private OpIterator child;
     private TupleDesc td;
     private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
@@ -15,6 +31,18 @@ public class OrderBy extends Operator {
     private String orderByFieldName;
     private Iterator<Tuple> it;
     private boolean asc;
+    private int limit;
+
+    // work memory granted by the buffer pool, in pages
+    transient private int memoryPages = 0;
+
+    // sorted runs spilled to disk, null if the sort fit in memory, and the
+    // merge of them being returned
+    transient private List<SpillFile> runs = null;
+    transient private List<OpIterator> runInputs = null;
+    transient private LoserTree merge = null;
+
+    transient private int returned;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -24,11 +52,25 @@ public class OrderBy extends Operator {
      * @param child        the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, OpIterator child) {
+        this(orderbyField, asc, child, NO_LIMIT);
+    }
+
+    /**
+     * Creates a new OrderBy node that returns only the first tuples of the
+     * ordering.
+     *
+     * @param orderbyField the field to which the sort is applied.
+     * @param asc          true if the sort order is ascending.
+     * @param child        the tuples to sort.
+     * @param limit        the number of tuples to return, or NO_LIMIT
+     */
+    public OrderBy(int orderbyField, boolean asc, OpIterator child, int limit) {
         this.child = child;
         td = child.getTupleDesc();
         this.orderByField = orderbyField;
         this.orderByFieldName = td.getFieldName(orderbyField);
         this.asc = asc;
+        this.limit = limit;
     }
 
     public boolean isASC() {
@@ -43,6 +85,10 @@ public class OrderBy extends Operator {
         return this.orderByFieldName;
     }
 
+    public int getLimit() {
+        return this.limit;
+    }
+
     public TupleDesc getTupleDesc() {
         return td;
     }
@@ -50,21 +96,216 @@ public class OrderBy extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        childTups.clear();
+        memoryPages = Database.getBufferPool().reserveWorkMemory(Integer.MAX_VALUE);
+        long memoryBytes = (long) memoryPages * BufferPool.getPageSize();
+        int capacity = (int) Math.max(1, Math.min(Integer.MAX_VALUE - 1,
+                memoryBytes / SpillFile.memoryBytes(td)));
+        Comparator<Tuple> comparator = new TupleComparator(orderByField, asc);
+
+        if (limit != NO_LIMIT && limit <= capacity) {
+            topN(comparator);
+        } else {
+            // load the tuples in a collection, sort it if they all fit
+            while (childTups.size() < capacity && child.hasNext()) {
+                childTups.add(detach(child.next()));
+            }
+            if (child.hasNext()) {
+                runs = replacementSelection(comparator, capacity);
+                childTups.clear();
+                mergeRuns(comparator, Math.max(2, memoryPages - 1));
+            } else {
+                Collections.sort(childTups, comparator);
+            }
+        }
+        start();
         super.open();
     }
 
+    /**
+     * Keep the tuple after the child moves on from the page it was read from.
+     */
+    private static Tuple detach(Tuple t) {
+        t.materialize();
+        return t;
+    }
+
+    /**
+     * Collect the first limit tuples of the ordering in a heap whose root is
+     * the last of them, and sort them.
+     */
+    private void topN(Comparator<Tuple> comparator) throws DbException, TransactionAbortedException {
+        Comparator<Entry> order = entryOrder(comparator);
+        PriorityQueue<Entry> heap = new PriorityQueue<Entry>(Math.max(1, limit), order.reversed());
+        long seq = 0;
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            if (heap.size() < limit) {
+                heap.add(new Entry(detach(t), 0, seq++));
+            } else if (limit > 0 && comparator.compare(t, heap.peek().tuple) < 0) {
+                // a tuple equal to the root comes after it, and stays out
+                heap.poll();
+                heap.add(new Entry(detach(t), 0, seq++));
+            }
+        }
+        List<Entry> first = new ArrayList<Entry>(heap);
+        Collections.sort(first, order);
+        for (Entry e : first) {
+            childTups.add(e.tuple);
+        }
+    }
+
+    /**
+     * A tuple waiting in a heap, and the run it will be written to.
+     */
+    private static final class Entry {
+        final Tuple tuple;
+        final int run;
+        // order in which the tuples were read, to keep the sort stable
+        final long seq;
+
+        Entry(Tuple tuple, int run, long seq) {
+            this.tuple = tuple;
+            this.run = run;
+            this.seq = seq;
+        }
+    }
+
+    /**
+     * @return the order of entries: by run, then by tuple, then in the order
+     * they were read
+     */
+    private static Comparator<Entry> entryOrder(final Comparator<Tuple> comparator) {
+        return new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                if (a.run != b.run) {
+                    return a.run < b.run ? -1 : 1;
+                }
+                int c = comparator.compare(a.tuple, b.tuple);
+                return c != 0 ? c : Long.compare(a.seq, b.seq);
+            }
+        };
+    }
+
+    /**
+     * Write the child to sorted runs, starting with the tuples loaded in
+     * childTups. A heap of capacity tuples is kept: the smallest one is
+     * written to the current run and replaced by the next tuple of the
+     * child, which goes to the current run if it does not sort before the
+     * tuple just written, and to the next run otherwise.
+     */
+    private List<SpillFile> replacementSelection(Comparator<Tuple> comparator, int capacity)
+            throws DbException, TransactionAbortedException {
+        PriorityQueue<Entry> heap = new PriorityQueue<Entry>(capacity, entryOrder(comparator));
+        long seq = 0;
+        for (Tuple t : childTups) {
+            heap.add(new Entry(t, 0, seq++));
+        }
+
+        List<SpillFile> runs = new ArrayList<SpillFile>();
+        SpillFile out = null;
+        int run = -1;
+        while (!heap.isEmpty()) {
+            Entry e = heap.poll();
+            if (e.run != run) {
+                out = new SpillFile(td);
+                runs.add(out);
+                run = e.run;
+            }
+            out.add(e.tuple);
+
+            if (child.hasNext()) {
+                Tuple t = detach(child.next());
+                heap.add(new Entry(t, comparator.compare(t, e.tuple) >= 0 ? run : run + 1, seq++));
+            }
+        }
+        return runs;
+    }
+
+    /**
+     * Merge groups of runs into longer ones until there are at most fanIn
+     * left, so they can all be merged while the tuples are returned.
+     */
+    private void mergeRuns(Comparator<Tuple> comparator, int fanIn)
+            throws DbException, TransactionAbortedException {
+        while (runs.size() > fanIn) {
+            List<SpillFile> merged = new ArrayList<SpillFile>();
+            for (int i = 0; i < runs.size(); i += fanIn) {
+                List<SpillFile> group = runs.subList(i, Math.min(i + fanIn, runs.size()));
+                if (group.size() == 1) {
+                    merged.add(group.get(0));
+                    continue;
+                }
+                List<OpIterator> inputs = openRuns(group);
+                SpillFile out = new SpillFile(td);
+                LoserTree tree = new LoserTree(inputs, comparator);
+                while (tree.hasNext()) {
+                    out.add(tree.next());
+                }
+                for (int j = 0; j < group.size(); j++) {
+                    inputs.get(j).close();
+                    group.get(j).delete();
+                }
+                merged.add(out);
+            }
+            runs = merged;
+        }
+    }
+
+    private static List<OpIterator> openRuns(List<SpillFile> runs) throws DbException, TransactionAbortedException {
+        List<OpIterator> inputs = new ArrayList<OpIterator>(runs.size());
+        for (SpillFile run : runs) {
+            OpIterator input = run.iterator();
+            input.open();
+            inputs.add(input);
+        }
+        return inputs;
+    }
+
+    /**
+     * Start returning the sorted tuples from the beginning.
+     */
+    private void start() throws DbException, TransactionAbortedException {
+        returned = 0;
+        if (runs == null) {
+            it = childTups.iterator();
+            return;
+        }
+        closeRuns();
+        runInputs = openRuns(runs);
+        merge = new LoserTree(runInputs, new TupleComparator(orderByField, asc));
+    }
+
+    private void closeRuns() {
+        if (runInputs != null) {
+            for (OpIterator input : runInputs) {
+                input.close();
+            }
+            runInputs = null;
+        }
+        merge = null;
+    }
+
     public void close() {
         super.close();
         it = null;
+        closeRuns();
+        if (runs != null) {
+            for (SpillFile run : runs) {
+                run.delete();
+            }
+            runs = null;
+        }
+        childTups.clear();
+        child.close();
+        if (memoryPages > 0) {
+            Database.getBufferPool().releaseWorkMemory(memoryPages);
+            memoryPages = 0;
+        }
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        start();
     }
 
     /**
@@ -76,10 +317,19 @@ public class OrderBy extends Operator {
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
-        if (it != null && it.hasNext()) {
-            return it.next();
-        } else
+        if (limit != NO_LIMIT && returned >= limit) {
             return null;
+        }
+        Tuple next = null;
+        if (merge != null && merge.hasNext()) {
+            next = merge.next();
+        } else if (it != null && it.hasNext()) {
+            next = it.next();
+        }
+        if (next != null) {
+            returned++;
+        }
+        return next;
     }
 
     @Override
@@ -0,0 +1,163 @@
+package simpledb;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+
+/**
+ * Writes dirty pages of a buffer pool in the background, so that a reader
+ * that misses in the pool finds a clean frame to reuse instead of writing
+ * out somebody else's page first.
+ * <p>
+ * The pool calls {@link #wake()} whenever the number of dirty pages rises
+ * above the high watermark, or a foreground miss had to write a dirty page
+ * itself. The cleaner thread then writes cold, unpinned dirty pages that no
+ * running transaction has locked exclusively, see BufferPool#cleanPages, in
+ * batches, sorted by table and page number so that adjacent pages go out as
+ * sequential writes, until the number of dirty pages drops to the low
+ * watermark. It writes at most pagesPerSecond pages a second, so that it
+ * does not crowd out foreground reads.
+ * <p>
+ * Like the flusher of {@link GroupCommit}, the cleaner thread is started
+ * when needed and exits after a second without work.
+ */
+class PageCleaner {
+
+    final static Logger logger = Logger.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final long IDLE_MILLIS = 1000;
+
+    // pause after a sweep that found nothing to write, while the pages over
+    // the watermark are still in use
+    private static final long BACKOFF_MILLIS = 10;
+
+    /**
+     * Pages written with one force of the log.
+     */
+    static final int BATCH_PAGES = 16;
+
+    private final BufferPool pool;
+    private final int highWatermark;
+    private final int lowWatermark;
+    private final int pagesPerSecond;
+
+    // all guarded by this
+    private boolean requested = false;
+    private boolean cleanerRunning = false;
+    private long written = 0;
+
+    /**
+     * @param pool           the pool to clean
+     * @param highWatermark  number of dirty pages that starts the cleaner
+     * @param lowWatermark   number of dirty pages the cleaner stops at
+     * @param pagesPerSecond upper bound on the cleaner's write rate, 0 for
+     *                       no bound
+     */
+    PageCleaner(BufferPool pool, int highWatermark, int lowWatermark, int pagesPerSecond) {
+        this.pool = pool;
+        this.highWatermark = Math.max(1, highWatermark);
+        this.lowWatermark = Math.max(0, Math.min(lowWatermark, this.highWatermark - 1));
+        this.pagesPerSecond = Math.max(0, pagesPerSecond);
+    }
+
+    int getHighWatermark() {
+        return highWatermark;
+    }
+
+    int getLowWatermark() {
+        return lowWatermark;
+    }
+
+    /**
+     * Have the cleaner run, starting its thread if it is not running.
+     */
+    synchronized void wake() {
+        requested = true;
+        if (!cleanerRunning) {
+            cleanerRunning = true;
+            Thread cleaner = new Thread(this::run, "page-cleaner");
+            cleaner.setDaemon(true);
+            cleaner.start();
+        } else {
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return the number of pages the cleaner wrote
+     */
+    synchronized long getWrittenCount() {
+        return written;
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                synchronized (this) {
+                    if (!awaitWork()) {
+                        cleanerRunning = false;
+                        return;
+                    }
+                    requested = false;
+                }
+                if (!clean()) {
+                    Thread.sleep(BACKOFF_MILLIS);
+                }
+            }
+        } catch (InterruptedException e) {
+            synchronized (this) {
+                cleanerRunning = false;
+            }
+        }
+    }
+
+    /**
+     * Wait until the cleaner is woken up.
+     *
+     * @return false if there was nothing to do for a while
+     */
+    private boolean awaitWork() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + IDLE_MILLIS;
+        while (!requested) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Write batches of pages until the pool is down to the low watermark, or
+     * all its dirty pages are pinned or in use.
+     *
+     * @return false if the pool is still above the low watermark
+     */
+    private boolean clean() throws InterruptedException {
+        long batchNanos = pagesPerSecond == 0 ? 0 : BATCH_PAGES * 1000000000L / pagesPerSecond;
+        while (pool.getDirtyPageCount() > lowWatermark) {
+            long start = System.nanoTime();
+            int n;
+            try {
+                n = pool.cleanPages(Math.min(BATCH_PAGES, pool.getDirtyPageCount() - lowWatermark));
+            } catch (IOException | RuntimeException e) {
+                logger.error("could not clean pages", e);
+                return false;
+            }
+            if (n == 0) {
+                return false;
+            }
+            synchronized (this) {
+                written += n;
+            }
+
+            long remaining = batchNanos * n / BATCH_PAGES - (System.nanoTime() - start);
+            if (remaining > 0) {
+                Thread.sleep(remaining / 1000000, (int) (remaining % 1000000));
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,275 @@
+package simpledb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The change between two versions of a page, as a list of operations on
+ * the page data that can be applied to the older version to get the newer
+ * one and undone again:
+ * <ul>
+ * <li> SLOT_INSERT fills an empty slot of a {@link SlottedPage}, and holds
+ * the new record.
+ * <li> SLOT_DELETE empties a slot, and holds the old record.
+ * <li> RANGE replaces a range of bytes, and holds the old and new bytes.
+ * </ul>
+ * Every operation sets bytes to given values rather than changing them
+ * relative to what is there, so redoing a delta on a page that already has
+ * it does no harm.
+ */
+final class PageDelta {
+
+    static final byte SLOT_INSERT = 1;
+    static final byte SLOT_DELETE = 2;
+    static final byte RANGE = 3;
+
+    // differences separated by fewer equal bytes than this go in one range
+    private static final int MERGE_GAP = 5;
+
+    private static final class Op {
+        final byte kind;
+        // slot number, or offset of a range
+        final int position;
+        final byte[] before;
+        final byte[] after;
+
+        Op(byte kind, int position, byte[] before, byte[] after) {
+            this.kind = kind;
+            this.position = position;
+            this.before = before;
+            this.after = after;
+        }
+    }
+
+    // slot layout, zero for pages without slots
+    private final int bitmapOffset;
+    private final int firstSlotOffset;
+    private final int slotSize;
+    private final List<Op> ops;
+
+    private PageDelta(int bitmapOffset, int firstSlotOffset, int slotSize, List<Op> ops) {
+        this.bitmapOffset = bitmapOffset;
+        this.firstSlotOffset = firstSlotOffset;
+        this.slotSize = slotSize;
+        this.ops = ops;
+    }
+
+    /**
+     * Describe how a page changed. Slots of a {@link SlottedPage} that were
+     * filled or emptied become slot operations, all other differences
+     * become byte ranges.
+     *
+     * @param page   the page, for its layout
+     * @param before the older page data
+     * @param after  the newer page data
+     */
+    static PageDelta diff(Page page, byte[] before, byte[] after) {
+        List<Op> ops = new ArrayList<>();
+        if (!(page instanceof SlottedPage)) {
+            ranges(before, after, ops);
+            return new PageDelta(0, 0, 0, ops);
+        }
+
+        SlottedPage slotted = (SlottedPage) page;
+        int bitmap = slotted.slotBitmapOffset();
+        int first = slotted.firstSlotOffset();
+        int size = slotted.slotSize();
+        // the slot operations are applied to a copy of the old data, what
+        // they do not explain is left for the ranges
+        byte[] applied = null;
+        for (int i = 0; i < slotted.slotCount(); i++) {
+            int b = bitmap + (i >> 3);
+            int mask = 1 << (i & 7);
+            if (((before[b] ^ after[b]) & mask) == 0) {
+                continue;
+            }
+            int offset = first + i * size;
+            boolean inserted = (after[b] & mask) != 0;
+            if (!isZero(inserted ? before : after, offset, size)) {
+                continue;
+            }
+            if (applied == null) {
+                applied = before.clone();
+            }
+            byte[] record = Arrays.copyOfRange(inserted ? after : before, offset, offset + size);
+            Op op = inserted ? new Op(SLOT_INSERT, i, null, record) : new Op(SLOT_DELETE, i, record, null);
+            ops.add(op);
+            redo(op, applied, bitmap, first, size);
+        }
+        ranges(applied == null ? before : applied, after, ops);
+        return new PageDelta(bitmap, first, size, ops);
+    }
+
+    private static boolean isZero(byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (data[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void ranges(byte[] before, byte[] after, List<Op> ops) {
+        int length = Math.min(before.length, after.length);
+        int i = 0;
+        while (i < length) {
+            if (before[i] == after[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1;
+            // extend the range over short runs of equal bytes
+            for (int j = end; j < length && j - end < MERGE_GAP; j++) {
+                if (before[j] != after[j]) {
+                    end = j + 1;
+                }
+            }
+            ops.add(new Op(RANGE, start, Arrays.copyOfRange(before, start, end), Arrays.copyOfRange(after, start, end)));
+            i = end;
+        }
+    }
+
+    /**
+     * @return true if the two versions of the page were the same
+     */
+    boolean isEmpty() {
+        return ops.isEmpty();
+    }
+
+    /**
+     * Turn the older version of the page data into the newer one.
+     */
+    void redo(byte[] data) {
+        for (Op op : ops) {
+            redo(op, data, bitmapOffset, firstSlotOffset, slotSize);
+        }
+    }
+
+    /**
+     * Turn the newer version of the page data back into the older one.
+     */
+    void undo(byte[] data) {
+        for (int i = ops.size() - 1; i >= 0; i--) {
+            Op op = ops.get(i);
+            switch (op.kind) {
+                case SLOT_INSERT:
+                    setSlot(data, op.position, null, bitmapOffset, firstSlotOffset, slotSize);
+                    break;
+                case SLOT_DELETE:
+                    setSlot(data, op.position, op.before, bitmapOffset, firstSlotOffset, slotSize);
+                    break;
+                default:
+                    System.arraycopy(op.before, 0, data, op.position, op.before.length);
+            }
+        }
+    }
+
+    private static void redo(Op op, byte[] data, int bitmap, int first, int size) {
+        switch (op.kind) {
+            case SLOT_INSERT:
+                setSlot(data, op.position, op.after, bitmap, first, size);
+                break;
+            case SLOT_DELETE:
+                setSlot(data, op.position, null, bitmap, first, size);
+                break;
+            default:
+                System.arraycopy(op.after, 0, data, op.position, op.after.length);
+        }
+    }
+
+    // fill a slot with a record, or empty it if the record is null
+    private static void setSlot(byte[] data, int slot, byte[] record, int bitmap, int first, int size) {
+        int b = bitmap + (slot >> 3);
+        int offset = first + slot * size;
+        if (record != null) {
+            data[b] |= 1 << (slot & 7);
+            System.arraycopy(record, 0, data, offset, size);
+        } else {
+            data[b] &= ~(1 << (slot & 7));
+            Arrays.fill(data, offset, offset + size, (byte) 0);
+        }
+    }
+
+    /**
+     * @return the number of bytes write() writes
+     */
+    int size() {
+        int size = 4 * 4;
+        for (Op op : ops) {
+            size += 1 + 4 + (op.kind == RANGE ? 4 + 2 * op.before.length : slotSize);
+        }
+        return size;
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeInt(bitmapOffset);
+        out.writeInt(firstSlotOffset);
+        out.writeInt(slotSize);
+        out.writeInt(ops.size());
+        for (Op op : ops) {
+            out.writeByte(op.kind);
+            out.writeInt(op.position);
+            switch (op.kind) {
+                case SLOT_INSERT:
+                    out.write(op.after);
+                    break;
+                case SLOT_DELETE:
+                    out.write(op.before);
+                    break;
+                default:
+                    out.writeInt(op.before.length);
+                    out.write(op.before);
+                    out.write(op.after);
+            }
+        }
+    }
+
+    /**
+     * @throws EOFException also for sizes that can only be garbage
+     *                              past the end of the log
+     */
+    static PageDelta read(DataInput in) throws IOException {
+        int bitmapOffset = in.readInt();
+        int firstSlotOffset = in.readInt();
+        int slotSize = in.readInt();
+        int count = in.readInt();
+        if (slotSize < 0 || slotSize > BufferPool.getPageSize() || count < 0 || count > BufferPool.getPageSize()) {
+            throw new EOFException();
+        }
+        List<Op> ops = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte kind = in.readByte();
+            int position = in.readInt();
+            switch (kind) {
+                case SLOT_INSERT:
+                    ops.add(new Op(kind, position, null, readBytes(in, slotSize)));
+                    break;
+                case SLOT_DELETE:
+                    ops.add(new Op(kind, position, readBytes(in, slotSize), null));
+                    break;
+                case RANGE:
+                    int length = in.readInt();
+                    if (length < 0 || length > BufferPool.getPageSize()) {
+                        throw new EOFException();
+                    }
+                    ops.add(new Op(kind, position, readBytes(in, length), readBytes(in, length)));
+                    break;
+                default:
+                    throw new EOFException();
+            }
+        }
+        return new PageDelta(bitmapOffset, firstSlotOffset, slotSize, ops);
+    }
+
+    private static byte[] readBytes(DataInput in, int length) throws IOException {
+        byte[] b = new byte[length];
+        in.readFully(b);
+        return b;
+    }
+}
@@ -0,0 +1,277 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * The backing store of a DbFile on disk. The file is opened once and kept
+ * open, and pages are read and written with positional reads and writes on
+ * its FileChannel, so accessing a page costs a single pread or pwrite instead
+ * of opening, seeking and closing the file every time.
+ * <p>
+ * The size of the file is cached and grown by every write past its end.
+ * {@link #refreshSize()} re-reads it from the open file, for callers that
+ * have to see pages appended by somebody else.
+ * <p>
+ * A thread can read a run of pages with a single call, see
+ * {@link #readAhead(long, int)}, and a batch of pages is written with one
+ * gathering write per run of adjacent pages, see {@link #write(long[], byte[][])}.
+ * <p>
+ * For read-mostly tables the file can be memory mapped, see
+ * {@link #setMemoryMapped(boolean)}. Writes always go through the channel;
+ * the mappings are shared with the page cache, so they see them.
+ */
+public class PageFile {
+
+    // a MappedByteBuffer is limited to 2GB, bigger files are mapped in segments
+    private static final long SEGMENT_SIZE = 1L << 30;
+
+    private final File f;
+
+    private volatile FileChannel channel;
+    private volatile long size;
+
+    private volatile boolean memoryMapped = false;
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+    /**
+     * Bytes read ahead by one thread, served to its following reads.
+     */
+    private static final class Staged {
+        final long offset;
+        final byte[] data;
+        final int length;
+
+        Staged(long offset, byte[] data, int length) {
+            this.offset = offset;
+            this.data = data;
+            this.length = length;
+        }
+    }
+
+    private final ThreadLocal<Staged> staged = new ThreadLocal<>();
+
+    public PageFile(File f) {
+        this.f = f;
+    }
+
+    private FileChannel channel() throws IOException {
+        FileChannel ch = channel;
+        if (ch == null) {
+            synchronized (this) {
+                ch = channel;
+                if (ch == null) {
+                    ch = new RandomAccessFile(f, "rw").getChannel();
+                    size = ch.size();
+                    channel = ch;
+                }
+            }
+        }
+        return ch;
+    }
+
+    /**
+     * @return the size of the file in bytes, as of the last write through
+     * this PageFile or the last {@link #refreshSize()}
+     */
+    public long size() throws IOException {
+        channel();
+        return size;
+    }
+
+    /**
+     * Re-read the size of the file, to pick up pages that were appended to it
+     * without going through this PageFile.
+     */
+    public synchronized long refreshSize() throws IOException {
+        size = channel().size();
+        return size;
+    }
+
+    private synchronized void grow(long end) {
+        if (end > size) {
+            size = end;
+        }
+    }
+
+    /**
+     * Read len bytes at the given offset into buf.
+     *
+     * @return the number of bytes read, which is less than len only at the
+     * end of the file, or -1 if offset is past the end of the file
+     */
+    public int read(long offset, byte[] buf, int len) throws IOException {
+        Staged ahead = staged.get();
+        if (ahead != null && offset >= ahead.offset && offset + len <= ahead.offset + ahead.length) {
+            System.arraycopy(ahead.data, (int) (offset - ahead.offset), buf, 0, len);
+            return len;
+        }
+
+        if (memoryMapped) {
+            ByteBuffer mapped = mapped(offset, len);
+            if (mapped != null) {
+                mapped.get(buf, 0, len);
+                return len;
+            }
+        }
+
+        FileChannel ch = channel();
+        ByteBuffer dst = ByteBuffer.wrap(buf, 0, len);
+        while (dst.hasRemaining()) {
+            int n = ch.read(dst, offset + dst.position());
+            if (n < 0) {
+                break;
+            }
+        }
+        return dst.position() == 0 && len > 0 ? -1 : dst.position();
+    }
+
+    /**
+     * Read len bytes at the given offset with a single call, and serve the
+     * reads of the calling thread that fall into them from memory until it
+     * calls {@link #endReadAhead()}.
+     */
+    public void readAhead(long offset, int len) throws IOException {
+        byte[] data = new byte[len];
+        int n = read(offset, data, len);
+        staged.set(new Staged(offset, data, Math.max(n, 0)));
+    }
+
+    public void endReadAhead() {
+        staged.remove();
+    }
+
+    /**
+     * Write len bytes of data at the given offset, growing the file if the
+     * write ends past its end.
+     */
+    public void write(long offset, byte[] data, int len) throws IOException {
+        FileChannel ch = channel();
+        ByteBuffer src = ByteBuffer.wrap(data, 0, len);
+        while (src.hasRemaining()) {
+            ch.write(src, offset + src.position());
+        }
+        grow(offset + len);
+    }
+
+    /**
+     * Write a batch of blocks, sorted by offset. Blocks that follow each
+     * other without a gap are written as one run with a gathering write, so
+     * a run of adjacent pages costs a single system call.
+     *
+     * @param offsets the offset of every block, ascending
+     * @param blocks  the blocks, written in full
+     */
+    public void write(long[] offsets, byte[][] blocks) throws IOException {
+        FileChannel ch = channel();
+        int i = 0;
+        while (i < blocks.length) {
+            int start = i;
+            long end = offsets[i] + blocks[i].length;
+            while (++i < blocks.length && offsets[i] == end) {
+                end += blocks[i].length;
+            }
+            ByteBuffer[] run = new ByteBuffer[i - start];
+            for (int j = 0; j < run.length; j++) {
+                run[j] = ByteBuffer.wrap(blocks[start + j]);
+            }
+            // a gathering write goes to the channel's position, which the
+            // positional reads and writes neither use nor move
+            synchronized (this) {
+                ch.position(offsets[start]);
+                long left = end - offsets[start];
+                while (left > 0) {
+                    left -= ch.write(run);
+                }
+            }
+            grow(end);
+        }
+    }
+
+    /**
+     * Force the writes so far to the disk.
+     */
+    public void force() throws IOException {
+        FileChannel ch = channel;
+        if (ch != null) {
+            ch.force(false);
+        }
+    }
+
+    /**
+     * Write data at the end of the file.
+     *
+     * @return the offset the data was written at
+     */
+    public synchronized long append(byte[] data) throws IOException {
+        long offset = size();
+        write(offset, data, data.length);
+        return offset;
+    }
+
+    /**
+     * Serve reads from memory mappings of the file instead of reading them
+     * through the channel. This saves the system call and the copy into the
+     * JVM for every page read, at the cost of address space. Pages appended
+     * to the file after it was mapped are mapped when they are first read.
+     */
+    public synchronized void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+        if (!memoryMapped) {
+            segments = new MappedByteBuffer[0];
+        }
+    }
+
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+    /**
+     * @return a buffer positioned at offset with at least len bytes remaining,
+     * or null if the range is not in the file or crosses two segments
+     */
+    private ByteBuffer mapped(long offset, int len) throws IOException {
+        int index = (int) (offset / SEGMENT_SIZE);
+        int start = (int) (offset % SEGMENT_SIZE);
+        if (start + len > SEGMENT_SIZE) {
+            return null;
+        }
+
+        MappedByteBuffer[] current = segments;
+        MappedByteBuffer segment = index < current.length ? current[index] : null;
+        if (segment == null || segment.capacity() < start + len) {
+            segment = map(index, start + len);
+            if (segment == null) {
+                return null;
+            }
+        }
+        // readers share the mapping, each one gets its own position
+        ByteBuffer view = segment.duplicate();
+        view.position(start);
+        return view;
+    }
+
+    private synchronized MappedByteBuffer map(int index, int minLength) throws IOException {
+        MappedByteBuffer[] current = segments;
+        if (index < current.length && current[index] != null && current[index].capacity() >= minLength) {
+            return current[index];
+        }
+        long start = index * SEGMENT_SIZE;
+        long length = Math.min(SEGMENT_SIZE, refreshSize() - start);
+        if (!memoryMapped || length < minLength) {
+            return null;
+        }
+
+        MappedByteBuffer segment = channel().map(FileChannel.MapMode.READ_ONLY, start, length);
+        MappedByteBuffer[] grown = current.length > index ? current.clone()
+                : Arrays.copyOf(current, index + 1);
+        grown[index] = segment;
+        segments = grown;
+        return segment;
+    }
+}
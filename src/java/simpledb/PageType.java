@@ -0,0 +1,94 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The page classes the log knows by a one byte code. Their images are
+ * written with the code and the ints of the page id, and read back by
+ * calling the constructors directly instead of looking up classes by name.
+ * Pages of other classes are still logged with their class names, see
+ * LogFile.writePageId().
+ * <p>
+ * The codes are part of the log format: never reuse or renumber them.
+ */
+enum PageType {
+    HEAP(1, HeapPage.class, 2,
+            id -> new HeapPageId(id[0], id[1]),
+            (pid, data) -> new HeapPage((HeapPageId) pid, data)),
+    BTREE_LEAF(2, BTreeLeafPage.class, 3,
+            id -> new BTreePageId(id[0], id[1], id[2]),
+            (pid, data) -> new BTreeLeafPage((BTreePageId) pid, data)),
+    BTREE_INTERNAL(3, BTreeInternalPage.class, 3,
+            id -> new BTreePageId(id[0], id[1], id[2]),
+            (pid, data) -> new BTreeInternalPage((BTreePageId) pid, data)),
+    BTREE_HEADER(4, BTreeHeaderPage.class, 3,
+            id -> new BTreePageId(id[0], id[1], id[2]),
+            (pid, data) -> new BTreeHeaderPage((BTreePageId) pid, data)),
+    BTREE_ROOT_PTR(5, BTreeRootPtrPage.class, 3,
+            id -> new BTreePageId(id[0], id[1], id[2]),
+            (pid, data) -> new BTreeRootPtrPage((BTreePageId) pid, data));
+
+    /**
+     * The code written for pages that are not in the registry, followed by
+     * their class names.
+     */
+    static final byte BY_CLASS_NAME = 0;
+
+    interface IdFactory {
+        PageId create(int[] id);
+    }
+
+    interface PageFactory {
+        Page create(PageId pid, byte[] data) throws IOException;
+    }
+
+    private static final PageType[] byCode = new PageType[6];
+    private static final Map<Class<?>, PageType> byClass = new HashMap<>();
+
+    static {
+        for (PageType type : values()) {
+            byCode[type.code] = type;
+            byClass.put(type.pageClass, type);
+        }
+    }
+
+    final byte code;
+    final Class<? extends Page> pageClass;
+    // number of ints in the serialized page id
+    final int idLength;
+    private final IdFactory ids;
+    private final PageFactory pages;
+
+    PageType(int code, Class<? extends Page> pageClass, int idLength, IdFactory ids, PageFactory pages) {
+        this.code = (byte) code;
+        this.pageClass = pageClass;
+        this.idLength = idLength;
+        this.ids = ids;
+        this.pages = pages;
+    }
+
+    /**
+     * @return the type of the page, null if its class is not registered
+     */
+    static PageType of(Page page) {
+        return byClass.get(page.getClass());
+    }
+
+    /**
+     * @return the type with the code, null for BY_CLASS_NAME and unknown
+     * codes
+     */
+    static PageType of(byte code) {
+        return code > 0 && code < byCode.length ? byCode[code] : null;
+    }
+
+    PageId pageId(int[] id) {
+        return ids.create(id);
+    }
+
+    Page page(PageId pid, byte[] data) throws IOException {
+        return pages.create(pid, data);
+    }
+}
@@ -98,7 +98,7 @@ public class Predicate implements Serializable {
      */
     public boolean filter(Tuple t) {
         // some code goes here
-        return t.getField(field).compare(op, operant);
+        return t.compareField(field, op, operant);
     }
 
     /**
@@ -1,10 +1,6 @@
 package simpledb;
 
 import java.io.Serializable;
-import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 
 /**
  * A RecordId is a reference to a specific tuple on a specific page of a
@@ -76,15 +72,6 @@ public class RecordId implements Serializable {
     @Override
     public int hashCode() {
         // some code goes here
-        try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] encodedhash = digest.digest(
-                    String.format("record id page(%d), tupleno(%d)", this.pid.getPageNumber(), this.tupleno).getBytes(StandardCharsets.UTF_8));
-            ByteBuffer wrapped = ByteBuffer.wrap(encodedhash);
-            return wrapped.getInt();
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-            return -1;
-        }
+        return 31 * pid.hashCode() + tupleno;
     }
 }
@@ -0,0 +1,32 @@
+package simpledb;
+
+/**
+ * A page that stores fixed size records in numbered slots, with a bitmap
+ * saying which slots are in use and empty slots zeroed out. Slot i is used
+ * if bit i % 8 of byte i / 8 of the bitmap is set.
+ * <p>
+ * Lets the log describe changes to such a page as slot inserts and deletes,
+ * see {@link PageDelta}.
+ */
+interface SlottedPage extends Page {
+
+    /**
+     * @return where the bitmap of used slots starts in the page data
+     */
+    int slotBitmapOffset();
+
+    /**
+     * @return where the first slot starts in the page data
+     */
+    int firstSlotOffset();
+
+    /**
+     * @return the size of a slot in bytes
+     */
+    int slotSize();
+
+    /**
+     * @return the number of slots on the page
+     */
+    int slotCount();
+}
@@ -0,0 +1,171 @@
+package simpledb;
+
+import java.io.*;
+import java.util.NoSuchElementException;
+
+/**
+ * A temporary file of tuples, written once by an operator that ran out of
+ * memory and read back, possibly several times, through {@link #iterator()}.
+ * Tuples are stored back to back in the same fixed-size format as in heap
+ * pages, without page headers. The file is deleted by {@link #delete()}, or
+ * when the JVM exits.
+ */
+class SpillFile {
+
+    private final TupleDesc td;
+    private final int tupleSize;
+    private final int[] fieldOffsets;
+    private final File f;
+
+    private DataOutputStream out;
+    private final byte[] record;
+    private int numTuples = 0;
+
+    SpillFile(TupleDesc td) throws DbException {
+        this.td = td;
+        this.tupleSize = td.getSize();
+        this.record = new byte[tupleSize];
+        this.fieldOffsets = new int[td.numFields()];
+        for (int i = 1; i < fieldOffsets.length; i++) {
+            fieldOffsets[i] = fieldOffsets[i - 1] + td.getFieldType(i - 1).getLen();
+        }
+        try {
+            this.f = File.createTempFile("spill", ".dat");
+            f.deleteOnExit();
+            this.out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(f), BufferPool.getPageSize()));
+        } catch (IOException e) {
+            throw new DbException("could not create spill file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return a rough estimate of the heap taken by a tuple that an operator
+     * holds in memory: the Tuple, its Field objects and a share of the
+     * collection it is kept in, plus the data itself
+     */
+    static long memoryBytes(TupleDesc td) {
+        return 64 + 24L * td.numFields() + td.getSize();
+    }
+
+    /**
+     * Append a tuple to the file.
+     */
+    void add(Tuple t) throws DbException {
+        for (int i = 0; i < td.numFields(); i++) {
+            td.getFieldType(i).write(t.getField(i), record, fieldOffsets[i]);
+        }
+        try {
+            out.write(record);
+        } catch (IOException e) {
+            throw new DbException("could not write spill file " + f + ": " + e.getMessage());
+        }
+        numTuples++;
+    }
+
+    /**
+     * @return the number of tuples written to the file
+     */
+    int size() {
+        return numTuples;
+    }
+
+    /**
+     * @return the number of bytes written to the file
+     */
+    long bytes() {
+        return (long) numTuples * tupleSize;
+    }
+
+    /**
+     * Stop writing and flush the tuples written so far to disk.
+     */
+    void finish() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    void delete() {
+        try {
+            finish();
+        } catch (IOException e) {
+            // the file is going away anyway
+        }
+        f.delete();
+    }
+
+    /**
+     * @return an iterator over the tuples of the file, in the order they were
+     * written. Writing is finished when it is opened.
+     */
+    OpIterator iterator() {
+        return new Reader();
+    }
+
+    private class Reader implements OpIterator {
+
+        private static final long serialVersionUID = 1L;
+
+        private transient DataInputStream in;
+        private transient byte[] buffer;
+        private int read;
+
+        public void open() throws DbException {
+            try {
+                finish();
+                close();
+                in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(f), BufferPool.getPageSize()));
+                buffer = new byte[tupleSize];
+                read = 0;
+            } catch (IOException e) {
+                throw new DbException("could not read spill file " + f + ": " + e.getMessage());
+            }
+        }
+
+        public boolean hasNext() {
+            if (in == null) {
+                throw new IllegalStateException("Spill file iterator not yet open");
+            }
+            return read < numTuples;
+        }
+
+        public Tuple next() throws DbException {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            try {
+                in.readFully(buffer);
+            } catch (IOException e) {
+                throw new DbException("could not read spill file " + f + ": " + e.getMessage());
+            }
+            read++;
+            Tuple t = new Tuple(td);
+            for (int i = 0; i < td.numFields(); i++) {
+                t.setField(i, td.getFieldType(i).parse(buffer, fieldOffsets[i]));
+            }
+            return t;
+        }
+
+        public void rewind() throws DbException {
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing was written through it
+                }
+                in = null;
+            }
+        }
+    }
+}
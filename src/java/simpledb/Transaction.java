@@ -55,8 +55,15 @@ public class Transaction {
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } else {
-                //write all the dirty pages for this transaction out
-                Database.getBufferPool().flushPages(tid);
+                BufferPool bufferPool = Database.getBufferPool();
+                if (bufferPool.isNoStealForce()) {
+                    //write all the dirty pages for this transaction out
+                    bufferPool.flushPages(tid);
+                } else {
+                    // NO FORCE: the changes only have to be in the log,
+                    // forcing it for the commit record makes them durable
+                    bufferPool.logPages(tid);
+                }
                 Database.getLogFile().logCommit(tid);
             }
 
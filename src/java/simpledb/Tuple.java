@@ -1,26 +1,32 @@
 package simpledb;
 
-import java.io.FileOutputStream;
 import java.io.FileWriter;
+import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
-import java.util.List;
 
 /**
  * Tuple maintains information about the contents of a tuple. Tuples have a
  * specified schema specified by a TupleDesc object and contain Field objects
  * with the data for each field.
+ * <p>
+ * Tuples read from a HeapPage are views of a slot of the page: a field is
+ * decoded from the page bytes the first time it is asked for, so operators
+ * that look at one column do not pay for the others.
  */
 public class Tuple implements Serializable {
 
     private static final long serialVersionUID = 1L;
     private TupleDesc tupleDesc = null;
-    private List<Field> fields = null;
+    private Field[] fields = null;
     private RecordId recordId = null;
 
+    // the page slot this tuple is a view of, or null once it is materialized
+    private transient HeapPage page = null;
+    private transient int slot;
+
     /**
      * Create a new tuple with the specified schema (type).
      *
@@ -30,10 +36,16 @@ public class Tuple implements Serializable {
     public Tuple(TupleDesc td) {
         // some code goes here
         this.tupleDesc = td;
-        this.fields = new ArrayList<>(tupleDesc.numFields());
-        for (int i = 0; i < tupleDesc.numFields(); i++) {
-            fields.add(null);
-        }
+        this.fields = new Field[tupleDesc.numFields()];
+    }
+
+    /**
+     * Create a view of the tuple stored in the given slot of a page.
+     */
+    Tuple(TupleDesc td, HeapPage page, int slot) {
+        this.tupleDesc = td;
+        this.page = page;
+        this.slot = slot;
     }
 
     /**
@@ -50,6 +62,9 @@ public class Tuple implements Serializable {
      */
     public RecordId getRecordId() {
         // some code goes here
+        if (recordId == null && page != null) {
+            recordId = new RecordId(page.getId(), slot);
+        }
         return recordId;
     }
 
@@ -60,6 +75,8 @@ public class Tuple implements Serializable {
      */
     public void setRecordId(RecordId rid) {
         // some code goes here
+        // the tuple is moving, stop reading it from its old slot
+        materialize();
         this.recordId = rid;
     }
 
@@ -71,7 +88,10 @@ public class Tuple implements Serializable {
      */
     public void setField(int i, Field f) {
         // some code goes here
-        this.fields.set(i, f);
+        if (fields == null) {
+            fields = new Field[tupleDesc.numFields()];
+        }
+        fields[i] = f;
     }
 
     /**
@@ -80,7 +100,58 @@ public class Tuple implements Serializable {
      */
     public Field getField(int i) {
         // some code goes here
-        return fields.get(i);
+        if (fields == null) {
+            fields = new Field[tupleDesc.numFields()];
+        }
+        Field f = fields[i];
+        if (f == null && page != null) {
+            f = page.readField(slot, i);
+            fields[i] = f;
+        }
+        return f;
+    }
+
+    /**
+     * Compare field i of this tuple with a value, as getField(i).compare(op,
+     * operand) would. A tuple that is a view of a page compares the field in
+     * place, without decoding it.
+     */
+    public boolean compareField(int i, Predicate.Op op, Field operand) {
+        if (page != null && (fields == null || fields[i] == null)) {
+            return page.compareField(slot, i, op, operand);
+        }
+        return getField(i).compare(op, operand);
+    }
+
+    /**
+     * @return the value of the ith field, which must be an int field. A tuple
+     * that is a view of a page reads it in place, without creating an IntField.
+     */
+    public int getIntValue(int i) {
+        if (page != null && (fields == null || fields[i] == null)) {
+            return page.readInt(slot, i);
+        }
+        return ((IntField) getField(i)).getValue();
+    }
+
+    /**
+     * Decode all fields that have not been read yet and detach this tuple
+     * from its page, e.g. before the slot it is read from is overwritten.
+     */
+    void materialize() {
+        if (page == null) {
+            return;
+        }
+        getRecordId();
+        for (int i = 0; i < tupleDesc.numFields(); i++) {
+            getField(i);
+        }
+        page = null;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        materialize();
+        out.defaultWriteObject();
     }
 
     /**
@@ -93,12 +164,12 @@ public class Tuple implements Serializable {
      */
     public String toString() {
         // some code goes here
-        String out = "";
+        materialize();
+        StringBuilder out = new StringBuilder();
         for (Field f: fields) {
-            out += f.toString();
-            out += ",";
+            out.append(f).append(",");
         }
-        return out;
+        return out.toString();
     }
 
     /**
@@ -106,7 +177,8 @@ public class Tuple implements Serializable {
      */
     public Iterator<Field> fields() {
         // some code goes here
-        return fields.iterator();
+        materialize();
+        return Arrays.asList(fields).iterator();
     }
 
     /**
@@ -0,0 +1,98 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * Scan resistant 2Q eviction (Johnson and Shasha).
+ * <p>
+ * A page read for the first time goes into the FIFO queue A1in. Only if it
+ * is requested again after it has been evicted from A1in (its id is still
+ * remembered in the ghost queue A1out) is it promoted to the LRU queue Am.
+ * A sequential scan therefore only cycles through A1in and never flushes the
+ * hot pages kept in Am. All operations are O(1).
+ */
+public class TwoQueueEvictionPolicy implements EvictionPolicy {
+
+    private final int kin;
+    private final int kout;
+
+    // insertion ordered sets, head is the oldest entry
+    private final LinkedHashSet<PageId> a1in = new LinkedHashSet<>();
+    private final LinkedHashSet<PageId> a1out = new LinkedHashSet<>();
+    private final LinkedHashSet<PageId> am = new LinkedHashSet<>();
+
+    /**
+     * Uses the thresholds recommended in the 2Q paper: A1in holds a quarter
+     * of the pool and A1out remembers half a pool worth of page ids.
+     */
+    public TwoQueueEvictionPolicy(int numPages) {
+        this(Math.max(1, numPages / 4), Math.max(1, numPages / 2));
+    }
+
+    /**
+     * @param kin  size of the A1in FIFO queue
+     * @param kout number of page ids remembered in A1out
+     */
+    public TwoQueueEvictionPolicy(int kin, int kout) {
+        this.kin = kin;
+        this.kout = kout;
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        if (a1in.contains(pid) || am.contains(pid)) {
+            pageAccessed(pid);
+            return;
+        }
+        if (a1out.remove(pid)) {
+            am.add(pid);
+        } else {
+            a1in.add(pid);
+        }
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        // hits in A1in are treated as correlated references and ignored
+        if (am.remove(pid)) {
+            am.add(pid);
+        }
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        if (a1in.remove(pid)) {
+            a1out.add(pid);
+            if (a1out.size() > kout) {
+                Iterator<PageId> it = a1out.iterator();
+                it.next();
+                it.remove();
+            }
+        } else {
+            am.remove(pid);
+        }
+    }
+
+    public synchronized PageId chooseVictim(Filter filter) {
+        PageId victim;
+        if (a1in.size() > kin) {
+            victim = firstEvictable(a1in, filter);
+            if (victim == null) {
+                victim = firstEvictable(am, filter);
+            }
+        } else {
+            victim = firstEvictable(am, filter);
+            if (victim == null) {
+                victim = firstEvictable(a1in, filter);
+            }
+        }
+        return victim;
+    }
+
+    private static PageId firstEvictable(LinkedHashSet<PageId> queue, Filter filter) {
+        for (PageId pid : queue) {
+            if (filter.isEvictable(pid)) {
+                return pid;
+            }
+        }
+        return null;
+    }
+}
@@ -2,6 +2,7 @@ package simpledb;
 
 import java.text.ParseException;
 import java.io.*;
+import java.util.Arrays;
 
 /**
  * Class representing a type in SimpleDB.
@@ -24,6 +25,16 @@ public enum Type implements Serializable {
             }
         }
 
+        @Override
+        public Field parse(byte[] data, int offset) {
+            return new IntField(readInt(data, offset));
+        }
+
+        @Override
+        public void write(Field field, byte[] data, int offset) {
+            writeInt(((IntField) field).getValue(), data, offset);
+        }
+
     }, STRING_TYPE() {
         @Override
         public int getLen() {
@@ -42,6 +53,24 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(byte[] data, int offset) {
+            int strLen = readInt(data, offset);
+            return new StringField(new String(data, offset + 4, strLen), STRING_LEN);
+        }
+
+        @Override
+        public void write(Field field, byte[] data, int offset) {
+            String s = ((StringField) field).getValue();
+            int strLen = Math.min(s.length(), STRING_LEN);
+            writeInt(strLen, data, offset);
+            // like DataOutputStream.writeBytes, keep the low byte of every char
+            for (int i = 0; i < strLen; i++) {
+                data[offset + 4 + i] = (byte) s.charAt(i);
+            }
+            Arrays.fill(data, offset + 4 + strLen, offset + 4 + STRING_LEN, (byte) 0);
+        }
     };
 
     public static final int STRING_LEN = 128;
@@ -60,4 +89,35 @@ public enum Type implements Serializable {
      */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+    /**
+     * Decode a field of this type in place, without copying the bytes.
+     *
+     * @param data   the bytes, e.g. those of a page
+     * @param offset the offset the field starts at
+     * @return a Field object of the same type as this object
+     */
+    public abstract Field parse(byte[] data, int offset);
+
+    /**
+     * Encode a field of this type in place, in the same format as
+     * {@link Field#serialize}.
+     *
+     * @param field  the field to write, of the same type as this object
+     * @param data   the bytes, e.g. those of a page
+     * @param offset the offset the field starts at
+     */
+    public abstract void write(Field field, byte[] data, int offset);
+
+    static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xff) << 24 | (data[offset + 1] & 0xff) << 16
+                | (data[offset + 2] & 0xff) << 8 | (data[offset + 3] & 0xff);
+    }
+
+    static void writeInt(int value, byte[] data, int offset) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+
 }
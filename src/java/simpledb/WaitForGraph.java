@@ -5,100 +5,184 @@ import org.apache.log4j.Logger;
 import java.lang.invoke.MethodHandles;
 import java.util.*;
 
+/**
+ * The wait-for graph of the lock manager: an edge t1 -> t2 means that t1 is
+ * waiting for a lock that t2 holds or has requested before it.
+ * <p>
+ * The graph is kept acyclic. Edges are only added when a transaction starts
+ * waiting, so a new cycle has to pass through that transaction, and
+ * {@link #addEdges} only searches the part of the graph reachable from it.
+ * Edges are removed as soon as the transaction stops waiting.
+ */
 public class WaitForGraph {
 
     final static Logger logger = Logger.getLogger(MethodHandles.lookup().lookupClass());
 
-    private HashMap<TransactionId, HashSet<TransactionId>> adjVertices;
+    private static final class Vertex {
+        final TransactionId tid;
+        final HashSet<Vertex> out = new HashSet<>();
+        final HashSet<Vertex> in = new HashSet<>();
+        // the search that last visited this vertex, and where it came from
+        int visited;
+        Vertex parent;
+
+        Vertex(TransactionId tid) {
+            this.tid = tid;
+        }
+    }
+
+    private final HashMap<TransactionId, Vertex> vertices = new HashMap<>();
+
+    // incremented for every search, so visited marks never need clearing
+    private int epoch = 0;
 
     public WaitForGraph() {
-        adjVertices = new HashMap<>();
     }
 
-    public void printGraph() {
-        String totalOut = "";
-        for (Map.Entry<TransactionId, HashSet<TransactionId>> entry : adjVertices.entrySet()) {
-            String out = "";
-            for (TransactionId end : entry.getValue()) {
-                out += end.getId() + ", ";
+    public synchronized void printGraph() {
+        if (!Config.debugTransaction()) {
+            return;
+        }
+        StringBuilder out = new StringBuilder();
+        for (Vertex vertex : vertices.values()) {
+            if (vertex.out.isEmpty()) {
+                continue;
+            }
+            out.append(vertex.tid.getId()).append(" -> ");
+            for (Vertex end : vertex.out) {
+                out.append(end.tid.getId()).append(", ");
             }
-            out = entry.getKey().getId() + " -> " + out + "; ";
-            totalOut += out;
+            out.append("; ");
         }
+        logger.debug(out);
+    }
 
-        if (Config.debugTransaction()) {
-            logger.debug(totalOut);
-        }
+    private Vertex vertex(TransactionId tid) {
+        return vertices.computeIfAbsent(tid, Vertex::new);
     }
 
     public synchronized void addVertex(TransactionId vertex) {
-        adjVertices.putIfAbsent(vertex, new HashSet<>());
+        vertex(vertex);
     }
 
     /**
-     * @param start
-     * @param end
-     * @return
+     * Add the edges start -> end for every transaction start is waiting for,
+     * and check whether they close a cycle.
+     *
+     * @return the transactions on the cycle, starting with start, or null if
+     * there is none. The edges are added either way, so the caller has to
+     * break the cycle by aborting one of its transactions.
      */
-    public synchronized void addEdge(TransactionId start, TransactionId end) {
-        if (start == null || end == null) {
-            return;
-        }
-
-        if (start.equals(end)) {
-            addVertex(start);
-            return;
+    public synchronized List<TransactionId> addEdges(TransactionId start, Collection<TransactionId> ends) {
+        Vertex from = vertex(start);
+        for (TransactionId end : ends) {
+            if (end != null && !end.equals(start)) {
+                Vertex to = vertex(end);
+                from.out.add(to);
+                to.in.add(from);
+            }
         }
+        return findCycle(from);
+    }
 
-        addVertex(start);
-        addVertex(end);
-
-        adjVertices.get(start).add(end);
+    public synchronized List<TransactionId> addEdge(TransactionId start, TransactionId end) {
+        return addEdges(start, Collections.singletonList(end));
     }
 
-    public synchronized boolean containsCycle() {
-        printGraph();
-        for (TransactionId start : adjVertices.keySet()) {
-            ArrayList<TransactionId> visited = new ArrayList<>();
-            Stack<TransactionId> stack = new Stack<>();
-
-            stack.push(start);
-            visited.add(start);
-
-            while (!stack.empty()) {
-                TransactionId vertex = stack.pop();
-
-                for (TransactionId end : adjVertices.get(vertex)) {
-                    if (visited.contains(end)) {
-                        String l = "";
-                        for (TransactionId tid : visited) {
-                            l += tid.getId() + "->";
-                        }
-                        l += end.getId();
-                        logger.info("cycle found: " + l);
-                        return true;
+    /**
+     * Depth-first search for a path from one of from's successors back to
+     * from. Every vertex is visited at most once.
+     */
+    private List<TransactionId> findCycle(Vertex from) {
+        int search = ++epoch;
+        ArrayDeque<Vertex> stack = new ArrayDeque<>();
+        from.visited = search;
+        stack.push(from);
+
+        while (!stack.isEmpty()) {
+            Vertex vertex = stack.pop();
+            for (Vertex next : vertex.out) {
+                if (next == from) {
+                    LinkedList<TransactionId> cycle = new LinkedList<>();
+                    for (Vertex v = vertex; v != from; v = v.parent) {
+                        cycle.addFirst(v.tid);
                     }
-
-                    stack.push(end);
-                    visited.add(end);
+                    cycle.addFirst(from.tid);
+                    if (Config.debugTransaction()) {
+                        logger.debug("cycle found: " + cycle);
+                    }
+                    return cycle;
+                }
+                if (next.visited != search) {
+                    next.visited = search;
+                    next.parent = vertex;
+                    stack.push(next);
                 }
             }
         }
-        return false;
+        return null;
     }
 
-    public synchronized boolean removeVertex(TransactionId transactionId) {
-        logger.debug("before remove:");
-        printGraph();
+    /**
+     * Remove all edges leaving start, once it no longer waits for anybody.
+     */
+    public synchronized void removeEdges(TransactionId start) {
+        Vertex from = vertices.get(start);
+        if (from == null) {
+            return;
+        }
+        for (Vertex to : from.out) {
+            to.in.remove(from);
+            dropIfIsolated(to);
+        }
+        from.out.clear();
+        dropIfIsolated(from);
+    }
 
-        adjVertices.remove(transactionId);
-        for (HashSet<TransactionId> transactionIds : adjVertices.values()) {
-            transactionIds.remove(transactionId);
+    /**
+     * Remove the edges leaving start that do not lead to one of ends, after
+     * some of the transactions it waited for released their locks.
+     */
+    public synchronized void retainEdges(TransactionId start, Collection<TransactionId> ends) {
+        Vertex from = vertices.get(start);
+        if (from == null) {
+            return;
         }
+        Iterator<Vertex> it = from.out.iterator();
+        while (it.hasNext()) {
+            Vertex to = it.next();
+            if (!ends.contains(to.tid)) {
+                it.remove();
+                to.in.remove(from);
+                dropIfIsolated(to);
+            }
+        }
+        dropIfIsolated(from);
+    }
 
-        logger.debug("after remove:");
-        printGraph();
+    /**
+     * Forget transactions that neither wait nor are waited for, so the graph
+     * only ever holds the transactions currently involved in lock waits.
+     */
+    private void dropIfIsolated(Vertex vertex) {
+        if (vertex.out.isEmpty() && vertex.in.isEmpty()) {
+            vertices.remove(vertex.tid, vertex);
+        }
+    }
 
+    public synchronized boolean removeVertex(TransactionId transactionId) {
+        Vertex vertex = vertices.remove(transactionId);
+        if (vertex == null) {
+            return false;
+        }
+        for (Vertex to : vertex.out) {
+            to.in.remove(vertex);
+            dropIfIsolated(to);
+        }
+        for (Vertex from : vertex.in) {
+            from.out.remove(vertex);
+            dropIfIsolated(from);
+        }
         return true;
     }
 }
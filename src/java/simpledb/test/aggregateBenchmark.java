@@ -0,0 +1,69 @@
+package simpledb.test;
+
+import simpledb.*;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures a GROUP BY with an integer aggregate over a heap file that fits in
+ * the buffer pool: rows aggregated per second, and bytes allocated per row.
+ * The scan is run once on its own first, so its cost can be told apart from
+ * the cost of the aggregation.
+ * <p>
+ * Usage: aggregateBenchmark [rows] [groups] [sum|min|max|avg|count]
+ */
+public class aggregateBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+        int groups = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        Aggregator.Op op = args.length > 2 ? Aggregator.Op.valueOf(args[2].toUpperCase()) : Aggregator.Op.SUM;
+
+        benchmarkUtil.quietLogging();
+
+        // column 0 is the group, column 1 the value
+        HeapFile heapFile = benchmarkUtil.createRandomHeapFile(2, rows, groups);
+        Database.resetBufferPool(heapFile.numPages() + 1);
+        System.out.printf("%d rows, %d groups, heap file %d pages%n", rows, groups, heapFile.numPages());
+
+        // load the pool and the JIT
+        run(heapFile, null);
+        run(heapFile, op);
+
+        long[] scan = run(heapFile, null);
+        long[] aggregate = run(heapFile, op);
+        report("scan", rows, scan);
+        report(op.toString(), rows, aggregate);
+    }
+
+    private static void report(String what, int rows, long[] measured) {
+        System.out.printf("%-8s %8.2f s %12.0f rows/s %8.1f bytes/row%n", what, measured[0] / 1e9,
+                rows / (measured[0] / 1e9), (double) measured[1] / rows);
+    }
+
+    /**
+     * Scan the file, grouping and aggregating it unless op is null.
+     *
+     * @return elapsed nanoseconds and bytes allocated
+     */
+    private static long[] run(HeapFile heapFile, Aggregator.Op op) throws Exception {
+        TransactionId tid = new TransactionId();
+        OpIterator it = new SeqScan(tid, heapFile.getId());
+        if (op != null) {
+            it = new Aggregate(it, 1, 0, op);
+        }
+        long allocated = allocatedBytes();
+        long begin = System.nanoTime();
+        benchmarkUtil.drain(it);
+        long elapsed = System.nanoTime() - begin;
+        allocated = allocatedBytes() - allocated;
+        // read-only, abort just drops the locks
+        Database.getBufferPool().transactionComplete(tid, false);
+        return new long[]{elapsed, allocated};
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
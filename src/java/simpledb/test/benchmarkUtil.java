@@ -0,0 +1,63 @@
+package simpledb.test;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import simpledb.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Random;
+
+/**
+ * Helpers shared by the benchmark programs in this package.
+ */
+public class benchmarkUtil {
+
+    /**
+     * Turn off the debug logging, otherwise the benchmarks measure log4j.
+     */
+    public static void quietLogging() {
+        LogManager.getRootLogger().setLevel(Level.WARN);
+        Enumeration<?> loggers = LogManager.getCurrentLoggers();
+        while (loggers.hasMoreElements()) {
+            ((Logger) loggers.nextElement()).setLevel(Level.WARN);
+        }
+    }
+
+    /**
+     * Create a heap file with random int columns and add it to the catalog.
+     */
+    public static HeapFile createRandomHeapFile(int columns, int rows, int maxValue) throws IOException {
+        Random random = new Random(42);
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            ArrayList<Integer> tuple = new ArrayList<>(columns);
+            for (int j = 0; j < columns; j++) {
+                tuple.add(random.nextInt(maxValue));
+            }
+            tuples.add(tuple);
+        }
+
+        File f = File.createTempFile("bench", ".dat");
+        f.deleteOnExit();
+        HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), columns);
+        return Utility.openHeapFile(columns, f);
+    }
+
+    /**
+     * Drain an operator and return the number of tuples it produced.
+     */
+    public static int drain(OpIterator it) throws DbException, TransactionAbortedException {
+        int n = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+}
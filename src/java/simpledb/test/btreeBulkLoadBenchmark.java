@@ -0,0 +1,55 @@
+package simpledb.test;
+
+import simpledb.*;
+
+import java.io.File;
+
+/**
+ * Measures building a B+ tree from a heap file of random keys with a buffer
+ * pool much smaller than the tree: inserting the tuples one at a time, in
+ * heap order and in key order, and sorting them and loading them bottom up
+ * with BTreeFile.bulkLoad. Each build is one transaction, committed at the
+ * end; the time includes the sort where there is one.
+ * <p>
+ * The log is written to wal.log and its segments in the working directory.
+ * <p>
+ * Usage: btreeBulkLoadBenchmark [rows] [poolPages]
+ */
+public class btreeBulkLoadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        int poolPages = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+        benchmarkUtil.quietLogging();
+        HeapFile heapFile = benchmarkUtil.createRandomHeapFile(2, rows, Integer.MAX_VALUE);
+        System.out.printf("%d rows, heap file %d pages, buffer pool %d pages%n",
+                rows, heapFile.numPages(), poolPages);
+        System.out.printf("%-12s %10s %12s %8s%n", "build", "seconds", "rows/s", "pages");
+
+        for (String build : new String[]{"insert", "sortedInsert", "bulkLoad"}) {
+            Database.resetBufferPool(poolPages);
+            File f = File.createTempFile("btree", ".dat");
+            f.deleteOnExit();
+            BTreeFile file = BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0);
+
+            Transaction t = new Transaction();
+            t.start();
+            long begin = System.nanoTime();
+            OpIterator scan = new SeqScan(t.getId(), heapFile.getId());
+            if (build.equals("bulkLoad")) {
+                file.bulkLoad(t.getId(), new OrderBy(0, true, scan), 1.0);
+            } else {
+                OpIterator it = build.equals("insert") ? scan : new OrderBy(0, true, scan);
+                it.open();
+                while (it.hasNext()) {
+                    Database.getBufferPool().insertTuple(t.getId(), file.getId(), it.next());
+                }
+                it.close();
+            }
+            t.commit();
+            double seconds = (System.nanoTime() - begin) / 1e9;
+            System.out.printf("%-12s %10.2f %12.0f %8d%n", build, seconds, rows / seconds, file.numPages());
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package simpledb.test;
+
+import simpledb.*;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how a mix of point lookups and inserts on one B+ tree scales
+ * with the number of threads. Each transaction either looks up a random key
+ * through the index or inserts a tuple with a random key, and commits. The
+ * tree fits in the buffer pool, so that the threads only contend for the
+ * pages of the tree, not for the disk.
+ * <p>
+ * The log is written to wal.log and its segments in the working directory.
+ * <p>
+ * Usage: btreeLatchBenchmark [seconds] [percent inserts] [rows]
+ */
+public class btreeLatchBenchmark {
+
+    private static final int MAX_KEY = 1 << 20;
+
+    private static final AtomicLong aborts = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int insertPercent = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int rows = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+
+        benchmarkUtil.quietLogging();
+        BTreeFile file = BTreeUtility.createRandomBTreeFile(2, rows, MAX_KEY, new HashMap<>(), null, 0);
+        Database.resetBufferPool(4 * file.numPages() + 1000);
+
+        System.out.printf("%8s %12s %10s %10s%n", "threads", "txns/s", "aborts", "speedup");
+        double single = 0;
+        for (int threads : new int[]{1, 2, 4, 8}) {
+            double rate = run(file, threads, seconds, insertPercent);
+            if (threads == 1) {
+                single = rate;
+            }
+            System.out.printf("%8d %12.0f %10d %10.2f%n", threads, rate, aborts.getAndSet(0), rate / single);
+        }
+    }
+
+    private static double run(BTreeFile file, int threads, int seconds, int insertPercent) throws Exception {
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicLong commits = new AtomicLong();
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            Random random = new Random(i);
+            workers[i] = new Thread(() -> {
+                try {
+                    while (!done.get()) {
+                        if (transaction(file, random, insertPercent)) {
+                            commits.incrementAndGet();
+                        } else {
+                            aborts.incrementAndGet();
+                        }
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        Thread.sleep(seconds * 1000L);
+        done.set(true);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return commits.get() / ((System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * @return false if the transaction was aborted
+     */
+    private static boolean transaction(BTreeFile file, Random random, int insertPercent) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        try {
+            if (random.nextInt(100) < insertPercent) {
+                Tuple tuple = BTreeUtility.getBTreeTuple(new int[]{random.nextInt(MAX_KEY), random.nextInt(MAX_KEY)});
+                Database.getBufferPool().insertTuple(t.getId(), file.getId(), tuple);
+            } else {
+                IndexPredicate ipred = new IndexPredicate(Predicate.Op.EQUALS, new IntField(random.nextInt(MAX_KEY)));
+                DbFileIterator it = file.indexIterator(t.getId(), ipred);
+                it.open();
+                while (it.hasNext()) {
+                    it.next();
+                }
+                it.close();
+            }
+            t.commit();
+            return true;
+        } catch (TransactionAbortedException e) {
+            t.transactionComplete(true);
+            return false;
+        }
+    }
+}
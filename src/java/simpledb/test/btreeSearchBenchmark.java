@@ -0,0 +1,76 @@
+package simpledb.test;
+
+import simpledb.*;
+
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Measures how fast one thread searches a B+ tree that fits in the buffer
+ * pool: point lookups, short range scans that read the ten tuples from a
+ * random key on, and inserts of random keys. Each round runs one
+ * transaction per kind of operation, so that the time goes to finding the
+ * keys, not to committing.
+ * <p>
+ * The log is written to wal.log and its segments in the working directory.
+ * <p>
+ * Usage: btreeSearchBenchmark [operations] [rounds] [rows]
+ */
+public class btreeSearchBenchmark {
+
+    private static final int MAX_KEY = 1 << 20;
+
+    private static final int SCAN_LENGTH = 10;
+
+    public static void main(String[] args) throws Exception {
+        int operations = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int rows = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+
+        benchmarkUtil.quietLogging();
+        BTreeFile file = BTreeUtility.createRandomBTreeFile(2, rows, MAX_KEY, new HashMap<>(), null, 0);
+        Database.resetBufferPool(4 * file.numPages() + 1000);
+        Random random = new Random(1);
+
+        System.out.printf("%-8s %10s %12s%n", "op", "ms", "ops/s");
+        for (int round = 0; round < rounds; round++) {
+            Transaction t = new Transaction();
+            t.start();
+            long start = System.nanoTime();
+            for (int i = 0; i < operations; i++) {
+                scan(t, file, Predicate.Op.EQUALS, random.nextInt(MAX_KEY), Integer.MAX_VALUE);
+            }
+            print("lookup", operations, System.nanoTime() - start);
+            start = System.nanoTime();
+            for (int i = 0; i < operations; i++) {
+                scan(t, file, Predicate.Op.GREATER_THAN_OR_EQ, random.nextInt(MAX_KEY), SCAN_LENGTH);
+            }
+            print("scan", operations, System.nanoTime() - start);
+            t.commit();
+
+            t = new Transaction();
+            t.start();
+            start = System.nanoTime();
+            for (int i = 0; i < operations / 10; i++) {
+                Tuple tuple = BTreeUtility.getBTreeTuple(new int[]{random.nextInt(MAX_KEY), i});
+                Database.getBufferPool().insertTuple(t.getId(), file.getId(), tuple);
+            }
+            print("insert", operations / 10, System.nanoTime() - start);
+            t.commit();
+        }
+    }
+
+    private static void scan(Transaction t, BTreeFile file, Predicate.Op op, int key, int limit)
+            throws Exception {
+        DbFileIterator it = file.indexIterator(t.getId(), new IndexPredicate(op, new IntField(key)));
+        it.open();
+        for (int n = 0; n < limit && it.hasNext(); n++) {
+            it.next();
+        }
+        it.close();
+    }
+
+    private static void print(String op, int n, long nanos) {
+        System.out.printf("%-8s %10.1f %12.0f%n", op, nanos / 1e6, n / (nanos / 1e9));
+    }
+}
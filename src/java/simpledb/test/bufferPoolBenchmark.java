@@ -0,0 +1,115 @@
+package simpledb.test;
+
+import simpledb.*;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures getPage throughput of the buffer pool with 1, 2, 4, ... threads
+ * reading random pages of a heap file. Run it once with a buffer pool that
+ * holds the whole file (only hits) and once with a smaller one (hits,
+ * misses and evictions mixed) to see how the pool scales with the number
+ * of cores.
+ * <p>
+ * Usage: bufferPoolBenchmark [rows] [bufferPages] [readsPerThread] [maxThreads]
+ */
+public class bufferPoolBenchmark {
+
+    // reads done by one transaction before it commits and starts a new one
+    private static final int READS_PER_TRANSACTION = 100;
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int bufferPages = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+        int readsPerThread = args.length > 2 ? Integer.parseInt(args[2]) : 50000;
+        int maxThreads = args.length > 3 ? Integer.parseInt(args[3])
+                : Math.max(4, Runtime.getRuntime().availableProcessors());
+
+        benchmarkUtil.quietLogging();
+
+        HeapFile heapFile = benchmarkUtil.createRandomHeapFile(2, rows, 1 << 20);
+        int numPages = heapFile.numPages();
+        if (bufferPages <= 0) {
+            bufferPages = numPages;
+        }
+
+        System.out.printf("%d rows, heap file %d pages, buffer pool %d pages, %d cores%n",
+                rows, numPages, bufferPages, Runtime.getRuntime().availableProcessors());
+        System.out.printf("%8s %14s %10s %10s%n", "threads", "reads/s", "speedup", "hit rate");
+
+        double baseline = 0;
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            BufferPool pool = Database.resetBufferPool(bufferPages);
+            // warm up the pool so the first run does not pay for the cold start
+            run(heapFile, 1, numPages);
+            long hitsBefore = pool.getHitCount();
+            long missesBefore = pool.getMissCount();
+
+            long elapsed = run(heapFile, threads, readsPerThread);
+            double throughput = (double) threads * readsPerThread / (elapsed / 1e9);
+            if (threads == 1) {
+                baseline = throughput;
+            }
+
+            long hits = pool.getHitCount() - hitsBefore;
+            long misses = pool.getMissCount() - missesBefore;
+            System.out.printf("%8d %14.0f %9.2fx %9.1f%%%n", threads, throughput,
+                    throughput / baseline, 100.0 * hits / Math.max(1, hits + misses));
+        }
+    }
+
+    /**
+     * Start the reader threads together and wait for all of them.
+     *
+     * @return the elapsed time in nanoseconds
+     */
+    private static long run(HeapFile f, int threads, int readsPerThread) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        ArrayList<Thread> workers = new ArrayList<>();
+        Exception[] failure = new Exception[1];
+
+        for (int t = 0; t < threads; t++) {
+            Random random = new Random(t);
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                    readRandomPages(f, random, readsPerThread);
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return elapsed;
+    }
+
+    private static void readRandomPages(HeapFile f, Random random, int reads) throws Exception {
+        BufferPool pool = Database.getBufferPool();
+        int numPages = f.numPages();
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < reads; i++) {
+            PageId pid = new HeapPageId(f.getId(), random.nextInt(numPages));
+            pool.getPage(tid, pid, Permissions.READ_ONLY);
+            if ((i + 1) % READS_PER_TRANSACTION == 0) {
+                // read-only transactions, abort just drops their locks
+                pool.transactionComplete(tid, false);
+                tid = new TransactionId();
+            }
+        }
+        pool.transactionComplete(tid, false);
+    }
+}
@@ -0,0 +1,154 @@
+package simpledb.test;
+
+import simpledb.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measures how much checkpoints hold up running transactions. Client
+ * threads commit small insert transactions into tables of their own, while
+ * the main thread checkpoints once a second. Before every checkpoint a bulk
+ * transaction deletes a tuple from each page of a large table that a scan
+ * brought into the buffer pool, so the checkpoint finds that many dirty
+ * pages; the bulk transaction commits after the checkpoint.
+ * <p>
+ * Prints how long the checkpoints took, and the commit latencies of client
+ * transactions that overlapped a checkpoint and of those that did not.
+ * <p>
+ * Usage: checkpointBenchmark [seconds] [threads] [dirty pages]
+ */
+public class checkpointBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int dirtyPages = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+        benchmarkUtil.quietLogging();
+        Database.resetBufferPool(2 * dirtyPages + 200);
+        int tuplesPerPage = BufferPool.getPageSize() * 8 / (2 * 32 + 1);
+        HeapFile big = benchmarkUtil.createRandomHeapFile(2, tuplesPerPage * dirtyPages, 1000);
+        HeapFile[] tables = new HeapFile[threads];
+        for (int i = 0; i < threads; i++) {
+            tables[i] = benchmarkUtil.createRandomHeapFile(2, 100, 1000);
+        }
+        Transaction scan = new Transaction();
+        scan.start();
+        benchmarkUtil.drain(new SeqScan(scan.getId(), big.getId()));
+        scan.commit();
+
+        AtomicBoolean stop = new AtomicBoolean(false);
+        List<List<long[]>> latencies = new ArrayList<>();
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            List<long[]> mine = new ArrayList<>();
+            latencies.add(mine);
+            HeapFile table = tables[i];
+            workers[i] = new Thread(() -> {
+                try {
+                    int n = 0;
+                    while (!stop.get()) {
+                        long start = System.nanoTime();
+                        Transaction t = new Transaction();
+                        t.start();
+                        Tuple tuple = new Tuple(table.getTupleDesc());
+                        tuple.setField(0, new IntField(n++));
+                        tuple.setField(1, new IntField(n));
+                        Database.getBufferPool().insertTuple(t.getId(), table.getId(), tuple);
+                        t.commit();
+                        mine.add(new long[]{start, System.nanoTime()});
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            workers[i].start();
+        }
+
+        List<long[]> checkpoints = new ArrayList<>();
+        for (int round = 0; round < seconds; round++) {
+            long roundStart = System.nanoTime();
+            Transaction bulk = new Transaction();
+            bulk.start();
+            dirtyEveryPage(bulk, big);
+
+            long start = System.nanoTime();
+            Database.getLogFile().logCheckpoint();
+            checkpoints.add(new long[]{start, System.nanoTime()});
+
+            bulk.commit();
+            long left = 1000000000L - (System.nanoTime() - roundStart);
+            if (left > 0) {
+                Thread.sleep(left / 1000000);
+            }
+        }
+        stop.set(true);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        double total = 0, max = 0;
+        for (long[] c : checkpoints) {
+            double ms = (c[1] - c[0]) / 1e6;
+            total += ms;
+            max = Math.max(max, ms);
+        }
+        System.out.printf("%d checkpoints of %d dirty pages: avg %.1f ms, max %.1f ms%n",
+                checkpoints.size(), dirtyPages, total / checkpoints.size(), max);
+
+        List<Long> during = new ArrayList<>();
+        List<Long> outside = new ArrayList<>();
+        for (List<long[]> mine : latencies) {
+            for (long[] l : mine) {
+                boolean overlaps = false;
+                for (long[] c : checkpoints) {
+                    overlaps |= l[0] < c[1] && l[1] > c[0];
+                }
+                (overlaps ? during : outside).add(l[1] - l[0]);
+            }
+        }
+        System.out.printf("%-20s %8s %10s %10s %10s%n", "commits", "count", "p50 ms", "p99 ms", "max ms");
+        print("during checkpoint", during);
+        print("otherwise", outside);
+    }
+
+    /**
+     * Delete the first tuple of every page of the table.
+     */
+    private static void dirtyEveryPage(Transaction t, HeapFile table) throws Exception {
+        List<Tuple> victims = new ArrayList<>();
+        SeqScan scan = new SeqScan(t.getId(), table.getId());
+        scan.open();
+        PageId last = null;
+        while (scan.hasNext()) {
+            Tuple tuple = scan.next();
+            PageId pid = tuple.getRecordId().getPageId();
+            if (!pid.equals(last)) {
+                victims.add(tuple);
+                last = pid;
+            }
+        }
+        scan.close();
+        for (Tuple tuple : victims) {
+            Database.getBufferPool().deleteTuple(t.getId(), tuple);
+        }
+    }
+
+    private static void print(String name, List<Long> latencies) {
+        if (latencies.isEmpty()) {
+            System.out.printf("%-20s %8d%n", name, 0);
+            return;
+        }
+        long[] sorted = new long[latencies.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = latencies.get(i);
+        }
+        Arrays.sort(sorted);
+        System.out.printf("%-20s %8d %10.2f %10.2f %10.2f%n", name, sorted.length,
+                sorted[sorted.length / 2] / 1e6, sorted[(int) (sorted.length * 0.99)] / 1e6,
+                sorted[sorted.length - 1] / 1e6);
+    }
+}
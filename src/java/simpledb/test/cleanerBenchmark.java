@@ -0,0 +1,104 @@
+package simpledb.test;
+
+import simpledb.*;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measures what a reader pays for a miss while a writer keeps dirtying the
+ * buffer pool, with and without the background page cleaner. The writer
+ * deletes a tuple from each of a few random pages of the first half of a
+ * table four times the size of the pool and commits, the reader reads
+ * random pages of the second half. Without the cleaner most of the reader's
+ * misses have to write out a dirty page before they can read theirs.
+ * <p>
+ * The log is written to wal.log and its segments in the working directory.
+ * <p>
+ * Usage: cleanerBenchmark [seconds] [pool pages]
+ */
+public class cleanerBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int poolPages = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int pages = 4 * poolPages;
+
+        benchmarkUtil.quietLogging();
+        int tuplesPerPage = BufferPool.getPageSize() * 8 / (2 * 32 + 1);
+        HeapFile file = benchmarkUtil.createRandomHeapFile(2, tuplesPerPage * pages, 1000);
+
+        System.out.printf("%8s %10s %10s %10s %10s %10s%n", "cleaner", "reads/s", "avg us", "p99 us",
+                "commits/s", "cleaned");
+        for (boolean clean : new boolean[]{false, true, false, true}) {
+            BufferPool pool = Database.resetBufferPool(poolPages);
+            if (clean) {
+                pool.setCleaner(50, 25, 0);
+            } else {
+                pool.setCleaner(100, 100, 0);
+            }
+            run(file, pages, seconds, clean);
+            pool.flushAllPages();
+        }
+    }
+
+    private static void run(HeapFile file, int pages, int seconds, boolean clean) throws Exception {
+        AtomicBoolean done = new AtomicBoolean();
+        long[] commits = new long[1];
+        Thread writer = new Thread(() -> {
+            Random random = new Random(1);
+            try {
+                while (!done.get()) {
+                    Transaction t = new Transaction();
+                    t.start();
+                    for (int p = 0; p < 4; p++) {
+                        deleteTuple(t, file, random.nextInt(pages / 2));
+                    }
+                    t.commit();
+                    commits[0]++;
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        writer.start();
+
+        Random random = new Random(2);
+        long[] latencies = new long[1 << 20];
+        int reads = 0;
+        long end = System.nanoTime() + seconds * 1000000000L;
+        long start = System.nanoTime();
+        while (System.nanoTime() < end && reads < latencies.length) {
+            Transaction t = new Transaction();
+            t.start();
+            HeapPageId pid = new HeapPageId(file.getId(), pages / 2 + random.nextInt(pages / 2));
+            long before = System.nanoTime();
+            Database.getBufferPool().getPage(t.getId(), pid, Permissions.READ_ONLY);
+            latencies[reads++] = System.nanoTime() - before;
+            t.commit();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        done.set(true);
+        writer.join();
+
+        Arrays.sort(latencies, 0, reads);
+        long total = 0;
+        for (int i = 0; i < reads; i++) {
+            total += latencies[i];
+        }
+        System.out.printf("%8s %10.0f %10.1f %10.1f %10.0f %10d%n", clean ? "on" : "off", reads / elapsed,
+                total / 1e3 / reads, latencies[reads * 99 / 100] / 1e3, commits[0] / elapsed,
+                Database.getBufferPool().getCleanedCount());
+    }
+
+    private static void deleteTuple(Transaction t, HeapFile file, int page) throws Exception {
+        HeapPageId pid = new HeapPageId(file.getId(), page);
+        HeapPage p = (HeapPage) Database.getBufferPool().getPage(t.getId(), pid, Permissions.READ_WRITE);
+        Iterator<Tuple> it = p.iterator();
+        if (it.hasNext()) {
+            Database.getBufferPool().deleteTuple(t.getId(), it.next());
+        }
+    }
+}
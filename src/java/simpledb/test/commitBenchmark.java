@@ -0,0 +1,71 @@
+package simpledb.test;
+
+import simpledb.*;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures how many transactions per second can commit, for an increasing
+ * number of client threads. Every thread runs transactions that only begin
+ * and commit, so the cost of a commit is mostly forcing the log; with group
+ * commit the threads committing at the same time share a force.
+ * <p>
+ * The log is written to wal.log in the working directory, so the results
+ * depend on how fast the file system there syncs.
+ * <p>
+ * Usage: commitBenchmark [seconds] [threads...]
+ */
+public class commitBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 3;
+        int[] threadCounts = new int[]{1, 2, 4, 8, 16, 32};
+        if (args.length > 1) {
+            threadCounts = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                threadCounts[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+
+        benchmarkUtil.quietLogging();
+
+        System.out.printf("%8s %12s %12s %16s%n", "threads", "commits/s", "us/commit", "commits/force");
+        // warm up the JIT and the file
+        run(4, seconds / 3);
+        for (int threads : threadCounts) {
+            long forces = Database.getLogFile().getCommitForceCount();
+            long commits = run(threads, seconds);
+            forces = Database.getLogFile().getCommitForceCount() - forces;
+            System.out.printf("%8d %12.0f %12.1f %16.1f%n", threads, commits / seconds,
+                    seconds * 1e6 * threads / commits, (double) commits / forces);
+        }
+    }
+
+    private static long run(int threads, double seconds) throws Exception {
+        LongAdder commits = new LongAdder();
+        AtomicBoolean stop = new AtomicBoolean(false);
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(() -> {
+                try {
+                    while (!stop.get()) {
+                        Transaction t = new Transaction();
+                        t.start();
+                        t.commit();
+                        commits.increment();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            workers[i].start();
+        }
+        Thread.sleep((long) (seconds * 1000));
+        stop.set(true);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return commits.sum();
+    }
+}
@@ -0,0 +1,112 @@
+package simpledb.test;
+
+import simpledb.*;
+
+import java.util.Random;
+
+/**
+ * Compares the eviction policies on a mixed workload: a small set of hot
+ * pages is read over and over while full table scans run in between and
+ * try to flush them out of the buffer pool.
+ * <p>
+ * Usage: evictionBenchmark [rows] [bufferPages] [rounds]
+ */
+public class evictionBenchmark {
+
+    private static final int HOT_READS_PER_ROUND = 2000;
+
+    interface PolicyFactory {
+        EvictionPolicy create(int numPages);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int bufferPages = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        benchmarkUtil.quietLogging();
+
+        HeapFile heapFile = benchmarkUtil.createRandomHeapFile(2, rows, 1 << 20);
+        BTreeFile bTreeFile = BTreeUtility.createRandomBTreeFile(2, rows, 1 << 20, null, null, 0);
+        Database.getCatalog().addTable(bTreeFile, "bench_btree");
+
+        String[] names = {"clock", "lru-2", "2q"};
+        PolicyFactory[] factories = {
+                ClockEvictionPolicy::new,
+                n -> new LruKEvictionPolicy(2),
+                TwoQueueEvictionPolicy::new,
+        };
+
+        System.out.printf("%d rows, heap file %d pages, buffer pool %d pages%n",
+                rows, heapFile.numPages(), bufferPages);
+        System.out.printf("%-10s %-8s %10s %10s %10s %14s%n",
+                "workload", "policy", "hits", "misses", "hit rate", "miss lat (us)");
+
+        for (int i = 0; i < names.length; i++) {
+            BufferPool pool = Database.resetBufferPool(bufferPages, factories[i].create(bufferPages));
+            long elapsed = seqScanWorkload(heapFile, rounds);
+            report("seqscan", names[i], pool, elapsed);
+        }
+
+        for (int i = 0; i < names.length; i++) {
+            BufferPool pool = Database.resetBufferPool(bufferPages, factories[i].create(bufferPages));
+            long elapsed = bTreeScanWorkload(bTreeFile, rounds);
+            report("btreescan", names[i], pool, elapsed);
+        }
+    }
+
+    private static void report(String workload, String policy, BufferPool pool, long elapsedNanos) {
+        long hits = pool.getHitCount();
+        long misses = pool.getMissCount();
+        double hitRate = (double) hits / Math.max(1, hits + misses);
+        // hits cost next to nothing, charge the elapsed time to the misses
+        double missLatency = elapsedNanos / 1000.0 / Math.max(1, misses);
+        System.out.printf("%-10s %-8s %10d %10d %9.1f%% %14.1f%n",
+                workload, policy, hits, misses, hitRate * 100, missLatency);
+    }
+
+    /**
+     * Reads random pages from the first tenth of the file, interleaved with
+     * full sequential scans.
+     */
+    private static long seqScanWorkload(HeapFile f, int rounds) throws Exception {
+        Random random = new Random(7);
+        int hotPages = Math.max(1, f.numPages() / 10);
+        TransactionId tid = new TransactionId();
+
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            for (int i = 0; i < HOT_READS_PER_ROUND; i++) {
+                PageId pid = new HeapPageId(f.getId(), random.nextInt(hotPages));
+                Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+            }
+            benchmarkUtil.drain(new SeqScan(tid, f.getId(), ""));
+        }
+        long elapsed = System.nanoTime() - start;
+
+        Database.getBufferPool().transactionComplete(tid);
+        return elapsed;
+    }
+
+    /**
+     * Point lookups on a narrow key range, interleaved with full index scans.
+     */
+    private static long bTreeScanWorkload(BTreeFile f, int rounds) throws Exception {
+        Random random = new Random(7);
+        int hotKeys = 1 << 14;
+        TransactionId tid = new TransactionId();
+
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            for (int i = 0; i < HOT_READS_PER_ROUND / 10; i++) {
+                IndexPredicate ipred = new IndexPredicate(Predicate.Op.EQUALS, new IntField(random.nextInt(hotKeys)));
+                benchmarkUtil.drain(new BTreeScan(tid, f.getId(), "", ipred));
+            }
+            benchmarkUtil.drain(new BTreeScan(tid, f.getId(), "", null));
+        }
+        long elapsed = System.nanoTime() - start;
+
+        Database.getBufferPool().transactionComplete(tid);
+        return elapsed;
+    }
+}
@@ -0,0 +1,70 @@
+package simpledb.test;
+
+import simpledb.*;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures a scan-and-filter query over a heap file that fits in the buffer
+ * pool: rows per second, and bytes allocated per row scanned. The filter
+ * looks at one of several columns, so only that column has to be decoded.
+ * Also measures how long it takes to turn the bytes of a page into a
+ * HeapPage, which is paid on every buffer pool miss.
+ * <p>
+ * Usage: filterBenchmark [rows] [columns] [repetitions]
+ */
+public class filterBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int columns = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int repetitions = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        benchmarkUtil.quietLogging();
+
+        HeapFile heapFile = benchmarkUtil.createRandomHeapFile(columns, rows, 1 << 20);
+        int numPages = heapFile.numPages();
+        Database.resetBufferPool(numPages + 1);
+        System.out.printf("%d rows, %d columns, heap file %d pages%n", rows, columns, numPages);
+
+        // load the pool and the JIT
+        filter(heapFile);
+
+        long[] allocated = new long[1];
+        long begin = System.nanoTime();
+        int matched = 0;
+        for (int i = 0; i < repetitions; i++) {
+            long before = allocatedBytes();
+            matched = filter(heapFile);
+            allocated[0] += allocatedBytes() - before;
+        }
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        long scanned = (long) rows * repetitions;
+        System.out.printf("filter: %d of %d rows match, %.0f rows/s, %.1f bytes allocated per row%n",
+                matched, rows, scanned / seconds, (double) allocated[0] / scanned);
+
+        byte[] data = heapFile.readPage(new HeapPageId(heapFile.getId(), 0)).getPageData();
+        HeapPageId pid = new HeapPageId(heapFile.getId(), 0);
+        begin = System.nanoTime();
+        for (int i = 0; i < numPages * repetitions; i++) {
+            new HeapPage(pid, data.clone());
+        }
+        System.out.printf("page decode: %.2f us/page%n",
+                (System.nanoTime() - begin) / 1000.0 / (numPages * repetitions));
+    }
+
+    private static int filter(HeapFile heapFile) throws Exception {
+        TransactionId tid = new TransactionId();
+        // about one row in a hundred
+        Predicate p = new Predicate(0, Predicate.Op.LESS_THAN, new IntField((1 << 20) / 100));
+        int n = benchmarkUtil.drain(new Filter(p, new SeqScan(tid, heapFile.getId())));
+        // read-only, abort just drops the locks
+        Database.getBufferPool().transactionComplete(tid, false);
+        return n;
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,73 @@
+package simpledb.test;
+
+import simpledb.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures how fast a checkpoint writes a large set of dirty pages. A
+ * transaction deletes a tuple from every page of a table that fits in the
+ * buffer pool, in random order, and commits without writing them; then a
+ * checkpoint writes them all. The same is timed for flushAllPages().
+ * <p>
+ * The log is written to wal.log and its segments in the working directory.
+ * <p>
+ * Usage: flushBenchmark [pages] [rounds]
+ */
+public class flushBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        benchmarkUtil.quietLogging();
+        int tuplesPerPage = BufferPool.getPageSize() * 8 / (2 * 32 + 1);
+        HeapFile file = benchmarkUtil.createRandomHeapFile(2, tuplesPerPage * pages, 1000);
+        Database.resetBufferPool(pages + 100);
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < pages; i++) {
+            order.add(i);
+        }
+        Random random = new Random(1);
+
+        System.out.printf("%-16s %8s %10s %12s%n", "flush", "pages", "ms", "pages/s");
+        for (int round = 0; round < rounds; round++) {
+            Collections.shuffle(order, random);
+            dirtyPages(file, order);
+            long start = System.nanoTime();
+            Database.getLogFile().logCheckpoint();
+            print("checkpoint", pages, System.nanoTime() - start);
+
+            Collections.shuffle(order, random);
+            dirtyPages(file, order);
+            start = System.nanoTime();
+            Database.getBufferPool().flushAllPages();
+            print("flushAllPages", pages, System.nanoTime() - start);
+        }
+    }
+
+    private static void print(String flush, int pages, long nanos) {
+        System.out.printf("%-16s %8d %10.1f %12.0f%n", flush, pages, nanos / 1e6, pages / (nanos / 1e9));
+    }
+
+    /**
+     * Delete a tuple from every page, in the given order, and commit.
+     */
+    private static void dirtyPages(HeapFile file, List<Integer> order) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        for (int page : order) {
+            HeapPageId pid = new HeapPageId(file.getId(), page);
+            HeapPage p = (HeapPage) Database.getBufferPool().getPage(t.getId(), pid, Permissions.READ_WRITE);
+            Iterator<Tuple> it = p.iterator();
+            if (it.hasNext()) {
+                Database.getBufferPool().deleteTuple(t.getId(), it.next());
+            }
+        }
+        t.commit();
+    }
+}
@@ -0,0 +1,68 @@
+package simpledb.test;
+
+import simpledb.*;
+
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * Compares FORCE and NO FORCE commits. Every transaction deletes one tuple
+ * from each of a few random pages of a table that fits in the buffer pool
+ * and commits. With FORCE the commit writes those pages out, with NO FORCE
+ * it only logs them and the pages are written when the run ends. See
+ * BufferPool#setNoStealForce.
+ * <p>
+ * The log is written to wal.log and its segments in the working directory.
+ * <p>
+ * Usage: forceBenchmark [transactions] [pages per transaction...]
+ */
+public class forceBenchmark {
+
+    private static final int PAGES = 400;
+
+    public static void main(String[] args) throws Exception {
+        int transactions = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int[] pageCounts = new int[]{1, 4, 16};
+        if (args.length > 1) {
+            pageCounts = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                pageCounts[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+
+        benchmarkUtil.quietLogging();
+        int tuplesPerPage = BufferPool.getPageSize() * 8 / (2 * 32 + 1);
+        HeapFile file = benchmarkUtil.createRandomHeapFile(2, tuplesPerPage * PAGES, 1000);
+        Database.resetBufferPool(2 * PAGES);
+        Random random = new Random(1);
+
+        System.out.printf("%8s %8s %12s %12s%n", "commit", "pages", "commits/s", "us/commit");
+        for (int pages : pageCounts) {
+            for (boolean force : new boolean[]{true, false}) {
+                Database.getBufferPool().setNoStealForce(force);
+                long start = System.nanoTime();
+                for (int i = 0; i < transactions; i++) {
+                    Transaction t = new Transaction();
+                    t.start();
+                    for (int p = 0; p < pages; p++) {
+                        deleteTuple(t, file, random.nextInt(PAGES));
+                    }
+                    t.commit();
+                }
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.printf("%8s %8d %12.0f %12.1f%n", force ? "FORCE" : "NO FORCE", pages,
+                        transactions / seconds, seconds * 1e6 / transactions);
+                Database.getBufferPool().flushAllPages();
+            }
+        }
+    }
+
+    private static void deleteTuple(Transaction t, HeapFile file, int page) throws Exception {
+        HeapPageId pid = new HeapPageId(file.getId(), page);
+        HeapPage p = (HeapPage) Database.getBufferPool().getPage(t.getId(), pid, Permissions.READ_WRITE);
+        Iterator<Tuple> it = p.iterator();
+        if (it.hasNext()) {
+            Database.getBufferPool().deleteTuple(t.getId(), it.next());
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package simpledb.test;
+
+import simpledb.*;
+
+/**
+ * Measures an equi-join of two heap files of the same size with
+ * HashEquiJoin, for several amounts of work memory. With enough memory the
+ * build side is hashed in memory; with less, partitions of both sides are
+ * spilled to temporary files and joined afterwards. The heap files fit in
+ * the buffer pool, so the difference is the cost of spilling.
+ * <p>
+ * Usage: hashJoinBenchmark [rows] [workMemoryPages...]
+ */
+public class hashJoinBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        int[] memory = new int[]{100000, 1000, 100};
+        if (args.length > 1) {
+            memory = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                memory[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+
+        benchmarkUtil.quietLogging();
+
+        // column 0 is the join key, each key matches about one row
+        HeapFile build = benchmarkUtil.createRandomHeapFile(2, rows, rows);
+        HeapFile probe = benchmarkUtil.createRandomHeapFile(2, rows, rows);
+        BufferPool pool = Database.resetBufferPool(build.numPages() + probe.numPages() + 1);
+        System.out.printf("%d x %d rows, heap files %d pages%n", rows, rows, build.numPages());
+        System.out.printf("%14s %10s %12s %10s%n", "memory pages", "seconds", "rows/s", "matches");
+
+        // load the pool and the JIT
+        join(build, probe);
+
+        for (int pages : memory) {
+            pool.setWorkMemoryPages(pages * 2);
+            long begin = System.nanoTime();
+            int matches = join(build, probe);
+            double seconds = (System.nanoTime() - begin) / 1e9;
+            System.out.printf("%14d %10.2f %12.0f %10d%n", pages, seconds, 2.0 * rows / seconds, matches);
+        }
+    }
+
+    private static int join(HeapFile build, HeapFile probe) throws Exception {
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        int n = benchmarkUtil.drain(new HashEquiJoin(p, new SeqScan(tid, build.getId()),
+                new SeqScan(tid, probe.getId())));
+        // read-only, abort just drops the locks
+        Database.getBufferPool().transactionComplete(tid, false);
+        return n;
+    }
+}
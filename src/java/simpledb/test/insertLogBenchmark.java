@@ -0,0 +1,43 @@
+package simpledb.test;
+
+import simpledb.*;
+
+/**
+ * Measures how much log small transactions write. Every transaction inserts
+ * one tuple into a heap file and commits, which logs the page it changed.
+ * Reports the log bytes per transaction and the transactions per second.
+ * <p>
+ * The log is written to wal.log and its segments in the working directory.
+ * <p>
+ * Usage: insertLogBenchmark [transactions]
+ */
+public class insertLogBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int transactions = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+
+        benchmarkUtil.quietLogging();
+        HeapFile file = benchmarkUtil.createRandomHeapFile(2, 1000, 1000);
+        LogFile log = Database.getLogFile();
+        // start the log, so that LSNs count from its first record
+        log.logXactionBegin(new TransactionId());
+
+        System.out.printf("%8s %14s %10s%n", "commits", "log bytes/tx", "tx/s");
+        for (int round = 0; round < 3; round++) {
+            long startLsn = log.getEndLsn();
+            long start = System.nanoTime();
+            for (int i = 0; i < transactions; i++) {
+                Transaction t = new Transaction();
+                t.start();
+                Tuple tuple = new Tuple(file.getTupleDesc());
+                tuple.setField(0, new IntField(i));
+                tuple.setField(1, new IntField(round));
+                Database.getBufferPool().insertTuple(t.getId(), file.getId(), tuple);
+                t.commit();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%8d %14.0f %10.0f%n", transactions,
+                    (log.getEndLsn() - startLsn) / (double) transactions, transactions / seconds);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package simpledb.test;
+
+import simpledb.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures how long transactions wait for page locks. Every thread runs
+ * short transactions that take an exclusive lock on one of a few hot pages,
+ * hold it for a moment and commit, so most acquisitions conflict with
+ * another thread and the latency is dominated by how quickly a released
+ * lock is handed over.
+ * <p>
+ * Usage: lockBenchmark [threads] [hotPages] [transactionsPerThread]
+ */
+public class lockBenchmark {
+
+    // how long a transaction holds its lock, in nanoseconds
+    private static final long HOLD_NANOS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int hotPages = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        int transactions = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+
+        benchmarkUtil.quietLogging();
+
+        long[][] latencies = new long[threads][transactions];
+        CountDownLatch start = new CountDownLatch(1);
+        ArrayList<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            long[] latency = latencies[t];
+            Random random = new Random(t);
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < transactions; i++) {
+                        TransactionId tid = new TransactionId();
+                        PageId pid = new HeapPageId(0, random.nextInt(hotPages));
+
+                        long begin = System.nanoTime();
+                        ConcurrentStatus.acquireLock(tid, pid, Lock.EXCLUSIVE_LOCK);
+                        latency[i] = System.nanoTime() - begin;
+
+                        long end = System.nanoTime() + HOLD_NANOS;
+                        while (System.nanoTime() < end) {
+                            // hold the lock
+                        }
+                        ConcurrentStatus.removeTransaction(tid);
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+
+        long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+        System.out.printf("%d threads, %d hot pages, %d transactions in %.2f s%n",
+                threads, hotPages, all.length, elapsed / 1e9);
+        System.out.printf("lock wait (us): p50 %.1f  p90 %.1f  p99 %.1f  max %.1f%n",
+                percentile(all, 0.50), percentile(all, 0.90), percentile(all, 0.99),
+                all[all.length - 1] / 1000.0);
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        int i = (int) Math.min(sorted.length - 1, Math.round(p * (sorted.length - 1)));
+        return sorted[i] / 1000.0;
+    }
+}
@@ -0,0 +1,50 @@
+package simpledb.test;
+
+import simpledb.*;
+
+/**
+ * Measures how fast records can be appended to the log. One run appends
+ * small BEGIN records, the other UPDATE records holding the before and after
+ * image of a heap page. The log is forced once at the end of each run, so
+ * the numbers are about serializing and writing records, not about syncing.
+ * <p>
+ * The log is written to wal.log in the working directory.
+ * <p>
+ * Usage: logBenchmark [records]
+ */
+public class logBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int records = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+        benchmarkUtil.quietLogging();
+        HeapFile file = benchmarkUtil.createRandomHeapFile(2, 1000, 1000);
+        Page page = file.readPage(new HeapPageId(file.getId(), 0));
+        LogFile log = Database.getLogFile();
+        // start the log, so that LSNs count from its first record
+        log.logXactionBegin(new TransactionId());
+
+        System.out.printf("%8s %10s %12s %10s%n", "record", "records", "records/s", "MB/s");
+        for (int round = 0; round < 2; round++) {
+            run("BEGIN", records, log, null);
+            run("UPDATE", records / 20, log, page);
+        }
+    }
+
+    private static void run(String name, int records, LogFile log, Page page) throws Exception {
+        long startLsn = log.getEndLsn();
+        long start = System.nanoTime();
+        for (int i = 0; i < records; i++) {
+            TransactionId tid = new TransactionId();
+            if (page == null) {
+                log.logXactionBegin(tid);
+            } else {
+                log.logWrite(tid, page, page);
+            }
+        }
+        log.force();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%8s %10d %12.0f %10.1f%n", name, records, records / seconds,
+                (log.getEndLsn() - startLsn) / seconds / 1e6);
+    }
+}
@@ -0,0 +1,57 @@
+package simpledb.test;
+
+import simpledb.*;
+
+/**
+ * Measures full scans of a heap file that is much bigger than the buffer
+ * pool, with and without reading ahead. Without prefetching every page is
+ * read from disk when the scan gets to it; with prefetching the pages are
+ * read in batches on a background thread while the scan works through the
+ * previous ones.
+ * <p>
+ * The file is written just before it is scanned, so unless the page cache
+ * is dropped first (echo 3 > /proc/sys/vm/drop_caches, between runs with a
+ * single mode) the scans read it from memory and the difference is mostly
+ * the overlap of reading and decoding pages with the scan.
+ * <p>
+ * Usage: prefetchBenchmark [rows] [bufferPages] [window] [off|on|both]
+ */
+public class prefetchBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        int bufferPages = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int window = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        String mode = args.length > 3 ? args[3] : "both";
+
+        benchmarkUtil.quietLogging();
+
+        HeapFile heapFile = benchmarkUtil.createRandomHeapFile(2, rows, 1 << 20);
+        System.out.printf("%d rows, heap file %d pages, buffer pool %d pages%n",
+                rows, heapFile.numPages(), bufferPages);
+        System.out.printf("%8s %10s %12s %12s%n", "window", "seconds", "pages/s", "prefetched");
+
+        if (!mode.equals("on")) {
+            scan(heapFile, bufferPages, 0);
+        }
+        if (!mode.equals("off")) {
+            scan(heapFile, bufferPages, window);
+        }
+    }
+
+    private static void scan(HeapFile heapFile, int bufferPages, int window) throws Exception {
+        BufferPool pool = Database.resetBufferPool(bufferPages);
+        pool.setPrefetchWindow(window);
+
+        TransactionId tid = new TransactionId();
+        long begin = System.nanoTime();
+        benchmarkUtil.drain(new SeqScan(tid, heapFile.getId()));
+        long elapsed = System.nanoTime() - begin;
+        // read-only, abort just drops the locks
+        pool.transactionComplete(tid, false);
+
+        double seconds = elapsed / 1e9;
+        System.out.printf("%8d %10.2f %12.0f %12d%n", pool.getPrefetchWindow(), seconds,
+                heapFile.numPages() / seconds, pool.getPrefetchCount());
+    }
+}
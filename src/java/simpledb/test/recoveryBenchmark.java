@@ -0,0 +1,133 @@
+package simpledb.test;
+
+import simpledb.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * Measures how long restart recovery takes for logs of different sizes.
+ * Every run commits a number of transactions that each delete a tuple from
+ * a random page of a table, and leaves a few transactions that flushed
+ * their deletes but never finished. Then the database "crashes": the table
+ * file is put back as it was before the run, as if none of the page writes
+ * had made it to disk, and the log is recovered with 1 and with more redo
+ * threads. Afterwards the table must have lost exactly one tuple per
+ * committed transaction.
+ * <p>
+ * The log is written to wal.log and its segments in the working directory.
+ * <p>
+ * Usage: recoveryBenchmark [transactions...]
+ */
+public class recoveryBenchmark {
+
+    private static final int PAGES = 2000;
+    private static final int LOSERS = 8;
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = new int[]{500, 2000, 8000};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+        int[] threadCounts = new int[]{1, Math.max(4, Runtime.getRuntime().availableProcessors())};
+
+        benchmarkUtil.quietLogging();
+        int tuplesPerPage = BufferPool.getPageSize() * 8 / (2 * 32 + 1);
+        File table = benchmarkUtil.createRandomHeapFile(2, tuplesPerPage * PAGES, 1000).getFile();
+        File snapshot = File.createTempFile("recovery", ".dat");
+        snapshot.deleteOnExit();
+        Files.copy(table.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        File crashedLog = Files.createTempDirectory("recovery").toFile();
+
+        System.out.printf("%8s %10s %8s %10s %10s %10s%n",
+                "commits", "log MB", "threads", "ms", "MB/s", "tuples ok");
+        for (int size : sizes) {
+            Files.copy(snapshot.toPath(), table.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Database.reset();
+            HeapFile hf = Utility.openHeapFile(2, table);
+            int committed = run(hf, size);
+            double mb = (Database.getLogFile().getEndLsn() - Database.getLogFile().getStartLsn()) / 1e6;
+            copyLog(new File("."), crashedLog);
+
+            for (int threads : threadCounts) {
+                // nothing but the log survived the crash
+                Files.copy(snapshot.toPath(), table.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                copyLog(crashedLog, new File("."));
+                Database.reset();
+                hf = Utility.openHeapFile(2, table);
+                Database.getLogFile().setRecoveryThreads(threads);
+
+                long start = System.nanoTime();
+                Database.getLogFile().recover();
+                double ms = (System.nanoTime() - start) / 1e6;
+
+                Transaction t = new Transaction();
+                t.start();
+                int tuples = benchmarkUtil.drain(new SeqScan(t.getId(), hf.getId()));
+                t.commit();
+                System.out.printf("%8d %10.1f %8d %10.0f %10.1f %10s%n", committed, mb, threads, ms,
+                        mb / ms * 1000, tuples == tuplesPerPage * PAGES - committed);
+            }
+        }
+        for (File f : crashedLog.listFiles()) {
+            f.delete();
+        }
+        crashedLog.delete();
+    }
+
+    /**
+     * Replace the log files in one directory with the ones in another.
+     */
+    private static void copyLog(File from, File to) throws IOException {
+        for (File f : to.listFiles((dir, name) -> name.startsWith("wal.log"))) {
+            f.delete();
+        }
+        for (File f : from.listFiles((dir, name) -> name.startsWith("wal.log"))) {
+            Files.copy(f.toPath(), new File(to, f.getName()).toPath());
+        }
+    }
+
+    /**
+     * Commit transactions that delete a tuple each, then start some that
+     * never finish.
+     *
+     * @return the number of tuples deleted by committed transactions
+     */
+    private static int run(HeapFile hf, int transactions) throws Exception {
+        Random random = new Random(transactions);
+        int committed = 0;
+        for (int i = 0; i < transactions; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            if (deleteRandomTuple(t, hf, random)) {
+                committed++;
+            }
+            t.commit();
+        }
+        for (int i = 0; i < LOSERS; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            deleteRandomTuple(t, hf, random);
+            Database.getBufferPool().flushPages(t.getId());
+        }
+        return committed;
+    }
+
+    private static boolean deleteRandomTuple(Transaction t, HeapFile hf, Random random) throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), random.nextInt(PAGES));
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(t.getId(), pid, Permissions.READ_WRITE);
+        Iterator<Tuple> it = page.iterator();
+        if (!it.hasNext()) {
+            return false;
+        }
+        Database.getBufferPool().deleteTuple(t.getId(), it.next());
+        return true;
+    }
+}
@@ -0,0 +1,106 @@
+package simpledb.test;
+
+import simpledb.*;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Measures how fast the pages of a heap file can be read from disk. The same
+ * file is scanned page by page three times:
+ * <ul>
+ * <li>the way HeapFile used to read pages: open, seek, read and close the
+ * file for every page, four system calls per page</li>
+ * <li>through a PageFile, which keeps the file open and reads each page with
+ * one pread</li>
+ * <li>through a memory mapped PageFile, no system calls once the file is
+ * mapped</li>
+ * </ul>
+ * The file is scanned once before the measurements, so all three read it
+ * from the page cache and the difference is the cost of the system calls.
+ * The pages are not decoded, that costs the same whichever way they are read.
+ * <p>
+ * Usage: scanBenchmark [megabytes]
+ */
+public class scanBenchmark {
+
+    private static final int COLUMNS = 2;
+
+    public static void main(String[] args) throws Exception {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+
+        benchmarkUtil.quietLogging();
+
+        File f = File.createTempFile("scan", ".dat");
+        f.deleteOnExit();
+        int numPages = (int) ((long) megabytes * 1024 * 1024 / BufferPool.getPageSize());
+        writeFullPages(Utility.openHeapFile(COLUMNS, f), numPages);
+
+        System.out.printf("heap file %d pages of %d bytes (%d MB)%n",
+                numPages, BufferPool.getPageSize(), megabytes);
+        System.out.printf("%-16s %12s %10s %12s%n", "reader", "pages/s", "MB/s", "us/page");
+
+        PageFile file = new PageFile(f);
+        // warm up the page cache and the JIT
+        scan(file, numPages);
+
+        report("open/seek/read", numPages, scanReopening(f, numPages));
+        report("file channel", numPages, scan(file, numPages));
+        file.setMemoryMapped(true);
+        scan(file, numPages);
+        report("memory mapped", numPages, scan(file, numPages));
+    }
+
+    private static void report(String reader, int numPages, long elapsed) {
+        double seconds = elapsed / 1e9;
+        System.out.printf("%-16s %12.0f %10.1f %12.2f%n", reader, numPages / seconds,
+                (double) numPages * BufferPool.getPageSize() / (1024 * 1024) / seconds,
+                elapsed / 1000.0 / numPages);
+    }
+
+    /**
+     * Fill the file with full pages of tuples.
+     */
+    private static void writeFullPages(HeapFile heapFile, int numPages) throws Exception {
+        HeapPage page = new HeapPage(new HeapPageId(heapFile.getId(), 0), HeapPage.createEmptyPageData());
+        for (int i = 0; page.getNumEmptySlots() > 0; i++) {
+            page.insertTuple(Utility.getHeapTuple(i, COLUMNS));
+        }
+        byte[] data = page.getPageData();
+
+        try (BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(heapFile.getFile()), 1 << 20)) {
+            for (int i = 0; i < numPages; i++) {
+                out.write(data);
+            }
+        }
+    }
+
+    /**
+     * Read every page the way HeapFile.readPage used to.
+     */
+    private static long scanReopening(File f, int numPages) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        long begin = System.nanoTime();
+        for (int i = 0; i < numPages; i++) {
+            RandomAccessFile rf = new RandomAccessFile(f, "r");
+            rf.seek((long) i * pageSize);
+            byte[] buffer = new byte[pageSize];
+            rf.read(buffer, 0, pageSize);
+            rf.close();
+        }
+        return System.nanoTime() - begin;
+    }
+
+    private static long scan(PageFile file, int numPages) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        long begin = System.nanoTime();
+        for (int i = 0; i < numPages; i++) {
+            byte[] buffer = new byte[pageSize];
+            file.read((long) i * pageSize, buffer, pageSize);
+        }
+        return System.nanoTime() - begin;
+    }
+}
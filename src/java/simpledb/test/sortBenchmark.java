@@ -0,0 +1,59 @@
+package simpledb.test;
+
+import simpledb.*;
+
+/**
+ * Measures ORDER BY over a heap file that fits in the buffer pool, for
+ * several amounts of work memory, and ORDER BY with a small LIMIT. With
+ * enough memory the tuples are sorted in memory; with less, sorted runs are
+ * spilled to temporary files and merged.
+ * <p>
+ * Usage: sortBenchmark [rows] [limit] [workMemoryPages...]
+ */
+public class sortBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int limit = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int[] memory = new int[]{100000, 1000, 100};
+        if (args.length > 2) {
+            memory = new int[args.length - 2];
+            for (int i = 2; i < args.length; i++) {
+                memory[i - 2] = Integer.parseInt(args[i]);
+            }
+        }
+
+        benchmarkUtil.quietLogging();
+
+        HeapFile heapFile = benchmarkUtil.createRandomHeapFile(2, rows, Integer.MAX_VALUE);
+        BufferPool pool = Database.resetBufferPool(heapFile.numPages() + 1);
+        System.out.printf("%d rows, heap file %d pages%n", rows, heapFile.numPages());
+        System.out.printf("%14s %8s %10s %12s%n", "memory pages", "limit", "seconds", "rows/s");
+
+        // load the pool and the JIT
+        sort(heapFile, OrderBy.NO_LIMIT);
+
+        for (int pages : memory) {
+            pool.setWorkMemoryPages(pages * 2);
+            report(pages, heapFile, OrderBy.NO_LIMIT, rows);
+        }
+        pool.setWorkMemoryPages(memory[memory.length - 1] * 2);
+        report(memory[memory.length - 1], heapFile, limit, rows);
+    }
+
+    private static void report(int pages, HeapFile heapFile, int limit, int rows) throws Exception {
+        long begin = System.nanoTime();
+        sort(heapFile, limit);
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        System.out.printf("%14d %8s %10.2f %12.0f%n", pages, limit == OrderBy.NO_LIMIT ? "-" : limit,
+                seconds, rows / seconds);
+    }
+
+    private static int sort(HeapFile heapFile, int limit) throws Exception {
+        TransactionId tid = new TransactionId();
+        int n = benchmarkUtil.drain(new OrderBy(0, true, new SeqScan(tid, heapFile.getId()), limit));
+        // read-only, abort just drops the locks
+        Database.getBufferPool().transactionComplete(tid, false);
+        return n;
+    }
+}
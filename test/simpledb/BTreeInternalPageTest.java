@@ -272,6 +272,38 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.lowerBound(), upperBound() and getChildAt()
+	 */
+	@Test public void searchEntries() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+		Iterator<BTreeEntry> it = page.iterator();
+		while (it.hasNext())
+			entries.add(it.next());
+
+		for (int i = 0; i < entries.size(); i++) {
+			IntField key = (IntField) entries.get(i).getKey();
+			assertEquals(i, page.lowerBound(key));
+			assertEquals(i + 1, page.upperBound(key));
+			assertEquals(i + 1, page.lowerBound(new IntField(key.getValue() + 1)));
+			assertEquals(entries.get(i).getLeftChild(), page.getChildAt(page.lowerBound(key)));
+		}
+		int n = entries.size();
+		assertEquals(0, page.upperBound(new IntField(0)));
+		assertEquals(n, page.lowerBound(new IntField(100000)));
+		assertEquals(entries.get(n - 1).getRightChild(), page.getChildAt(n));
+
+		// the search sees changes to the page
+		BTreeEntry first = entries.get(0);
+		page.deleteKeyAndLeftChild(first);
+		assertEquals(0, page.lowerBound(entries.get(1).getKey()));
+		assertEquals(first.getRightChild(), page.getChildAt(0));
+		page.insertEntry(first);
+		assertEquals(1, page.lowerBound(entries.get(1).getKey()));
+		assertEquals(first.getLeftChild(), page.getChildAt(0));
+	}
+
 	/**
 	 * Unit test for BTreeInternalPage.deleteEntry() with false entries
 	 */
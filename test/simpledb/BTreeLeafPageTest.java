@@ -295,6 +295,42 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeLeafPage.lowerBound(), upperBound() and iterator(int)
+	 */
+	@Test public void searchTuples() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+		int[] keys = new int[EXAMPLE_VALUES.length];
+		for (int i = 0; i < keys.length; i++)
+			keys[i] = EXAMPLE_VALUES[i][0];
+		Arrays.sort(keys);
+
+		for (int i = 0; i < keys.length; i++) {
+			assertEquals(i, page.lowerBound(new IntField(keys[i])));
+			assertEquals(i + 1, page.upperBound(new IntField(keys[i])));
+			Iterator<Tuple> it = page.iterator(page.lowerBound(new IntField(keys[i])));
+			for (int j = i; j < keys.length; j++)
+				assertEquals(new IntField(keys[j]), it.next().getField(0));
+			assertFalse(it.hasNext());
+		}
+		assertEquals(0, page.upperBound(new IntField(0)));
+		assertEquals(keys.length, page.lowerBound(new IntField(100000)));
+		assertFalse(page.iterator(keys.length).hasNext());
+
+		// duplicate keys lie between the lower and the upper bound, and the
+		// search sees changes to the page
+		Tuple dup = null;
+		for (int i = 0; i < 3; i++) {
+			dup = BTreeUtility.getBTreeTuple(keys[5], 2);
+			page.insertTuple(dup);
+		}
+		assertEquals(5, page.lowerBound(new IntField(keys[5])));
+		assertEquals(9, page.upperBound(new IntField(keys[5])));
+		assertEquals(dup, page.iterator(8).next());
+		page.deleteTuple(dup);
+		assertEquals(8, page.upperBound(new IntField(keys[5])));
+	}
+
 	/**
 	 * Unit test for BTreeLeafPage.deleteTuple() with false tuples
 	 */
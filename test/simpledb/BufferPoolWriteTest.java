@@ -147,6 +147,36 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(10, count);
     }
 
+    /**
+     * The page cleaner writes dirty pages once the high watermark is passed
+     */
+    @Test
+    public void cleanerWritesDirtyPages() throws Exception {
+        BufferPool pool = Database.resetBufferPool(20);
+        pool.setCleaner(50, 25, 0);
+        HeapFileDuplicates hfd = new HeapFileDuplicates(empty.getFile(), empty.getTupleDesc(), 15);
+        Database.getCatalog().addTable(hfd, SystemTestUtil.getUUID());
+        pool.insertTuple(tid, hfd.getId(), Utility.getHeapTuple(1, 2));
+
+        // down to the low watermark of 5 pages in the background
+        long deadline = System.currentTimeMillis() + 10000;
+        while (pool.getDirtyPageCount() > 5 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(5, pool.getDirtyPageCount());
+        assertEquals(10, pool.getCleanedCount());
+
+        // the written pages hold the tuple on disk
+        int written = 0;
+        for (int i = 0; i < hfd.numPages(); i++) {
+            HeapPage p = (HeapPage) hfd.readPage(new HeapPageId(hfd.getId(), i));
+            if (p.getNumEmptySlots() < p.numSlots) {
+                written++;
+            }
+        }
+        assertEquals(10, written);
+    }
+
     /**
      * JUnit suite target
      */
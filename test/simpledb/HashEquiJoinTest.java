@@ -0,0 +1,129 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class HashEquiJoinTest extends SimpleDbTestBase {
+
+  int width1 = 2;
+  int width2 = 3;
+
+  /**
+   * Give joins so little memory that a few hundred tuples do not fit
+   */
+  @Before public void limitMemory() {
+    Database.getBufferPool().setWorkMemoryPages(2 * BufferPool.MIN_WORK_MEMORY_PAGES);
+  }
+
+  /**
+   * @return width ints per tuple, the first one is i % keys and the others
+   *   identify the tuple
+   */
+  private int[] tuples(int width, int count, int keys) {
+    int[] data = new int[width * count];
+    for (int i = 0; i < count; i++) {
+      data[i * width] = i % keys;
+      for (int j = 1; j < width; j++) {
+        data[i * width + j] = i * width + j;
+      }
+    }
+    return data;
+  }
+
+  /**
+   * @return the tuples of a join as sorted strings
+   */
+  private List<String> drain(OpIterator it) throws Exception {
+    List<String> tuples = new ArrayList<String>();
+    it.open();
+    while (it.hasNext()) {
+      tuples.add(it.next().toString());
+    }
+    Collections.sort(tuples);
+    return tuples;
+  }
+
+  /**
+   * Check a hash join of the two inputs against a nested loops join
+   */
+  private void checkJoin(int[] data1, int[] data2) throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    List<String> expected = drain(new Join(pred,
+        TestUtil.createTupleList(width1, data1), TestUtil.createTupleList(width2, data2)));
+    HashEquiJoin op = new HashEquiJoin(pred,
+        TestUtil.createTupleList(width1, data1), TestUtil.createTupleList(width2, data2));
+    List<String> actual = drain(op);
+    assertTrue(expected.size() > 0);
+    assertEquals(expected, actual);
+
+    // rewinding joins the spilled partitions again
+    op.rewind();
+    List<String> rewound = new ArrayList<String>();
+    while (op.hasNext()) {
+      rewound.add(op.next().toString());
+    }
+    Collections.sort(rewound);
+    assertEquals(expected, rewound);
+    op.close();
+  }
+
+  /**
+   * Build side that fits in memory
+   */
+  @Test public void inMemory() throws Exception {
+    checkJoin(tuples(width1, 50, 10), tuples(width2, 100, 20));
+  }
+
+  /**
+   * Build side that has to be partitioned and spilled to disk
+   */
+  @Test public void spillPartitions() throws Exception {
+    checkJoin(tuples(width1, 3000, 1000), tuples(width2, 2000, 1500));
+  }
+
+  /**
+   * Build side where a single key does not fit in memory, so splitting the
+   * partition again does not help
+   */
+  @Test public void skewedKey() throws Exception {
+    checkJoin(tuples(width1, 1000, 1), tuples(width2, 5, 1));
+  }
+
+  /**
+   * Unit test for HashEquiJoin giving back its work memory when closed
+   */
+  @Test public void releaseMemory() throws Exception {
+    BufferPool pool = Database.getBufferPool();
+    pool.setWorkMemoryPages(100);
+    int granted = pool.reserveWorkMemory(Integer.MAX_VALUE);
+    pool.releaseWorkMemory(granted);
+
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin op = new HashEquiJoin(pred, TestUtil.createTupleList(width1, tuples(width1, 10, 5)),
+        TestUtil.createTupleList(width2, tuples(width2, 10, 5)));
+    op.open();
+    int left = pool.reserveWorkMemory(Integer.MAX_VALUE);
+    pool.releaseWorkMemory(left);
+    assertTrue(left < granted);
+    op.close();
+    assertEquals(granted, pool.reserveWorkMemory(Integer.MAX_VALUE));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(HashEquiJoinTest.class);
+  }
+}
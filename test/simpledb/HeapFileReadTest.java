@@ -121,6 +121,59 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    /**
+     * Unit test for BufferPool.prefetchPages()
+     */
+    @Test
+    public void prefetchPages() throws Exception {
+        HeapFile tenPageFile = SystemTestUtil.createRandomHeapFile(2, 504 * 10,
+                null, null);
+        BufferPool pool = Database.resetBufferPool(40);
+
+        pool.prefetchPages(tenPageFile, 0, 10);
+        awaitPrefetchedAndMissed(pool, 10);
+        assertEquals(10, pool.getPrefetchCount());
+
+        for (int i = 0; i < 10; i++) {
+            pool.getPage(tid, new HeapPageId(tenPageFile.getId(), i), Permissions.READ_ONLY);
+        }
+        assertEquals(0, pool.getMissCount());
+        assertEquals(10, pool.getHitCount());
+    }
+
+    /**
+     * A scan reads ahead, and every page is still read from disk only once
+     */
+    @Test
+    public void testIteratorPrefetch() throws Exception {
+        HeapFile tenPageFile = SystemTestUtil.createRandomHeapFile(2, 504 * 10,
+                null, null);
+        BufferPool pool = Database.resetBufferPool(40);
+
+        DbFileIterator it = tenPageFile.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            assertNotNull(it.next());
+            count += 1;
+        }
+        it.close();
+        assertEquals(504 * 10, count);
+
+        // pages the scan got to first were read by the scan itself
+        awaitPrefetchedAndMissed(pool, 10);
+    }
+
+    private static void awaitPrefetchedAndMissed(BufferPool pool, int pages) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (pool.getPrefetchCount() + pool.getMissCount() < pages
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(50);
+        assertEquals(pages, pool.getPrefetchCount() + pool.getMissCount());
+    }
+
     /**
      * JUnit suite target
      */
@@ -4,6 +4,8 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
+
 import static org.junit.Assert.*;
 import junit.framework.JUnit4TestAdapter;
 
@@ -43,6 +45,29 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Unit test for HeapFile.writePages(): two runs of adjacent pages with a
+     * gap between them, and a run past the end of the file
+     */
+    @Test public void writePages() throws Exception {
+        ArrayList<Page> pages = new ArrayList<Page>();
+        for (int pgNo : new int[]{0, 1, 2, 4, 5}) {
+            HeapPage page = new HeapPage(new HeapPageId(empty.getId(), pgNo), HeapPage.createEmptyPageData());
+            page.insertTuple(Utility.getHeapTuple(pgNo, 2));
+            pages.add(page);
+        }
+        empty.writePages(pages);
+        empty.force();
+        assertEquals(6, empty.numPages());
+
+        for (Page page : pages) {
+            assertArrayEquals(page.getPageData(), empty.readPage(page.getId()).getPageData());
+        }
+        // the gap reads as zeros
+        byte[] gap = empty.readPage(new HeapPageId(empty.getId(), 3)).getPageData();
+        assertArrayEquals(new byte[gap.length], gap);
+    }
+
     /**
      * JUnit suite target
      */
@@ -126,6 +126,34 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
     }
   }
 
+  /**
+   * Test IntegerAggregator.mergeTupleIntoGroup() over enough groups, with
+   * negative group values, to grow the group table several times
+   */
+  @Test public void mergeManyGroups() throws Exception {
+    int groups = 1000;
+    int[] input = new int[groups * 3 * width1];
+    int[] expected = new int[groups * width1];
+    for (int g = 0; g < groups; g++) {
+      for (int j = 0; j < 3; j++) {
+        input[(j * groups + g) * width1] = g - groups / 2;
+        input[(j * groups + g) * width1 + 1] = g + j;
+      }
+      expected[g * width1] = g - groups / 2;
+      expected[g * width1 + 1] = 3 * g + 3;
+    }
+
+    OpIterator scan = TestUtil.createTupleList(width1, input);
+    scan.open();
+    IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM);
+    while (scan.hasNext()) {
+      agg.mergeTupleIntoGroup(scan.next());
+    }
+    OpIterator it = agg.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(width1, expected), it);
+  }
+
   /**
    * Test IntegerAggregator.iterator() for OpIterator behaviour
    */
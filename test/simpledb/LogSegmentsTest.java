@@ -0,0 +1,152 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.TreeSet;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LogSegmentsTest extends SimpleDbTestBase {
+
+  private static final int SEGMENT_SIZE = 1024;
+
+  private File dir;
+  private LogSegments segments;
+
+  @Before public void setUp() throws IOException {
+    dir = Files.createTempDirectory("segments").toFile();
+    segments = new LogSegments(new File(dir, "wal.log"), SEGMENT_SIZE, 2);
+  }
+
+  @After public void tearDown() throws IOException {
+    segments.close();
+    for (File f : dir.listFiles()) {
+      f.delete();
+    }
+    dir.delete();
+  }
+
+  private static byte[] bytes(int length, int seed) {
+    byte[] b = new byte[length];
+    for (int i = 0; i < length; i++) {
+      b[i] = (byte) (i * 31 + seed);
+    }
+    return b;
+  }
+
+  private void write(long lsn, byte[]... chunks) throws IOException {
+    ByteBuffer[] buffers = new ByteBuffer[chunks.length];
+    long length = 0;
+    for (int i = 0; i < chunks.length; i++) {
+      buffers[i] = ByteBuffer.wrap(chunks[i]);
+      length += chunks[i].length;
+    }
+    segments.write(lsn, buffers, length);
+  }
+
+  private byte[] read(long lsn, int length) throws IOException {
+    byte[] b = new byte[length];
+    try (DataInputStream in = new DataInputStream(segments.openInput(lsn))) {
+      in.readFully(b);
+    }
+    return b;
+  }
+
+  /**
+   * Segments are created at their full size, and writes are split across
+   * segment boundaries
+   */
+  @Test public void writeAcrossSegments() throws IOException {
+    byte[] a = bytes(1000, 1);
+    byte[] b = bytes(1500, 2);
+    write(0, a, b);
+
+    assertEquals(new TreeSet<>(Arrays.asList(0L, 1L, 2L)), segments.list());
+    for (long segment : segments.list()) {
+      assertEquals(SEGMENT_SIZE, segments.file(segment).length());
+    }
+    assertArrayEquals(a, read(0, 1000));
+    assertArrayEquals(b, read(1000, 1500));
+  }
+
+  /**
+   * Reading stops where the segment files stop
+   */
+  @Test public void readEndsWithLastSegment() throws IOException {
+    write(0, bytes(100, 3));
+    InputStream in = segments.openInput(SEGMENT_SIZE - 10);
+    assertEquals(10, in.skip(10));
+    assertEquals(-1, in.read());
+    in.close();
+
+    try {
+      read(SEGMENT_SIZE - 10, 11);
+      throw new AssertionError("read past the last segment");
+    } catch (EOFException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Truncation turns old segments into future ones, up to the limit, and
+   * deletes the rest
+   */
+  @Test public void truncateRecycles() throws IOException {
+    write(0, bytes(4 * SEGMENT_SIZE - 100, 4));
+    long end = 4 * SEGMENT_SIZE - 100;
+
+    segments.truncate(3 * SEGMENT_SIZE + 10, end);
+    assertEquals(new TreeSet<>(Arrays.asList(3L, 4L, 5L)), segments.list());
+    assertArrayEquals(Arrays.copyOfRange(bytes(4 * SEGMENT_SIZE - 100, 4), 3 * SEGMENT_SIZE, (int) end),
+        read(3 * SEGMENT_SIZE, (int) end - 3 * SEGMENT_SIZE));
+
+    // appending goes on in a recycled segment
+    write(end, bytes(200, 5));
+    assertArrayEquals(bytes(200, 5), read(end, 200));
+    assertEquals(new TreeSet<>(Arrays.asList(3L, 4L, 5L)), segments.list());
+  }
+
+  /**
+   * A new log starts after all existing segments, so recycled segments
+   * never hold bytes at the position they are read at
+   */
+  @Test public void resetContinuesAfterExistingSegments() throws IOException {
+    write(0, bytes(2 * SEGMENT_SIZE + 1, 6));
+    long start = segments.reset();
+    assertEquals(3 * SEGMENT_SIZE, start);
+    assertEquals(new TreeSet<>(Arrays.asList(3L, 4L)), segments.list());
+  }
+
+  /**
+   * Recovery clears what follows the end of the log
+   */
+  @Test public void discardAfter() throws IOException {
+    write(0, bytes(SEGMENT_SIZE + 500, 7));
+    segments.discardAfter(300);
+    assertEquals(new TreeSet<>(Arrays.asList(0L)), segments.list());
+    assertArrayEquals(bytes(300, 7), read(0, 300));
+    assertArrayEquals(new byte[SEGMENT_SIZE - 300], read(300, SEGMENT_SIZE - 300));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LogSegmentsTest.class);
+  }
+}
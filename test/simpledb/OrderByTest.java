@@ -0,0 +1,128 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class OrderByTest extends SimpleDbTestBase {
+
+  int width = 2;
+
+  /**
+   * Give sorts so little memory that a few hundred tuples do not fit
+   */
+  @Before public void limitMemory() {
+    Database.getBufferPool().setWorkMemoryPages(2 * BufferPool.MIN_WORK_MEMORY_PAGES);
+  }
+
+  /**
+   * @return count tuples whose first field is a random key below keys and
+   *   whose second field is their position, to check stability
+   */
+  private int[] tuples(int count, int keys) {
+    Random random = new Random(count);
+    int[] data = new int[width * count];
+    for (int i = 0; i < count; i++) {
+      data[i * width] = random.nextInt(keys);
+      data[i * width + 1] = i;
+    }
+    return data;
+  }
+
+  /**
+   * @return the tuples as a stable sort on the first field would order them
+   */
+  private List<String> sorted(int[] data, boolean asc, int limit) throws Exception {
+    OpIterator it = TestUtil.createTupleList(width, data);
+    List<Tuple> tuples = new ArrayList<Tuple>();
+    it.open();
+    while (it.hasNext()) {
+      tuples.add(it.next());
+    }
+    Collections.sort(tuples, new TupleComparator(0, asc));
+    List<String> expected = new ArrayList<String>();
+    for (Tuple t : tuples) {
+      if (limit != OrderBy.NO_LIMIT && expected.size() == limit) {
+        break;
+      }
+      expected.add(t.toString());
+    }
+    return expected;
+  }
+
+  private List<String> drain(OpIterator it) throws Exception {
+    List<String> tuples = new ArrayList<String>();
+    while (it.hasNext()) {
+      tuples.add(it.next().toString());
+    }
+    return tuples;
+  }
+
+  /**
+   * Check OrderBy against Collections.sort, and again after a rewind
+   */
+  private void checkSort(int[] data, boolean asc, int limit) throws Exception {
+    List<String> expected = sorted(data, asc, limit);
+    OrderBy op = new OrderBy(0, asc, TestUtil.createTupleList(width, data), limit);
+    op.open();
+    assertEquals(expected, drain(op));
+    op.rewind();
+    assertEquals(expected, drain(op));
+    op.close();
+  }
+
+  /**
+   * Sort that fits in memory
+   */
+  @Test public void inMemory() throws Exception {
+    checkSort(tuples(100, 20), true, OrderBy.NO_LIMIT);
+  }
+
+  /**
+   * Sort that spills runs and merges them in several passes
+   */
+  @Test public void externalSort() throws Exception {
+    checkSort(tuples(5000, 1000000), true, OrderBy.NO_LIMIT);
+    checkSort(tuples(5000, 1000000), false, OrderBy.NO_LIMIT);
+  }
+
+  /**
+   * External sort with many equal keys keeps them in input order
+   */
+  @Test public void externalSortIsStable() throws Exception {
+    checkSort(tuples(5000, 10), true, OrderBy.NO_LIMIT);
+  }
+
+  /**
+   * Limit that fits in memory, kept in a bounded heap
+   */
+  @Test public void topN() throws Exception {
+    checkSort(tuples(5000, 100), true, 10);
+    checkSort(tuples(5000, 100), false, 10);
+    checkSort(tuples(50, 100), true, 0);
+  }
+
+  /**
+   * Limit that does not fit in memory
+   */
+  @Test public void largeLimit() throws Exception {
+    checkSort(tuples(5000, 1000000), true, 2000);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(OrderByTest.class);
+  }
+}
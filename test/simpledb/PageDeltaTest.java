@@ -0,0 +1,102 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageDeltaTest extends SimpleDbTestBase {
+
+    private HeapPageId pid;
+
+    @Before
+    public void addTable() throws IOException {
+        this.pid = new HeapPageId(-1, -1);
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+    }
+
+    /**
+     * A page with one tuple deleted and two inserted, and the data before.
+     */
+    private HeapPage changedPage() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        Iterator<Tuple> it = page.iterator();
+        it.next();
+        page.deleteTuple(it.next());
+        page.insertTuple(Utility.getHeapTuple(12345, 2));
+        page.insertTuple(Utility.getHeapTuple(67890, 2));
+        return page;
+    }
+
+    /**
+     * Unit test for PageDelta.diff() and redo/undo of slot changes
+     */
+    @Test
+    public void slotChanges() throws Exception {
+        byte[] before = HeapPageReadTest.EXAMPLE_DATA;
+        HeapPage page = changedPage();
+        byte[] after = page.getPageData();
+
+        PageDelta delta = PageDelta.diff(page, before, after);
+        // three slots of 8 bytes each and their bitmap bytes, not a page
+        assertTrue(delta.size() < 100);
+
+        byte[] data = before.clone();
+        delta.redo(data);
+        assertArrayEquals(after, data);
+        delta.undo(data);
+        assertArrayEquals(before, data);
+    }
+
+    /**
+     * A delta reads back as written, and redoing it twice does no harm
+     */
+    @Test
+    public void writeReadRedoTwice() throws Exception {
+        byte[] before = HeapPageReadTest.EXAMPLE_DATA;
+        HeapPage page = changedPage();
+        byte[] after = page.getPageData();
+        PageDelta delta = PageDelta.diff(page, before, after);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        delta.write(new DataOutputStream(bytes));
+        assertEquals(delta.size(), bytes.size());
+        PageDelta read = PageDelta.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        byte[] data = before.clone();
+        read.redo(data);
+        read.redo(data);
+        assertArrayEquals(after, data);
+    }
+
+    /**
+     * Unit test for PageDelta.isEmpty()
+     */
+    @Test
+    public void unchanged() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        assertTrue(PageDelta.diff(page, HeapPageReadTest.EXAMPLE_DATA, page.getPageData()).isEmpty());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageDeltaTest.class);
+    }
+}
@@ -0,0 +1,106 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageTypeTest extends SimpleDbTestBase {
+
+    private HeapPageId pid;
+
+    /**
+     * A page class the registry does not know.
+     */
+    static class OtherPage extends HeapPage {
+        public OtherPage(HeapPageId id, byte[] data) throws IOException {
+            super(id, data);
+        }
+    }
+
+    @Before
+    public void addTable() throws IOException {
+        this.pid = new HeapPageId(-1, -1);
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+    }
+
+    private static byte[] logged(Page page) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Database.getLogFile().writePageData(new DataOutputStream(bytes), page);
+        return bytes.toByteArray();
+    }
+
+    private static LogRecord.PageImage read(byte[] bytes, int version) throws IOException {
+        return LogRecord.PageImage.read(new DataInputStream(new ByteArrayInputStream(bytes)), version, true);
+    }
+
+    /**
+     * Registered pages are logged by code and come back as the same page
+     */
+    @Test
+    public void registeredPage() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        byte[] bytes = logged(page);
+        // code, two id ints, data length and data
+        assertEquals(1 + 2 * 4 + 4 + page.getPageData().length, bytes.length);
+
+        LogRecord.PageImage image = read(bytes, LogFile.LOG_VERSION);
+        assertEquals(PageType.HEAP, image.type);
+        Page back = image.toPage();
+        assertEquals(HeapPage.class, back.getClass());
+        assertEquals(pid, back.getId());
+        assertArrayEquals(page.getPageData(), back.getPageData());
+    }
+
+    /**
+     * Pages of other classes are logged by class name
+     */
+    @Test
+    public void unregisteredPage() throws Exception {
+        OtherPage page = new OtherPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        LogRecord.PageImage image = read(logged(page), LogFile.LOG_VERSION);
+        assertNull(image.type);
+        Page back = image.toPage();
+        assertEquals(OtherPage.class, back.getClass());
+        assertArrayEquals(page.getPageData(), back.getPageData());
+    }
+
+    /**
+     * Images can still be written and read in the version 1 format
+     */
+    @Test
+    public void version1() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        LogRecord.PageImage image = read(logged(page), LogFile.LOG_VERSION);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        image.write(new DataOutputStream(bytes), 1);
+        assertTrue(bytes.size() > logged(page).length);
+
+        LogRecord.PageImage old = read(bytes.toByteArray(), 1);
+        assertEquals(HeapPage.class.getName(), old.pageClassName);
+        assertEquals(HeapPageId.class.getName(), old.idClassName);
+        assertArrayEquals(page.getPageData(), old.toPage().getPageData());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageTypeTest.class);
+    }
+}
@@ -0,0 +1,78 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class WaitForGraphTest extends SimpleDbTestBase {
+
+    private WaitForGraph graph;
+    private TransactionId t1, t2, t3, t4;
+
+    @Before public void setUp() {
+        graph = new WaitForGraph();
+        t1 = new TransactionId();
+        t2 = new TransactionId();
+        t3 = new TransactionId();
+        t4 = new TransactionId();
+    }
+
+    /**
+     * Unit test for WaitForGraph.addEdges() closing a cycle
+     */
+    @Test public void cycleThroughNewEdge() {
+        assertNull(graph.addEdge(t1, t2));
+        assertNull(graph.addEdge(t2, t3));
+        assertEquals(Arrays.asList(t3, t1, t2), graph.addEdge(t3, t1));
+    }
+
+    /**
+     * Reaching the same transaction along two paths is not a deadlock
+     */
+    @Test public void diamondIsNotACycle() {
+        assertNull(graph.addEdges(t1, Arrays.asList(t2, t3)));
+        assertNull(graph.addEdge(t2, t4));
+        assertNull(graph.addEdge(t3, t4));
+        assertNull(graph.addEdge(t4, new TransactionId()));
+    }
+
+    /**
+     * Unit test for WaitForGraph.removeEdges() and WaitForGraph.retainEdges()
+     */
+    @Test public void removeEdges() {
+        assertNull(graph.addEdges(t1, Arrays.asList(t2, t3)));
+        graph.removeEdges(t1);
+        assertNull(graph.addEdge(t2, t1));
+
+        graph.removeEdges(t2);
+        assertNull(graph.addEdges(t1, Arrays.asList(t2, t3)));
+        graph.retainEdges(t1, Arrays.asList(t3));
+        assertNull(graph.addEdge(t2, t1));
+        assertEquals(Arrays.asList(t3, t1), graph.addEdge(t3, t1));
+    }
+
+    /**
+     * Unit test for WaitForGraph.removeVertex()
+     */
+    @Test public void removeVertex() {
+        assertNull(graph.addEdge(t1, t2));
+        assertNull(graph.addEdge(t2, t3));
+        graph.removeVertex(t2);
+        assertNull(graph.addEdge(t3, t1));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(WaitForGraphTest.class);
+    }
+}
@@ -0,0 +1,244 @@
+package simpledb.systemtest;
+
+import simpledb.*;
+import simpledb.Predicate.Op;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeBulkLoadTest extends SimpleDbTestBase {
+
+    private TransactionId tid;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before
+    public void setUp() throws Exception {
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+
+        // set the page size back to the default
+        BufferPool.resetPageSize();
+        Database.reset();
+    }
+
+    private static BTreeFile createEmptyFile() throws Exception {
+        File emptyFile = File.createTempFile("empty", ".dat");
+        emptyFile.deleteOnExit();
+        Database.reset();
+        return BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0);
+    }
+
+    /**
+     * @return tuples with the keys from first on, in steps of step, each key
+     * appearing twice
+     */
+    private static OpIterator sortedTuples(int first, int count, int step) {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < count; i++) {
+            tuples.add(BTreeUtility.getBTreeTuple(new int[]{first + i / 2 * step, i}));
+        }
+        return new TupleIterator(Utility.getTupleDesc(2), tuples);
+    }
+
+    /**
+     * Make sure the file holds the expected number of tuples in key order.
+     */
+    private void checkFile(BTreeFile file, int expected) throws Exception {
+        BTreeChecker.checkRep(file, tid, new HashMap<PageId, Page>(), true);
+        DbFileIterator it = file.iterator(tid);
+        it.open();
+        int count = 0;
+        Tuple prev = null;
+        while (it.hasNext()) {
+            Tuple tup = it.next();
+            if (prev != null) {
+                assertTrue(tup.getField(0).compare(Op.GREATER_THAN_OR_EQ, prev.getField(0)));
+            }
+            prev = tup;
+            count++;
+        }
+        it.close();
+        assertEquals(expected, count);
+    }
+
+    private int countLeaves(BTreeFile file) throws Exception {
+        DbFileIterator it = file.iterator(tid);
+        it.open();
+        Set<PageId> leaves = new HashSet<PageId>();
+        while (it.hasNext()) {
+            leaves.add(it.next().getRecordId().getPageId());
+        }
+        it.close();
+        return leaves.size();
+    }
+
+    private int countEquals(BTreeFile file, int key) throws Exception {
+        DbFileIterator it = file.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        return count;
+    }
+
+    @Test
+    public void loadEmptyFile() throws Exception {
+        // small pages, so that the tree gets three levels
+        BufferPool.setPageSize(1024);
+        BTreeFile file = createEmptyFile();
+
+        assertEquals(40000, file.bulkLoad(tid, sortedTuples(0, 40000, 1), 1.0));
+        checkFile(file, 40000);
+        assertEquals(2, countEquals(file, 0));
+        assertEquals(2, countEquals(file, 12345));
+        assertEquals(2, countEquals(file, 19999));
+        assertEquals(0, countEquals(file, 20000));
+
+        // the leaves are filled, with 124 tuples each
+        assertEquals((40000 + 123) / 124, countLeaves(file));
+    }
+
+    @Test
+    public void fillFactor() throws Exception {
+        BufferPool.setPageSize(1024);
+        BTreeFile full = createEmptyFile();
+        full.bulkLoad(tid, sortedTuples(0, 20000, 1), 1.0);
+        checkFile(full, 20000);
+        int fullLeaves = countLeaves(full);
+        Database.getBufferPool().transactionComplete(tid);
+
+        BTreeFile partial = createEmptyFile();
+        partial.bulkLoad(tid, sortedTuples(0, 20000, 1), 0.6);
+        checkFile(partial, 20000);
+        assertTrue(countLeaves(partial) > fullLeaves * 3 / 2);
+
+        // the room left is there for inserts, which do not split the leaves
+        int pages = partial.numPages();
+        for (int i = 0; i < 1000; i++) {
+            Database.getBufferPool().insertTuple(tid, partial.getId(),
+                    BTreeUtility.getBTreeTuple(new int[]{i * 10, -1}));
+        }
+        assertEquals(pages, partial.numPages());
+        checkFile(partial, 21000);
+    }
+
+    @Test
+    public void appendBatches() throws Exception {
+        BufferPool.setPageSize(1024);
+        BTreeFile file = createEmptyFile();
+
+        int total = 0;
+        int first = 0;
+        for (int count : new int[]{5000, 3, 1, 15000, 250, 9000}) {
+            assertEquals(count, file.bulkLoad(tid, sortedTuples(first, count, 3), 0.8));
+            total += count;
+            first += (count + 1) / 2 * 3;
+            checkFile(file, total);
+        }
+
+        // a batch may start with the greatest key in the tree
+        file.bulkLoad(tid, sortedTuples(first - 3, 2, 3), 0.8);
+        checkFile(file, total + 2);
+        assertEquals(4, countEquals(file, first - 3));
+    }
+
+    @Test
+    public void appendToExistingTree() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile file = BTreeUtility.createRandomBTreeFile(2, 10000, 10000, null, tuples, 0);
+        Database.resetBufferPool(500);
+
+        file.bulkLoad(tid, sortedTuples(10000, 30000, 1), 0.9);
+        checkFile(file, 40000);
+        assertEquals(2, countEquals(file, 20000));
+
+        // the tree takes inserts and deletes as usual afterwards
+        Random rand = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            Database.getBufferPool().insertTuple(tid, file.getId(),
+                    BTreeUtility.getBTreeTuple(new int[]{rand.nextInt(30000), -1}));
+        }
+        checkFile(file, 41000);
+        DbFileIterator it = file.indexIterator(tid, new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(15000)));
+        it.open();
+        ArrayList<Tuple> deleted = new ArrayList<Tuple>();
+        while (it.hasNext() && deleted.size() < 5000) {
+            deleted.add(it.next());
+        }
+        it.close();
+        for (Tuple t : deleted) {
+            Database.getBufferPool().deleteTuple(tid, t);
+        }
+        checkFile(file, 36000);
+    }
+
+    @Test
+    public void abortLoad() throws Exception {
+        BufferPool.setPageSize(1024);
+        BTreeFile file = createEmptyFile();
+        Transaction t = new Transaction();
+        t.start();
+        file.bulkLoad(t.getId(), sortedTuples(0, 5000, 1), 1.0);
+        t.commit();
+
+        // more pages than the buffer pool holds, so some are written out
+        // before the transaction aborts
+        Database.resetBufferPool(50);
+        t = new Transaction();
+        t.start();
+        file.bulkLoad(t.getId(), sortedTuples(2500, 20000, 1), 1.0);
+        t.abort();
+
+        checkFile(file, 5000);
+        assertEquals(0, countEquals(file, 2500));
+    }
+
+    @Test
+    public void unsortedInput() throws Exception {
+        BTreeFile file = createEmptyFile();
+        file.bulkLoad(tid, sortedTuples(100, 10, 1), 1.0);
+
+        // less than a key in the tree
+        try {
+            file.bulkLoad(tid, sortedTuples(0, 10, 1), 1.0);
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+
+        // out of order
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        tuples.add(BTreeUtility.getBTreeTuple(new int[]{200, 0}));
+        tuples.add(BTreeUtility.getBTreeTuple(new int[]{199, 0}));
+        try {
+            file.bulkLoad(tid, new TupleIterator(Utility.getTupleDesc(2), tuples), 1.0);
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BTreeBulkLoadTest.class);
+    }
+}
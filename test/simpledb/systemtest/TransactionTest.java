@@ -230,7 +230,7 @@ public class TransactionTest extends SimpleDbTestBase {
             throws IOException, DbException, TransactionAbortedException {
         // Allocate a file with ~10 pages of data
         HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512*10, null, null);
-        Database.resetBufferPool(1);
+        Database.resetBufferPool(1).setNoStealForce(true);
 
         // BEGIN TRANSACTION
         Transaction t = new Transaction();
@@ -247,6 +247,31 @@ public class TransactionTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void testStealEvictsDirtyPage()
+            throws IOException, DbException, TransactionAbortedException {
+        // Allocate a file with ~10 pages of data
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512*10, null, null);
+        Database.resetBufferPool(1);
+
+        // BEGIN TRANSACTION
+        Transaction t = new Transaction();
+        t.start();
+
+        // Insert a new row
+        EvictionTest.insertRow(f, t);
+
+        // With STEAL the dirty page is written out to make room for the scan
+        assertTrue(EvictionTest.findMagicTuple(f, t));
+
+        // ABORT, the page on disk has to be undone from the log
+        t.abort();
+
+        t = new Transaction();
+        t.start();
+        assertFalse(EvictionTest.findMagicTuple(f, t));
+        t.commit();
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(TransactionTest.class);